@@ -70,7 +70,7 @@ public class InteractionWindow extends javax.swing.JFrame {
                         sock_lock.lock();
                         Optional<OpKind> maybeInvite = IOUtils.tryReadOpKind(chnl);
                         if (maybeInvite.isPresent()) {
-                            handleInviteOp();
+                            handleInviteOp(maybeInvite.get());
                         }
                     } catch (IOException e) {
                         UserLog("Connection problems reading invitations details", "Error", JOptionPane.ERROR_MESSAGE);
@@ -630,6 +630,9 @@ public class InteractionWindow extends javax.swing.JFrame {
                         case ERR_DOCUMENT_EXISTS:
                         this.UserLog("Can't create document: already exists", "Error", JOptionPane.ERROR_MESSAGE);
                         break;
+                        case ERR_WRONG_DOCNAME:
+                        this.UserLog("Can't create document: the name can't be empty, contain '/' or begin with '.'", "Error", JOptionPane.ERROR_MESSAGE);
+                        break;
                         case ERR_RETRY:
                         throw new IOException();
                         default:
@@ -849,15 +852,29 @@ public class InteractionWindow extends javax.swing.JFrame {
         }
     }
 
-    private void handleInviteOp() throws IOException, ChannelClosedException {
+    private void handleInviteOp(OpKind op) throws IOException, ChannelClosedException {
+        if (op == OpKind.OP_INVITES) {
+            // Invitations received while offline, all in one list
+            int n = IOUtils.readInt(chnl);
+            String[] docsInvited = new String[n];
+            for (int i = 0; i < n; ++i) {
+                docsInvited[i] = IOUtils.readString(chnl);
+            }
+            JList<String> list = new JList<String>(docsInvited);
+            list.setVisibleRowCount(Math.min(n, 10));
+            JScrollPane scroll = new JScrollPane(list);
+            JOptionPane.showMessageDialog(this, new Object[] {"While offline you have been invited to edit " + n + " documents:", scroll},
+                    "Invite", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
         String docInvited = IOUtils.readString((chnl));
         UserLog("You have been invited to edit " + docInvited, "Invite", JOptionPane.INFORMATION_MESSAGE);
     }
 
     private OpKind getNonInviteOpKind() throws IOException, ChannelClosedException {
         OpKind resp = IOUtils.readOpKind(chnl);
-        if (resp == OpKind.OP_INVITE) {
-            handleInviteOp();
+        if (resp == OpKind.OP_INVITE || resp == OpKind.OP_INVITES) {
+            handleInviteOp(resp);
             return getNonInviteOpKind();
         }
         else {
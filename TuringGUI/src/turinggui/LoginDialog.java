@@ -152,7 +152,7 @@ public class LoginDialog extends javax.swing.JDialog {
         catch (RemoteException e) {
             UserLog("Remote error during registration: " + e.getMessage());
         }
-        catch (UsernameAlreadyInUseException | InternalServerException e) {
+        catch (UsernameAlreadyInUseException | InvalidUsernameException | InternalServerException e) {
             UserLog(e.getMessage());
         }
     }//GEN-LAST:event_registerButtonActionPerformed
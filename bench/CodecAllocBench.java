@@ -0,0 +1,145 @@
+package bench;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import server.*;
+import server.lib.*;
+
+/**
+ * Measures time and heap allocation per call of the codecs in IOUtils and of
+ * building a response Frame.
+ * <p>
+ * Codecs run on in-memory channels, so that only their own cost is measured:
+ * writes go to a channel that discards everything, reads come from a channel
+ * that repeats the encoding of the same values forever. Allocation is read
+ * from the JVM's per-thread allocation counter, so it's the same figure that
+ * JMH's {@code -prof gc} reports as gc.alloc.rate.norm. The allocating
+ * codecs used before BufferPool are measured too, as the baseline.
+ * <p>
+ * Usage: {@code CodecAllocBench [iterations]}
+ */
+public class CodecAllocBench {
+	private interface Op {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Channel that discards everything written to it.
+	 */
+	private static class NullChannel implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			return len;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	/**
+	 * Channel that repeats the same content forever.
+	 */
+	private static class LoopChannel implements ReadableByteChannel {
+		private final ByteBuffer content;
+
+		LoopChannel(ByteBuffer content_set) {
+			content = content_set;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			int len = 0;
+			while (dst.hasRemaining()) {
+				if (!content.hasRemaining()) {
+					content.rewind();
+				}
+				dst.put(content.get());
+				++len;
+			}
+			return len;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	private static final com.sun.management.ThreadMXBean threads =
+		(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	private static void measure(String name, Op op, int iterations) throws Exception {
+		for (int i = 0; i < iterations / 10; ++i) {
+			op.run();
+		}
+		long tid = Thread.currentThread().getId();
+		long bytes = threads.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			op.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		bytes = threads.getThreadAllocatedBytes(tid) - bytes;
+		System.out.printf("%-24s %8.1f ns/op %8.1f B/op%n", name,
+			(double)elapsed / iterations, (double)bytes / iterations);
+	}
+
+	// Codecs as they were before BufferPool
+	private static void oldWriteInt(int n, WritableByteChannel chnl) throws IOException {
+		ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES);
+		buff.putInt(n);
+		buff.flip();
+		while (buff.remaining() > 0) {
+			chnl.write(buff);
+		}
+	}
+
+	private static int oldReadInt(ReadableByteChannel chnl) throws IOException {
+		ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES);
+		while (buff.remaining() > 0) {
+			chnl.read(buff);
+		}
+		buff.flip();
+		return buff.getInt();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		final WritableByteChannel sink = new NullChannel();
+		final String docname = "someuser/somedocument";
+		ByteBuffer int_bytes = ByteBuffer.allocate(4).putInt(42);
+		int_bytes.flip();
+		final ReadableByteChannel ints = new LoopChannel(int_bytes);
+
+		measure("old writeInt", () -> oldWriteInt(42, sink), iterations);
+		measure("writeInt", () -> IOUtils.writeInt(42, sink), iterations);
+		measure("old readInt", () -> oldReadInt(ints), iterations);
+		measure("readInt", () -> IOUtils.readInt(ints), iterations);
+		measure("writeOpKind", () -> IOUtils.writeOpKind(OpKind.RESP_OK, sink), iterations);
+		measure("writeString", () -> IOUtils.writeString(docname, sink), iterations);
+		byte[] str_bytes = docname.getBytes(Constants.encoding);
+		ByteBuffer string_bytes = ByteBuffer.allocate(4 + str_bytes.length).putInt(str_bytes.length).put(str_bytes);
+		string_bytes.flip();
+		final ReadableByteChannel strings = new LoopChannel(string_bytes);
+		measure("readString", () -> IOUtils.readString(strings), iterations);
+		measure("Frame with 10 strings", () -> {
+			Frame f = new Frame(false).putOpKind(OpKind.RESP_OK).putInt(10);
+			for (int i = 0; i < 10; ++i) {
+				f.putString(docname);
+			}
+			f.release();
+		}, iterations);
+	}
+}
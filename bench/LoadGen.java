@@ -0,0 +1,568 @@
+package bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.rmi.*;
+import java.rmi.registry.*;
+import server.*;
+import server.lib.*;
+
+/**
+ * Load generator for a running TURING server, speaking the same protocol as
+ * the GUI client.
+ * <p>
+ * It registers the users through RMI, then each of them logs in on its own
+ * connection, creates a document and is invited to the documents of the
+ * following users. During the run every connection, in its own thread,
+ * sends requests picked at random according to a mix of operations, and the
+ * latency of each of them is recorded in a histogram per OpKind. An edit in
+ * the mix is an OP_EDIT followed by an OP_ENDEDIT with new content for the
+ * section; a login opens a new connection, logs in with a second account of
+ * the user and closes it.
+ * <p>
+ * In closed loop (the default) each connection sends a request as soon as
+ * it gets the previous response. In open loop requests are sent at a fixed
+ * total rate, evenly split among connections, and latency is measured from
+ * when the request should have been sent: if the server falls behind, the
+ * time spent waiting for the previous requests is counted too.
+ * <p>
+ * Usage: {@code LoadGen [--option=value...]}, with options
+ * <ul>
+ * <li>{@code --host}, {@code --rmi}, {@code --port}: address of the server
+ *     (default localhost, 12345, 55000, as in utils.sh);
+ * <li>{@code --users=N}: number of connections (default 16);
+ * <li>{@code --duration=S}, {@code --warmup=S}: seconds of measurement and of
+ *     warm-up before it (default 30 and 5);
+ * <li>{@code --rate=R}: operations per second in total, for the open loop
+ *     (an edit is one operation, but two requests); if missing the loop is
+ *     closed;
+ * <li>{@code --mix=op:w,...}: weights of the operations among login, create,
+ *     edit, showsec, showdoc, invite and listdocs (default
+ *     {@code edit:2,showsec:10,showdoc:2,invite:1,listdocs:5});
+ * <li>{@code --sections=N}, {@code --section-size=B}: sections of each
+ *     document and bytes written by each edit (default 4 and 1024);
+ * <li>{@code --prefix=name}: prefix of the usernames, so that runs against
+ *     the same db don't collide (default "load").
+ * </ul>
+ */
+public class LoadGen {
+	private static final String pwd = "loadgen";
+	private static final String doc = "loaddoc";
+	// Second account of each user, for logins in the mix
+	private static final String login_suffix = "_l";
+	// Documents of other users each user is invited to
+	private static final int invited_docs = 3;
+	private static final long second = 1000L * 1000L * 1000L;
+
+	private final String host;
+	private final int port;
+	private final int nusers;
+	private final long warmup;
+	private final long duration;
+	// Nanoseconds between two requests of the same connection, 0 for the
+	// closed loop
+	private final long interval;
+	private final int sections;
+	private final int section_size;
+	private final String prefix;
+	private final OpKind[] mix_ops;
+	private final int[] mix_weights;
+	private final int mix_total;
+
+	private final Map<OpKind, LatencyHistogram> latencies;
+	// Responses other than RESP_OK, by "request response"
+	private final Map<String, AtomicLong> errors;
+	private final AtomicLong completed;
+	private final AtomicLong invites_received;
+	private final AtomicLong failed_connections;
+	private volatile boolean recording = false;
+	private volatile boolean running = true;
+
+	private LoadGen(ServerConfig config) throws IllegalArgumentException {
+		host = config.getString("host", "localhost");
+		port = config.getInt("port", 55000, 55000);
+		nusers = config.getInt("users", 16, 16);
+		warmup = config.getInt("warmup", 5, 5) * second;
+		duration = config.getInt("duration", 30, 30) * second;
+		int rate = config.getInt("rate", 0, 0);
+		sections = config.getInt("sections", 4, 4);
+		section_size = config.getInt("section-size", 1024, 1024);
+		prefix = config.getString("prefix", "load");
+		if (nusers <= 0 || duration <= 0 || warmup < 0 || rate < 0 || sections <= 0 || section_size < 0) {
+			throw new IllegalArgumentException("Invalid numeric option");
+		}
+		interval = rate == 0 ? 0 : second * nusers / rate;
+
+		String[] mix = config.getString("mix", "edit:2,showsec:10,showdoc:2,invite:1,listdocs:5").split(",");
+		mix_ops = new OpKind[mix.length];
+		mix_weights = new int[mix.length];
+		int total = 0;
+		for (int i = 0; i < mix.length; ++i) {
+			String[] parts = mix[i].split(":");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Invalid mix entry " + mix[i]);
+			}
+			mix_ops[i] = parseOp(parts[0].trim());
+			mix_weights[i] = Integer.parseInt(parts[1].trim());
+			if (mix_weights[i] < 0) {
+				throw new IllegalArgumentException("Negative weight for " + parts[0]);
+			}
+			total += mix_weights[i];
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("Empty mix");
+		}
+		mix_total = total;
+
+		Map<OpKind, LatencyHistogram> tmp = new EnumMap<OpKind, LatencyHistogram>(OpKind.class);
+		for (OpKind op : OpKind.values()) {
+			tmp.put(op, new LatencyHistogram());
+		}
+		latencies = Collections.unmodifiableMap(tmp);
+		errors = new ConcurrentHashMap<String, AtomicLong>();
+		completed = new AtomicLong(0);
+		invites_received = new AtomicLong(0);
+		failed_connections = new AtomicLong(0);
+	}
+
+	private static OpKind parseOp(String name) throws IllegalArgumentException {
+		switch (name) {
+			case "login":
+				return OpKind.OP_LOGIN;
+			case "create":
+				return OpKind.OP_CREATE;
+			case "edit":
+				return OpKind.OP_EDIT;
+			case "showsec":
+				return OpKind.OP_SHOWSEC;
+			case "showdoc":
+				return OpKind.OP_SHOWDOC;
+			case "invite":
+				return OpKind.OP_INVITE;
+			case "listdocs":
+				return OpKind.OP_LISTDOCS;
+			default:
+				throw new IllegalArgumentException("Unknown operation " + name);
+		}
+	}
+
+	private String username(int i) {
+		return prefix + Integer.toString(i);
+	}
+
+	/**
+	 * Records the outcome of a request, if the warm-up is over.
+	 */
+	private void record(OpKind op, OpKind resp, long nanos) {
+		if (!recording) {
+			return;
+		}
+		latencies.get(op).record(nanos);
+		completed.incrementAndGet();
+		if (resp != OpKind.RESP_OK) {
+			errors.computeIfAbsent(op.toString() + " " + resp.toString(), k -> new AtomicLong(0))
+				.incrementAndGet();
+		}
+	}
+
+	// ============================== PROTOCOL ===============================
+	/**
+	 * One connection of the load generator, with its own user.
+	 */
+	private final class Client implements Runnable {
+		private final int id;
+		private final String usr;
+		// Full names of the documents this user can edit
+		private final List<String> docs;
+		private final Random rnd;
+		private final ByteBuffer req;
+		private final ByteBuffer content;
+		private final ByteBuffer skip_buff;
+		private SocketChannel chnl;
+		private int created = 0;
+
+		private Client(int id_set) {
+			id = id_set;
+			usr = username(id);
+			docs = new ArrayList<String>();
+			rnd = new Random(id);
+			req = ByteBuffer.allocate(1024);
+			byte[] bytes = new byte[section_size];
+			for (int i = 0; i < bytes.length; ++i) {
+				bytes[i] = (byte)('a' + rnd.nextInt(26));
+			}
+			content = ByteBuffer.wrap(bytes);
+			skip_buff = ByteBuffer.allocate(64 * 1024);
+		}
+
+		private SocketChannel connect() throws IOException {
+			SocketChannel c = SocketChannel.open(new InetSocketAddress(host, port));
+			// Requests are written in one go, no need to wait for acks
+			c.socket().setTcpNoDelay(true);
+			return c;
+		}
+
+		// Request building, in req
+		private void begin(OpKind op) {
+			req.clear();
+			req.put(OpKind.getNum(op));
+		}
+
+		private void putString(String s) {
+			byte[] bytes = s.getBytes(Constants.encoding);
+			req.putInt(bytes.length).put(bytes);
+		}
+
+		private void send(SocketChannel c) throws IOException {
+			req.flip();
+			while (req.hasRemaining()) {
+				c.write(req);
+			}
+		}
+
+		/**
+		 * Reads the response code of a request, consuming the invitations
+		 * pushed by the server in the meantime.
+		 */
+		private OpKind readResponse(SocketChannel c) throws IOException, ChannelClosedException {
+			OpKind resp;
+			while ((resp = IOUtils.readOpKind(c)) == OpKind.OP_INVITE || resp == OpKind.OP_INVITES) {
+				int n = resp == OpKind.OP_INVITE ? 1 : IOUtils.readInt(c);
+				for (int i = 0; i < n; ++i) {
+					IOUtils.readString(c);
+				}
+				invites_received.addAndGet(n);
+			}
+			return resp;
+		}
+
+		private void readFully(ByteBuffer buff) throws IOException {
+			while (buff.hasRemaining()) {
+				if (chnl.read(buff) == -1) {
+					throw new EOFException("Connection closed by the server");
+				}
+			}
+		}
+
+		/**
+		 * Reads a file sent by the server, discarding its content.
+		 */
+		private void skipFile() throws IOException {
+			skip_buff.clear().limit(Long.BYTES);
+			readFully(skip_buff);
+			long size = skip_buff.getLong(0);
+			while (size > 0) {
+				skip_buff.clear();
+				if (size < skip_buff.capacity()) {
+					skip_buff.limit((int)size);
+				}
+				readFully(skip_buff);
+				size -= skip_buff.limit();
+			}
+		}
+
+		private OpKind login(SocketChannel c, String name) throws IOException, ChannelClosedException {
+			begin(OpKind.OP_LOGIN);
+			putString(name);
+			putString(pwd);
+			send(c);
+			return readResponse(c);
+		}
+
+		private OpKind create(String name) throws IOException, ChannelClosedException {
+			begin(OpKind.OP_CREATE);
+			putString(name);
+			req.putInt(sections);
+			send(chnl);
+			return readResponse(chnl);
+		}
+
+		private OpKind invite(String target) throws IOException, ChannelClosedException {
+			begin(OpKind.OP_INVITE);
+			putString(target);
+			putString(doc);
+			send(chnl);
+			return readResponse(chnl);
+		}
+
+		/**
+		 * Logs in, creates the document of this user and invites the
+		 * previous users to it.
+		 */
+		private void setup() throws IOException, ChannelClosedException {
+			chnl = connect();
+			OpKind resp = login(chnl, usr);
+			if (resp != OpKind.RESP_OK) {
+				throw new IOException("Login of " + usr + " failed: " + resp.toString());
+			}
+			resp = create(doc);
+			if (resp != OpKind.RESP_OK && resp != OpKind.ERR_DOCUMENT_EXISTS) {
+				throw new IOException("Creation of " + doc + " failed: " + resp.toString());
+			}
+			docs.add(usr + "/" + doc);
+			for (int i = 1; i <= Math.min(invited_docs, nusers - 1); ++i) {
+				int other = (id - i + nusers) % nusers;
+				invite(username(other));
+				docs.add(username((id + i) % nusers) + "/" + doc);
+			}
+		}
+
+		private OpKind pickOp() {
+			int n = rnd.nextInt(mix_total);
+			int i = 0;
+			while (n >= mix_weights[i]) {
+				n -= mix_weights[i];
+				++i;
+			}
+			return mix_ops[i];
+		}
+
+		private String pickDoc() {
+			return docs.get(rnd.nextInt(docs.size()));
+		}
+
+		/**
+		 * Runs an operation of the mix and records its latency, measured
+		 * from intended.
+		 */
+		private void runOp(OpKind op, long intended) throws IOException, ChannelClosedException {
+			OpKind resp;
+			switch (op) {
+				case OP_LOGIN:
+					try (SocketChannel c = connect()) {
+						resp = login(c, usr + login_suffix);
+					}
+					break;
+				case OP_CREATE:
+					resp = create(doc + Integer.toString(created++));
+					break;
+				case OP_EDIT:
+					runEdit(intended);
+					return;
+				case OP_SHOWSEC:
+					begin(OpKind.OP_SHOWSEC);
+					putString(pickDoc());
+					req.putInt(rnd.nextInt(sections));
+					send(chnl);
+					resp = readResponse(chnl);
+					if (resp == OpKind.RESP_OK) {
+						IOUtils.readBool(chnl);
+						skipFile();
+					}
+					break;
+				case OP_SHOWDOC:
+					begin(OpKind.OP_SHOWDOC);
+					putString(pickDoc());
+					send(chnl);
+					resp = readResponse(chnl);
+					if (resp == OpKind.RESP_OK) {
+						int n = IOUtils.readInt(chnl);
+						for (int i = 0; i < n; ++i) {
+							IOUtils.readBool(chnl);
+							skipFile();
+						}
+					}
+					break;
+				case OP_INVITE:
+					resp = invite(username(rnd.nextInt(nusers)));
+					break;
+				case OP_LISTDOCS:
+					begin(OpKind.OP_LISTDOCS);
+					send(chnl);
+					resp = readResponse(chnl);
+					if (resp == OpKind.RESP_OK) {
+						int n = IOUtils.readInt(chnl);
+						for (int i = 0; i < n; ++i) {
+							IOUtils.readString(chnl);
+						}
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Operation not in the mix: " + op.toString());
+			}
+			record(op, resp, System.nanoTime() - intended);
+		}
+
+		/**
+		 * Edits a section and sends its new content. OP_EDIT and OP_ENDEDIT
+		 * are recorded separately, the latter until the content is sent.
+		 */
+		private void runEdit(long intended) throws IOException, ChannelClosedException {
+			begin(OpKind.OP_EDIT);
+			putString(pickDoc());
+			req.putInt(rnd.nextInt(sections));
+			send(chnl);
+			OpKind resp = readResponse(chnl);
+			if (resp == OpKind.RESP_OK) {
+				skipFile();
+				IOUtils.readByte(chnl);
+			}
+			long edited = System.nanoTime();
+			record(OpKind.OP_EDIT, resp, edited - intended);
+			if (resp != OpKind.RESP_OK) {
+				return;
+			}
+			begin(OpKind.OP_ENDEDIT);
+			send(chnl);
+			resp = readResponse(chnl);
+			if (resp == OpKind.RESP_OK) {
+				req.clear();
+				req.putLong(content.capacity());
+				req.flip();
+				content.clear();
+				ByteBuffer[] file = { req, content };
+				while (content.hasRemaining()) {
+					chnl.write(file);
+				}
+			}
+			record(OpKind.OP_ENDEDIT, resp, System.nanoTime() - edited);
+		}
+
+		@Override
+		public void run() {
+			long next = System.nanoTime();
+			if (interval > 0) {
+				// Spreads the connections over the interval
+				next += (interval * id) / nusers;
+			}
+			try {
+				while (running) {
+					OpKind op = pickOp();
+					long intended;
+					if (interval > 0) {
+						long wait = next - System.nanoTime();
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+						}
+						intended = next;
+						next += interval;
+					}
+					else {
+						intended = System.nanoTime();
+					}
+					runOp(op, intended);
+				}
+			}
+			catch (IOException | ChannelClosedException e) {
+				if (running) {
+					failed_connections.incrementAndGet();
+					System.out.println("Connection of " + usr + " failed: " + e.toString());
+				}
+			}
+			finally {
+				try {
+					chnl.close();
+				}
+				catch (IOException e) {
+					// Nothing to do
+				}
+			}
+		}
+	}
+
+	// =============================== DRIVER ================================
+	private void register(RegistrationInterface registration, String usr) throws RemoteException, InternalServerException, InvalidUsernameException {
+		try {
+			registration.register(usr, pwd);
+		}
+		catch (UsernameAlreadyInUseException e) {
+			// Left by a previous run with the same prefix
+		}
+	}
+
+	private void run(RegistrationInterface registration) throws Exception {
+		boolean logins = false;
+		for (int i = 0; i < mix_ops.length; ++i) {
+			logins |= mix_ops[i] == OpKind.OP_LOGIN && mix_weights[i] > 0;
+		}
+		for (int i = 0; i < nusers; ++i) {
+			register(registration, username(i));
+			if (logins) {
+				register(registration, username(i) + login_suffix);
+			}
+		}
+		List<Client> clients = new ArrayList<Client>(nusers);
+		for (int i = 0; i < nusers; ++i) {
+			Client c = new Client(i);
+			c.setup();
+			clients.add(c);
+		}
+		System.out.println(Integer.toString(nusers) + " users ready, "
+			+ (interval > 0 ? "open loop at " + Long.toString(nusers * second / interval) + " req/s" : "closed loop"));
+
+		List<Thread> threads = new ArrayList<Thread>(nusers);
+		for (Client c : clients) {
+			Thread t = new Thread(c, c.usr);
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+		Thread.sleep(warmup / 1000000);
+		recording = true;
+		long start = System.nanoTime();
+		long end = start + duration;
+		long last = 0;
+		long now;
+		while ((now = System.nanoTime()) < end) {
+			Thread.sleep(Math.min(5 * second, end - now) / 1000000);
+			long done = completed.get();
+			System.out.println(String.format("%6.1fs %10.1f req/s", (System.nanoTime() - start) / 1e9,
+				(done - last) * 1e9 / Math.min(5 * second, end - now)));
+			last = done;
+		}
+		recording = false;
+		long elapsed = System.nanoTime() - start;
+		running = false;
+		report(elapsed);
+		for (Client c : clients) {
+			c.chnl.close();
+		}
+		for (Thread t : threads) {
+			t.join(1000);
+		}
+	}
+
+	private void report(long elapsed) {
+		System.out.println(String.format("%-12s %10s %10s %10s %10s %10s %10s %10s",
+			"op", "count", "req/s", "p50 us", "p90 us", "p99 us", "p999 us", "max us"));
+		for (Map.Entry<OpKind, LatencyHistogram> e : latencies.entrySet()) {
+			LatencyHistogram h = e.getValue();
+			if (h.getCount() == 0) {
+				continue;
+			}
+			System.out.println(String.format("%-12s %10d %10.1f %10d %10d %10d %10d %10d",
+				e.getKey().toString(), h.getCount(), h.getCount() * 1e9 / elapsed,
+				h.getPercentile(50) / 1000, h.getPercentile(90) / 1000, h.getPercentile(99) / 1000,
+				h.getPercentile(99.9) / 1000, h.getMax() / 1000));
+		}
+		System.out.println(String.format("total %.1f req/s", completed.get() * 1e9 / elapsed));
+		for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(errors).entrySet()) {
+			System.out.println("error " + e.getKey() + " " + Long.toString(e.getValue().get()));
+		}
+		System.out.println("invites_received " + Long.toString(invites_received.get()));
+		System.out.println("failed_connections " + Long.toString(failed_connections.get()));
+	}
+
+	public static void main(String[] args) throws Exception {
+		ServerConfig config;
+		LoadGen gen;
+		try {
+			config = ServerConfig.parse(args, 0);
+			gen = new LoadGen(config);
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("Wrong arguments: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		Registry r = LocateRegistry.getRegistry(gen.host, config.getInt("rmi", 12345, 12345));
+		gen.run((RegistrationInterface)r.lookup(Constants.rmi_registry_name));
+		System.exit(0);
+	}
+}
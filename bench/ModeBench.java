@@ -0,0 +1,147 @@
+package bench;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import server.*;
+import server.lib.*;
+
+/**
+ * Side-by-side throughput of TURING server run modes with many connections.
+ * <p>
+ * For each number of connections and each server configuration an
+ * in-process server is started on a fresh db, every connection logs in with
+ * its own user and then sends OP_LISTDOCS back to back. Clients are driven
+ * by a single selector, so that the benchmark itself doesn't need a thread
+ * per connection. The number of completed operations per second is printed
+ * for each combination.
+ * <p>
+ * Usage: {@code ModeBench [seconds] [connections,...] [config...]}, where
+ * each config is a comma-separated list of server options. By default runs
+ * 1000 and 10000 connections against the selector mode and the virtual
+ * thread mode (which needs Java 21), both with the in-memory storage so
+ * that the disk doesn't count. Client and server share the process,
+ * so the limit of open files must be above twice the connections.
+ */
+public class ModeBench {
+	private static final String pwd = "password";
+	// Response to OP_LISTDOCS for a user without documents: RESP_OK and 0
+	private static final int response_size = 1 + Integer.BYTES;
+
+	private static int freePort() throws IOException {
+		try (
+			ServerSocket s = new ServerSocket(0);
+		) {
+			return s.getLocalPort();
+		}
+	}
+
+	private static SocketChannel login(int port, String usr) throws IOException, ChannelClosedException {
+		SocketChannel chnl = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+		IOUtils.writeOpKind(OpKind.OP_LOGIN, chnl);
+		IOUtils.writeString(usr, chnl);
+		IOUtils.writeString(pwd, chnl);
+		if (IOUtils.readOpKind(chnl) != OpKind.RESP_OK) {
+			throw new IOException("Login of " + usr + " failed");
+		}
+		return chnl;
+	}
+
+	private static void sendRequest(SocketChannel chnl) throws IOException {
+		ByteBuffer req = ByteBuffer.allocate(1);
+		req.put(OpKind.getNum(OpKind.OP_LISTDOCS));
+		req.flip();
+		while (req.hasRemaining()) {
+			chnl.write(req);
+		}
+	}
+
+	/**
+	 * Runs the benchmark on a server with the given options.
+	 *
+	 * @return completed operations per second
+	 */
+	private static double runConfig(String[] options, int nconn, int seconds) throws Exception {
+		Path db = Files.createTempDirectory("turingbench");
+		int port = freePort();
+		TURINGServer server = new TURINGServer(freePort(), port, db.toString() + "/",
+				ServerConfig.parse(options, 0));
+		Thread server_thread = new Thread(server);
+		server_thread.setDaemon(true);
+		server_thread.start();
+
+		Selector selector = Selector.open();
+		List<SocketChannel> chnls = new ArrayList<SocketChannel>(nconn);
+		for (int i = 0; i < nconn; ++i) {
+			String usr = "bench" + Integer.toString(i);
+			server.register(usr, pwd);
+			SocketChannel chnl = login(port, usr);
+			chnl.configureBlocking(false);
+			chnl.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(response_size));
+			chnls.add(chnl);
+		}
+		for (SocketChannel chnl : chnls) {
+			sendRequest(chnl);
+		}
+
+		long ops = 0;
+		long now = System.nanoTime();
+		long start = now + Math.max(1, seconds / 5) * 1000000000L;
+		long end = start + seconds * 1000000000L;
+		while (now < end) {
+			selector.select(100);
+			now = System.nanoTime();
+			for (SelectionKey key : selector.selectedKeys()) {
+				SocketChannel chnl = (SocketChannel)key.channel();
+				ByteBuffer resp = (ByteBuffer)key.attachment();
+				if (chnl.read(resp) == -1) {
+					throw new IOException("Connection closed by the server");
+				}
+				if (!resp.hasRemaining()) {
+					resp.clear();
+					if (now >= start) {
+						++ops;
+					}
+					sendRequest(chnl);
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+		for (SocketChannel chnl : chnls) {
+			chnl.close();
+		}
+		selector.close();
+		return ops * 1e9 / (end - start);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String conns = args.length > 1 ? args[1] : "1000,10000";
+		List<String> configs = new ArrayList<String>();
+		for (int i = 2; i < args.length; ++i) {
+			configs.add(args[i]);
+		}
+		if (configs.isEmpty()) {
+			configs.add("--mode=selector,--storage=memory");
+			configs.add("--mode=virtual,--storage=memory");
+		}
+
+		// The server logs every operation, keep it out of the results
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		}));
+		out.println(Integer.toString(seconds) + "s per configuration");
+		for (String nconn : conns.split(",")) {
+			for (String config : configs) {
+				double throughput = runConfig(config.split(","), Integer.parseInt(nconn), seconds);
+				out.println(String.format("%6s connections  %-30s %12.1f ops/s", nconn, config, throughput));
+			}
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,134 @@
+package bench;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import server.*;
+import server.lib.*;
+
+/**
+ * Throughput comparison between the single selector loop and the sharded
+ * reactors of TURING server.
+ * <p>
+ * For each configuration an in-process server is started on a fresh db, then
+ * a number of clients log in and send OP_LISTDOCS back to back over loopback
+ * for a fixed amount of time. The number of completed operations per second
+ * is printed for each configuration.
+ * <p>
+ * Usage: {@code ReactorBench [connections] [seconds] [reactors...]}, where
+ * each reactors value is passed as {@code --reactors} to a server (0 is the
+ * single selector loop). By default compares 0 with the number of cores. The
+ * servers keep their db in memory, so that the disk doesn't count.
+ */
+public class ReactorBench {
+	private static final String pwd = "password";
+
+	private static int freePort() throws IOException {
+		try (
+			ServerSocket s = new ServerSocket(0);
+		) {
+			return s.getLocalPort();
+		}
+	}
+
+	private static SocketChannel login(int port, String usr) throws IOException, ChannelClosedException {
+		SocketChannel chnl = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+		IOUtils.writeOpKind(OpKind.OP_LOGIN, chnl);
+		IOUtils.writeString(usr, chnl);
+		IOUtils.writeString(pwd, chnl);
+		if (IOUtils.readOpKind(chnl) != OpKind.RESP_OK) {
+			throw new IOException("Login of " + usr + " failed");
+		}
+		return chnl;
+	}
+
+	/**
+	 * Runs the benchmark on a server with the given number of reactors.
+	 *
+	 * @return completed operations per second
+	 */
+	private static double runConfig(int nreactors, int nconn, int seconds) throws Exception {
+		Path db = Files.createTempDirectory("turingbench");
+		int port = freePort();
+		TURINGServer server = new TURINGServer(freePort(), port, db.toString() + "/",
+				ServerConfig.parse(new String[] { "--reactors=" + Integer.toString(nreactors), "--storage=memory" }, 0));
+		Thread server_thread = new Thread(server);
+		server_thread.setDaemon(true);
+		server_thread.start();
+
+		SocketChannel[] chnls = new SocketChannel[nconn];
+		for (int i = 0; i < nconn; ++i) {
+			String usr = "bench" + Integer.toString(i);
+			server.register(usr, pwd);
+			chnls[i] = login(port, usr);
+		}
+
+		final AtomicLong ops = new AtomicLong(0);
+		final AtomicBoolean measuring = new AtomicBoolean(false);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		Thread[] clients = new Thread[nconn];
+		for (int i = 0; i < nconn; ++i) {
+			final SocketChannel chnl = chnls[i];
+			clients[i] = new Thread(() -> {
+				try {
+					while (!stop.get()) {
+						IOUtils.writeOpKind(OpKind.OP_LISTDOCS, chnl);
+						IOUtils.readOpKind(chnl);
+						IOUtils.readInt(chnl);
+						if (measuring.get()) {
+							ops.incrementAndGet();
+						}
+					}
+				}
+				catch (Exception e) {
+					System.err.println("Client error: " + e.getMessage());
+				}
+			});
+			clients[i].start();
+		}
+		// Warmup, then measure
+		Thread.sleep(Math.max(1, seconds / 5) * 1000L);
+		measuring.set(true);
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		measuring.set(false);
+		long elapsed = System.nanoTime() - start;
+		stop.set(true);
+		for (Thread t : clients) {
+			t.join();
+		}
+		for (SocketChannel chnl : chnls) {
+			chnl.close();
+		}
+		return ops.get() * 1e9 / elapsed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nconn = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		List<Integer> configs = new ArrayList<Integer>();
+		for (int i = 2; i < args.length; ++i) {
+			configs.add(Integer.parseInt(args[i]));
+		}
+		if (configs.isEmpty()) {
+			configs.add(0);
+			configs.add(Runtime.getRuntime().availableProcessors());
+		}
+
+		// The server logs every operation, keep it out of the results
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		}));
+		out.println(Integer.toString(nconn) + " connections, " + Integer.toString(seconds) + "s per configuration");
+		for (int nreactors : configs) {
+			double throughput = runConfig(nreactors, nconn, seconds);
+			out.println(String.format("reactors=%-3d %12.1f ops/s", nreactors, throughput));
+		}
+		System.exit(0);
+	}
+}
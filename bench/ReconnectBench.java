@@ -0,0 +1,325 @@
+package bench;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import server.*;
+import server.lib.*;
+
+/**
+ * Mass reconnection after a network blip: every user reconnects at the same
+ * time, first logging in with the password and then resuming the session
+ * with the token of the previous login.
+ * <p>
+ * For each server configuration an in-process server is started on a fresh
+ * db, each user logs in once and disconnects, then all of them reconnect
+ * together with OP_LOGIN, disconnect again and reconnect together with
+ * OP_RESUME. Clients are driven by a single selector, as in
+ * {@link ModeBench}: all the connections are opened at once, each sends its
+ * request when connected and closes once answered. Tokens are issued only
+ * in pipelined mode, so each connection sends OP_PIPELINE first, together
+ * with the tagged login. Refused requests (ERR_RETRY) are sent again, and
+ * users whose previous connection the server hasn't closed yet
+ * (ERR_USERNAME_BUSY) reconnect. For each storm the time until every user
+ * is back, the reconnections per second and the median and 99th percentile
+ * of the time of each user are printed.
+ * <p>
+ * Usage: {@code ReconnectBench [users] [max_inflight] [config...]}, where
+ * each config is a comma-separated list of server options. By default 10000
+ * users, all in flight together, against the file storage with a metadata
+ * cache of 1 MB, so that about half the users aren't cached and logging
+ * them in reads their files. Client and server share the process, so the
+ * limit of open files must be above twice max_inflight.
+ */
+public class ReconnectBench {
+	private static final String pwd = "password";
+
+	/**
+	 * A reconnecting user, attached to the key of their connection.
+	 */
+	private static final class Client {
+		private final int user;
+		// What's left to send: OP_PIPELINE and the login, or only the login
+		// when it's sent again
+		private ByteBuffer req;
+		private final ByteBuffer login;
+		// Response, as much as received, and where the response to the login
+		// begins in it: after the ack of OP_PIPELINE, if it's expected
+		private ByteBuffer resp;
+		private int login_resp;
+		private final long start;
+
+		private Client(int user_set, ByteBuffer req_set, long start_set) {
+			user = user_set;
+			req = req_set;
+			login = req.duplicate();
+			login.position(1);
+			resp = ByteBuffer.allocate(64);
+			login_resp = 1;
+			start = start_set;
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try (
+			ServerSocket s = new ServerSocket(0);
+		) {
+			return s.getLocalPort();
+		}
+	}
+
+	private static String username(int i) {
+		return "bench" + Integer.toString(i);
+	}
+
+	/**
+	 * Closes a connection without leaving it in TIME_WAIT, so that the
+	 * storms don't run out of local ports.
+	 */
+	private static void abort(SocketChannel chnl) throws IOException {
+		chnl.setOption(StandardSocketOptions.SO_LINGER, 0);
+		chnl.close();
+	}
+
+	/**
+	 * Builds OP_PIPELINE followed by a request with ID 0.
+	 */
+	private static ByteBuffer request(OpKind op, String... fields) {
+		int size = 2 + Integer.BYTES;
+		for (String f : fields) {
+			size += StringCodec.maxEncodedSize(f);
+		}
+		ByteBuffer req = ByteBuffer.allocate(size);
+		req.put(OpKind.getNum(OpKind.OP_PIPELINE));
+		req.putInt(0);
+		req.put(OpKind.getNum(op));
+		for (String f : fields) {
+			StringCodec.encode(f, req);
+		}
+		req.flip();
+		return req;
+	}
+
+	private static ByteBuffer reconnectRequest(boolean resume, int user, String[] tokens) {
+		return resume ? request(OpKind.OP_RESUME, tokens[user]) : request(OpKind.OP_LOGIN, username(user), pwd);
+	}
+
+	private static void connect(Selector selector, InetSocketAddress addr, Client client) throws IOException {
+		SocketChannel chnl = SocketChannel.open();
+		chnl.configureBlocking(false);
+		if (chnl.connect(addr)) {
+			chnl.register(selector, SelectionKey.OP_WRITE, client);
+		}
+		else {
+			chnl.register(selector, SelectionKey.OP_CONNECT, client);
+		}
+	}
+
+	/**
+	 * Parses the response of a client, if it has arrived completely.
+	 *
+	 * @return the response code of the login, or null if more bytes are
+	 *         needed. If it's RESP_OK the new token is put in tokens
+	 */
+	private static OpKind parseResponse(Client client, String[] tokens) {
+		ByteBuffer resp = client.resp;
+		if (client.login_resp > 0 && resp.position() >= 1 && OpKind.getOp(resp.get(0)) != OpKind.RESP_OK) {
+			return OpKind.getOp(resp.get(0));
+		}
+		// After the ack, the ID of the login and its response
+		int base = client.login_resp + Integer.BYTES;
+		if (resp.position() < base + 1) {
+			return null;
+		}
+		OpKind op = OpKind.getOp(resp.get(base));
+		if (op != OpKind.RESP_OK) {
+			return op;
+		}
+		if (resp.position() < base + 1 + Integer.BYTES) {
+			return null;
+		}
+		int len = resp.getInt(base + 1);
+		int end = base + 1 + Integer.BYTES + len;
+		if (resp.position() < end) {
+			if (resp.capacity() < end) {
+				ByteBuffer bigger = ByteBuffer.allocate(end);
+				resp.flip();
+				bigger.put(resp);
+				client.resp = bigger;
+			}
+			return null;
+		}
+		byte[] token = new byte[len];
+		for (int i = 0; i < len; ++i) {
+			token[i] = resp.get(base + 1 + Integer.BYTES + i);
+		}
+		tokens[client.user] = new String(token, IOUtils.encoding);
+		return op;
+	}
+
+	/**
+	 * Reconnects all the users together, at most max_inflight at a time.
+	 *
+	 * @param resume true to resume with the tokens, false to log in with the
+	 *               password
+	 * @param tokens token of each user, replaced by the new ones
+	 * @return the time each user took to log in again, in nanoseconds, and
+	 *         as last element the time until all of them were back
+	 */
+	private static long[] storm(int port, int nusers, int max_inflight, boolean resume, String[] tokens) throws IOException {
+		InetSocketAddress addr = new InetSocketAddress("127.0.0.1", port);
+		Selector selector = Selector.open();
+		long[] result = new long[nusers + 1];
+		// Users not yet connected, including the ones that must reconnect
+		Deque<Integer> waiting = new ArrayDeque<Integer>();
+		for (int i = 0; i < nusers; ++i) {
+			waiting.add(i);
+		}
+		Map<Integer, Long> first_start = new HashMap<Integer, Long>();
+		long begin = System.nanoTime();
+		int inflight = 0, done = 0;
+		while (done < nusers) {
+			while (inflight < max_inflight && !waiting.isEmpty()) {
+				int user = waiting.poll();
+				long now = System.nanoTime();
+				first_start.putIfAbsent(user, now);
+				connect(selector, addr, new Client(user, reconnectRequest(resume, user, tokens), first_start.get(user)));
+				++inflight;
+			}
+			selector.select(100);
+			for (SelectionKey key : selector.selectedKeys()) {
+				SocketChannel chnl = (SocketChannel)key.channel();
+				Client client = (Client)key.attachment();
+				if (key.isConnectable()) {
+					chnl.finishConnect();
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+				else if (key.isWritable()) {
+					chnl.write(client.req);
+					if (!client.req.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ);
+					}
+				}
+				else if (key.isReadable()) {
+					if (chnl.read(client.resp) == -1) {
+						throw new IOException("Connection closed by the server");
+					}
+					OpKind op = parseResponse(client, tokens);
+					if (op == null) {
+						continue;
+					}
+					if (op == OpKind.ERR_RETRY) {
+						// Same connection, same request, already in
+						// pipelined mode
+						client.req = client.login.duplicate();
+						client.resp.clear();
+						client.login_resp = 0;
+						key.interestOps(SelectionKey.OP_WRITE);
+						continue;
+					}
+					key.cancel();
+					abort(chnl);
+					--inflight;
+					if (op == OpKind.ERR_USERNAME_BUSY) {
+						waiting.add(client.user);
+					}
+					else if (op == OpKind.RESP_OK) {
+						result[client.user] = System.nanoTime() - client.start;
+						++done;
+					}
+					else {
+						throw new IOException("Reconnection of " + username(client.user) + " failed: " + op.toString());
+					}
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+		result[nusers] = System.nanoTime() - begin;
+		selector.close();
+		return result;
+	}
+
+	private static String summary(String name, long[] times) {
+		int nusers = times.length - 1;
+		long total = times[nusers];
+		long[] each = Arrays.copyOf(times, nusers);
+		Arrays.sort(each);
+		return String.format("  %-7s all back in %8.1f ms  %10.1f reconnects/s  p50 %7.1f ms  p99 %7.1f ms",
+				name, total / 1e6, nusers * 1e9 / total, each[nusers / 2] / 1e6, each[(int)(nusers * 0.99)] / 1e6);
+	}
+
+	/**
+	 * Runs the two storms on a server with the given options.
+	 */
+	private static void runConfig(String[] options, int nusers, int max_inflight, PrintStream out) throws Exception {
+		Path db = Files.createTempDirectory("turingbench");
+		int port = freePort();
+		TURINGServer server = new TURINGServer(freePort(), port, db.toString() + "/",
+				ServerConfig.parse(options, 0));
+		Thread server_thread = new Thread(server);
+		server_thread.setDaemon(true);
+		server_thread.start();
+
+		// First login of everyone, to get the tokens
+		String[] tokens = new String[nusers];
+		for (int i = 0; i < nusers; ++i) {
+			server.register(username(i), pwd);
+			SocketChannel chnl = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			IOUtils.writeOpKind(OpKind.OP_PIPELINE, chnl);
+			if (IOUtils.readOpKind(chnl) != OpKind.RESP_OK) {
+				throw new IOException("Pipelined mode refused");
+			}
+			OpKind resp = OpKind.ERR_RETRY;
+			while (resp == OpKind.ERR_RETRY) {
+				IOUtils.writeInt(0, chnl);
+				IOUtils.writeOpKind(OpKind.OP_LOGIN, chnl);
+				IOUtils.writeString(username(i), chnl);
+				IOUtils.writeString(pwd, chnl);
+				IOUtils.readInt(chnl);
+				resp = IOUtils.readOpKind(chnl);
+			}
+			if (resp != OpKind.RESP_OK) {
+				throw new IOException("Login of " + username(i) + " failed");
+			}
+			tokens[i] = IOUtils.readString(chnl);
+			abort(chnl);
+		}
+		if (tokens[0].isEmpty()) {
+			throw new IllegalArgumentException("The server doesn't resume sessions");
+		}
+		// Gives the server the time to notice that the connections of the
+		// previous round have been closed
+		Thread.sleep(2000);
+		out.println(summary("login", storm(port, nusers, max_inflight, false, tokens)));
+		Thread.sleep(2000);
+		out.println(summary("resume", storm(port, nusers, max_inflight, true, tokens)));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nusers = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int max_inflight = args.length > 1 ? Integer.parseInt(args[1]) : nusers;
+		List<String> configs = new ArrayList<String>();
+		for (int i = 2; i < args.length; ++i) {
+			configs.add(args[i]);
+		}
+		if (configs.isEmpty()) {
+			configs.add("--storage=files,--meta-cache=1");
+		}
+
+		// The server logs every operation, keep it out of the results
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+		}));
+		out.println(Integer.toString(nusers) + " users, " + Integer.toString(max_inflight) + " in flight");
+		for (String config : configs) {
+			out.println(config);
+			runConfig(config.split(","), nusers, max_inflight, out);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Microbenchmark of the per-operation cost of giving a connection back to a
+ * selector.
+ * <p>
+ * A client and a server end of a loopback connection play ping-pong of one
+ * byte, with the server end handled by a selector. After each ping the
+ * server end is taken out of the selector and put back as TURING server
+ * does, either the old way (cancel the key, switch to blocking mode to
+ * answer, switch back and register again) or the current one (switch the
+ * read interest off and on, keeping the key). A plain ping-pong is measured
+ * too, as the baseline.
+ * <p>
+ * Usage: {@code ReregisterBench [iterations]}
+ */
+public class ReregisterBench {
+	private enum Mode { BASELINE, REREGISTER, INTEREST }
+
+	private static double run(Mode mode, int iterations) throws IOException {
+		try (
+			ServerSocketChannel listener = ServerSocketChannel.open();
+		) {
+			listener.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+			SocketChannel server = listener.accept();
+			client.socket().setTcpNoDelay(true);
+			server.socket().setTcpNoDelay(true);
+			Selector selector = Selector.open();
+			server.configureBlocking(false);
+			SelectionKey key = server.register(selector, SelectionKey.OP_READ);
+			ByteBuffer ping = ByteBuffer.allocate(1);
+			ByteBuffer pong = ByteBuffer.allocate(1);
+
+			long start = 0;
+			// First tenth of the iterations is warmup
+			int warmup = iterations / 10;
+			for (int i = 0; i < warmup + iterations; ++i) {
+				if (i == warmup) {
+					start = System.nanoTime();
+				}
+				ping.clear();
+				client.write(ping);
+				selector.select();
+				selector.selectedKeys().clear();
+				pong.clear();
+				server.read(pong);
+				pong.flip();
+				switch (mode) {
+					case BASELINE:
+						server.write(pong);
+						break;
+					case REREGISTER:
+						key.cancel();
+						// The key is deregistered by the next selection
+						selector.selectNow();
+						server.configureBlocking(true);
+						server.write(pong);
+						server.configureBlocking(false);
+						key = server.register(selector, SelectionKey.OP_READ);
+						break;
+					case INTEREST:
+						key.interestOps(0);
+						server.write(pong);
+						key.interestOps(SelectionKey.OP_READ);
+						break;
+				}
+				ping.clear();
+				client.read(ping);
+			}
+			long elapsed = System.nanoTime() - start;
+			selector.close();
+			client.close();
+			server.close();
+			return (double)elapsed / iterations;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		// Run everything twice, reporting the second round
+		for (int round = 0; round < 2; ++round) {
+			double baseline = run(Mode.BASELINE, iterations);
+			double reregister = run(Mode.REREGISTER, iterations);
+			double interest = run(Mode.INTEREST, iterations);
+			if (round == 1) {
+				System.out.println(String.format("baseline ping-pong     %10.0f ns/op", baseline));
+				System.out.println(String.format("cancel + re-register   %10.0f ns/op (%+.0f)", reregister, reregister - baseline));
+				System.out.println(String.format("interest ops toggle    %10.0f ns/op (%+.0f)", interest, interest - baseline));
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package bench.jmh;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Channels and files used by the benchmarks.
+ */
+final class Channels {
+	private Channels() {}
+
+	/**
+	 * Channel that discards everything written to it.
+	 */
+	static final class NullChannel implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			return len;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	/**
+	 * Channel that repeats the same content forever. Reads fill the whole
+	 * destination, so consecutive reads see consecutive copies of content.
+	 */
+	static final class LoopChannel implements ReadableByteChannel {
+		private final byte[] content;
+		private int pos;
+
+		LoopChannel(byte[] content_set) {
+			content = content_set;
+			pos = 0;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			int len = dst.remaining();
+			while (dst.hasRemaining()) {
+				if (pos == content.length) {
+					pos = 0;
+				}
+				int n = Math.min(dst.remaining(), content.length - pos);
+				dst.put(content, pos, n);
+				pos += n;
+			}
+			return len;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	/**
+	 * Reads exactly n bytes from a blocking channel, discarding them.
+	 *
+	 * @param chnl channel to read from
+	 * @param n number of bytes
+	 * @param buff buffer to use
+	 * @throws EOFException if the channel is closed before
+	 */
+	static void skip(ReadableByteChannel chnl, long n, ByteBuffer buff) throws IOException {
+		while (n > 0) {
+			buff.clear();
+			if (n < buff.capacity()) {
+				buff.limit((int)n);
+			}
+			int read = chnl.read(buff);
+			if (read == -1) {
+				throw new EOFException();
+			}
+			n -= read;
+		}
+	}
+
+	/**
+	 * Writes a whole buffer to a blocking channel.
+	 */
+	static void writeFully(WritableByteChannel chnl, ByteBuffer buff) throws IOException {
+		while (buff.hasRemaining()) {
+			chnl.write(buff);
+		}
+	}
+
+	/**
+	 * Deletes a directory and everything inside it, ignoring errors.
+	 *
+	 * @param dir the directory
+	 */
+	static void deleteTree(Path dir) {
+		if (dir == null) {
+			return;
+		}
+		try {
+			Files.walk(dir)
+				.sorted((a, b) -> b.compareTo(a))
+				.forEach(p -> p.toFile().delete());
+		}
+		catch (IOException e) {
+			// Only temporary files, nothing to do
+		}
+	}
+}
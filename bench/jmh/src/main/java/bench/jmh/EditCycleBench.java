@@ -0,0 +1,168 @@
+package bench.jmh;
+
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+import server.*;
+
+/**
+ * Edit cycles on DBInterface: each operation is an editSection followed by
+ * the finishEditSection of the same section, as for OP_EDIT and OP_ENDEDIT.
+ * <p>
+ * Every benchmark thread is a different user editing a different section,
+ * so edits never fail and threads only contend on the locks of DBInterface.
+ * With layout "shared" all sections are in the same document, with "own"
+ * each user edits a document of their own. With storage "files" the db is
+ * kept by a {@link FileEngine}, with "log" by a {@link LogEngine}, with
+ * "memory" by a {@link MemoryEngine}. fsync chooses how files and log force
+ * writes to disk: "off" never, "each" on every write, "group" with a
+ * {@link GroupCommit}.
+ * <p>
+ * scanSections gets the number of sections of the shared document and
+ * checks whether each of them is being edited, as OP_SHOWDOC does; the "mixed" group runs it alongside edit
+ * cycles, so that readers and editors run at the same time.
+ * <p>
+ * The number of threads is chosen with JMH's {@code -t}, up to max_threads;
+ * the main of this class runs the benchmark with 1 to 64 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EditCycleBench {
+	public static final int max_threads = 64;
+	private static final String owner = "owner";
+	private static final String doc = "doc";
+
+	@State(Scope.Benchmark)
+	public static class Db {
+		@Param({ "shared", "own" })
+		public String layout;
+
+		// Size of the new content of a section, in bytes
+		@Param({ "1024", "65536" })
+		public int content_size;
+
+		@Param({ "files", "log", "memory" })
+		public String storage;
+
+		@Param({ "off", "each", "group" })
+		public String fsync;
+
+		private Path dir;
+		private DBInterface db;
+		private byte[] content;
+		private Section[] shared_sections;
+		private final AtomicInteger next_user = new AtomicInteger(0);
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			dir = Files.createTempDirectory("turing-jmh");
+			StorageEngine engine;
+			GroupCommit.Mode sync = GroupCommit.Mode.parse(fsync);
+			if ("log".equals(storage)) {
+				engine = new LogEngine(dir.resolve("db"), LogEngine.default_segment_bytes, sync);
+			}
+			else if ("memory".equals(storage)) {
+				engine = new MemoryEngine();
+			}
+			else {
+				engine = new FileEngine(dir.resolve("db"), sync);
+			}
+			db = new DBInterface(engine, DBInterface.default_stripes, DBInterface.default_cache_bytes);
+			db.createUser(owner, "pwd");
+			db.createDocument(owner, doc, max_threads);
+			for (int i = 0; i < max_threads; ++i) {
+				String usr = "user" + Integer.toString(i);
+				db.createUser(usr, "pwd");
+				if ("own".equals(layout)) {
+					db.createDocument(usr, doc, 1);
+				}
+				else {
+					db.invite(owner, doc, usr, false);
+				}
+			}
+			shared_sections = new Section[max_threads];
+			for (int i = 0; i < max_threads; ++i) {
+				shared_sections[i] = new Section(owner, doc, i);
+			}
+			content = new byte[content_size];
+			new Random(42).nextBytes(content);
+		}
+
+		@TearDown(Level.Trial)
+		public void teardown() throws Exception {
+			db.close();
+			Channels.deleteTree(dir);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Editor {
+		private String usr;
+		private Section sec;
+		private ByteBuffer content;
+
+		@Setup(Level.Trial)
+		public void setup(Db db) {
+			int id = db.next_user.getAndIncrement();
+			if (id >= max_threads) {
+				throw new IllegalStateException("At most " + Integer.toString(max_threads) + " threads");
+			}
+			usr = "user" + Integer.toString(id);
+			sec = "own".equals(db.layout) ? new Section(usr, doc, 0) : new Section(owner, doc, id);
+			content = ByteBuffer.wrap(db.content);
+		}
+	}
+
+	@Benchmark
+	public void editCycle(Db db, Editor editor) throws Exception {
+		db.db.editSection(editor.usr, editor.sec).close();
+		db.db.finishEditSection(editor.usr, editor.sec, editor.content.duplicate());
+	}
+
+	@Benchmark
+	public int scanSections(Db db) throws Exception {
+		int editing = 0;
+		int n = db.db.sectionNumber(owner, doc);
+		for (int i = 0; i < n; ++i) {
+			if (db.db.isBeingModified(db.shared_sections[i])) {
+				++editing;
+			}
+		}
+		return editing;
+	}
+
+	@Benchmark
+	@Group("mixed")
+	public void mixedEdit(Db db, Editor editor) throws Exception {
+		editCycle(db, editor);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	public int mixedScan(Db db) throws Exception {
+		return scanSections(db);
+	}
+
+	/**
+	 * Runs the benchmark with 1, 2, 4, ..., 64 threads. Other arguments are
+	 * passed to JMH, for instance {@code -p layout=shared}.
+	 */
+	public static void main(String[] args) throws Exception {
+		for (int t = 1; t <= max_threads; t *= 2) {
+			Options opt = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include(EditCycleBench.class.getName() + ".editCycle")
+				.threads(t)
+				.build();
+			new Runner(opt).run();
+		}
+	}
+}
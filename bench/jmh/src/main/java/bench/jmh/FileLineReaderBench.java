@@ -0,0 +1,64 @@
+package bench.jmh;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import server.lib.*;
+
+/**
+ * Reading files line by line with FileLineReader, which is used for every
+ * lookup in the files of the database (passwords, editors, permissions),
+ * and with IOUtils.searchRow looking for the last line, that is the worst
+ * case of a lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileLineReaderBench {
+	// Number of lines of the file, each about 20 bytes long
+	@Param({ "100", "10000", "1000000" })
+	public int lines;
+
+	private Path dir;
+	private Path file;
+	private String last;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("turing-jmh");
+		file = dir.resolve("rows");
+		try (BufferedWriter out = Files.newBufferedWriter(file, Constants.encoding)) {
+			for (int i = 0; i < lines; ++i) {
+				last = "username" + Integer.toString(i);
+				out.write(last);
+				out.write(IOUtils.linesep);
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		Channels.deleteTree(dir);
+	}
+
+	@Benchmark
+	public int iterate() throws IOException {
+		int total = 0;
+		try (FileLineReader reader = new FileLineReader(file)) {
+			for (String line : reader) {
+				total += line.length();
+			}
+		}
+		return total;
+	}
+
+	@Benchmark
+	public boolean searchLastRow() throws IOException {
+		return IOUtils.searchRow(file, last, 0);
+	}
+}
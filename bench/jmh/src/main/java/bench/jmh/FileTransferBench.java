@@ -0,0 +1,138 @@
+package bench.jmh;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import server.lib.*;
+
+/**
+ * Transfer of sections between files and loopback sockets with
+ * IOUtils.fileToChannel and IOUtils.channelToFile.
+ * <p>
+ * A peer thread is on the other end of the socket. To send, the benchmark
+ * writes the file and waits for the peer to acknowledge it has read it all;
+ * to receive, it asks the peer for a file and writes it to disk. Thus each
+ * operation is a whole transfer, as seen by a client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTransferBench {
+	// Size of the section in bytes: 1 KB to 100 MB
+	@Param({ "1024", "65536", "1048576", "104857600" })
+	public int size;
+
+	private static final byte cmd_receive = 1;
+	private static final byte cmd_send = 2;
+
+	private Path dir;
+	private Path source;
+	private Path dest;
+	private SocketChannel chnl;
+	private SocketChannel peer_chnl;
+	private Thread peer;
+	private ByteBuffer one;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("turing-jmh");
+		source = dir.resolve("source");
+		dest = dir.resolve("dest");
+		byte[] block = new byte[64 * 1024];
+		new Random(42).nextBytes(block);
+		try (FileChannel out = FileChannel.open(source, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			for (int written = 0; written < size; written += block.length) {
+				Channels.writeFully(out, ByteBuffer.wrap(block, 0, Math.min(block.length, size - written)));
+			}
+		}
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			chnl = SocketChannel.open(server.getLocalAddress());
+			peer_chnl = server.accept();
+		}
+		// Otherwise the command and the size, written separately, wait for
+		// delayed acks
+		chnl.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		peer_chnl.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		one = ByteBuffer.allocate(1);
+		peer = new Thread(this::runPeer, "peer");
+		peer.setDaemon(true);
+		peer.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException, InterruptedException {
+		chnl.close();
+		peer_chnl.close();
+		peer.join();
+		Channels.deleteTree(dir);
+	}
+
+	/**
+	 * Body of the peer: waits for a command, then either receives a file and
+	 * acknowledges it or sends one.
+	 */
+	private void runPeer() {
+		ByteBuffer cmd = ByteBuffer.allocate(1);
+		ByteBuffer sizebuff = ByteBuffer.allocate(Long.BYTES);
+		ByteBuffer buff = ByteBuffer.allocateDirect(64 * 1024);
+		try {
+			while (true) {
+				cmd.clear();
+				if (peer_chnl.read(cmd) == -1) {
+					return;
+				}
+				if (cmd.get(0) == cmd_send) {
+					IOUtils.fileToChannel(source, peer_chnl);
+				}
+				else {
+					sizebuff.clear();
+					while (sizebuff.hasRemaining()) {
+						if (peer_chnl.read(sizebuff) == -1) {
+							return;
+						}
+					}
+					Channels.skip(peer_chnl, sizebuff.getLong(0), buff);
+					cmd.flip();
+					Channels.writeFully(peer_chnl, cmd);
+				}
+			}
+		}
+		catch (IOException e) {
+			// Closed by teardown
+		}
+	}
+
+	private void command(byte cmd) throws IOException {
+		one.clear();
+		one.put(cmd).flip();
+		Channels.writeFully(chnl, one);
+	}
+
+	@Benchmark
+	public void fileToChannel() throws IOException {
+		command(cmd_receive);
+		IOUtils.fileToChannel(source, chnl);
+		// Wait for the acknowledgement
+		one.clear();
+		while (one.hasRemaining()) {
+			if (chnl.read(one) == -1) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	@Benchmark
+	public void channelToFile() throws IOException {
+		command(cmd_send);
+		IOUtils.channelToFile(chnl, dest);
+	}
+}
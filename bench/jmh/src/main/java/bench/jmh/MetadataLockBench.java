@@ -0,0 +1,114 @@
+package bench.jmh;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+import server.*;
+
+/**
+ * Contention on the user and document locks of DBInterface: every
+ * benchmark thread is a different user, logging in (checkUser), listing its
+ * documents, creating documents or inviting the next user to its document,
+ * so that threads never touch the same files. Except for createDocument,
+ * these are served by the metadata cache after the first time.
+ * <p>
+ * With stripes=1 every user shares the same lock, and every document the
+ * same other lock, as with the single lock DBInterface used to have; with
+ * the default number of stripes unrelated operations run in parallel.
+ * <p>
+ * The number of threads is chosen with JMH's {@code -t}, up to max_threads;
+ * the main of this class runs the benchmarks with 1 to 64 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataLockBench {
+	public static final int max_threads = 64;
+	private static final String pwd = "password";
+	private static final String doc = "doc";
+
+	@State(Scope.Benchmark)
+	public static class Db {
+		@Param({ "1", "64" })
+		public int stripes;
+
+		private Path dir;
+		private DBInterface db;
+		private final AtomicInteger next_user = new AtomicInteger(0);
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			dir = Files.createTempDirectory("turing-jmh");
+			db = new DBInterface(dir.resolve("db").toString(), stripes);
+			for (int i = 0; i < max_threads; ++i) {
+				String usr = "user" + Integer.toString(i);
+				db.createUser(usr, pwd);
+				db.createDocument(usr, doc, 1);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void teardown() {
+			Channels.deleteTree(dir);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class User {
+		private String usr;
+		private String next;
+		private int created = 0;
+
+		@Setup(Level.Trial)
+		public void setup(Db db) {
+			int id = db.next_user.getAndIncrement();
+			if (id >= max_threads) {
+				throw new IllegalStateException("At most " + Integer.toString(max_threads) + " threads");
+			}
+			usr = "user" + Integer.toString(id);
+			next = "user" + Integer.toString((id + 1) % max_threads);
+		}
+	}
+
+	@Benchmark
+	public boolean checkUser(Db db, User user) throws Exception {
+		return db.db.checkUser(user.usr, pwd);
+	}
+
+	@Benchmark
+	public Collection<String> listDocuments(Db db, User user) throws Exception {
+		return db.db.userModificableDocuments(user.usr);
+	}
+
+	@Benchmark
+	public boolean createDocument(Db db, User user) throws Exception {
+		return db.db.createDocument(user.usr, "new" + Integer.toString(user.created++), 1);
+	}
+
+	@Benchmark
+	public boolean invite(Db db, User user) throws Exception {
+		// Only the first one records the invitation, the others just check
+		return db.db.invite(user.usr, doc, user.next, false);
+	}
+
+	/**
+	 * Runs the benchmarks with 1, 2, 4, ..., 64 threads. Other arguments are
+	 * passed to JMH, for instance {@code -p stripes=64}.
+	 */
+	public static void main(String[] args) throws Exception {
+		for (int t = 1; t <= max_threads; t *= 2) {
+			Options opt = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include(MetadataLockBench.class.getName())
+				.threads(t)
+				.build();
+			new Runner(opt).run();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package bench.jmh;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import server.lib.*;
+
+/**
+ * Encoding and decoding of the primitives of the protocol with IOUtils.
+ * <p>
+ * Channels are in memory, so that only the codecs are measured: writes go to
+ * a channel discarding everything, reads come from a channel that repeats
+ * the encoding of a value forever. Run with {@code -prof gc} to get the
+ * allocation per operation too (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveCodecBench {
+	private WritableByteChannel sink;
+	private ReadableByteChannel bytes;
+	private ReadableByteChannel bools;
+	private ReadableByteChannel ints;
+	private ReadableByteChannel ops;
+
+	@Setup
+	public void setup() {
+		sink = new Channels.NullChannel();
+		bytes = new Channels.LoopChannel(new byte[] { 42 });
+		bools = new Channels.LoopChannel(new byte[] { 1 });
+		ints = new Channels.LoopChannel(ByteBuffer.allocate(Integer.BYTES).putInt(123456).array());
+		ops = new Channels.LoopChannel(new byte[] { OpKind.getNum(OpKind.OP_SHOWSEC) });
+	}
+
+	@Benchmark
+	public void writeByte() throws IOException {
+		IOUtils.writeByte((byte)42, sink);
+	}
+
+	@Benchmark
+	public byte readByte() throws IOException, ChannelClosedException {
+		return IOUtils.readByte(bytes);
+	}
+
+	@Benchmark
+	public void writeBool() throws IOException {
+		IOUtils.writeBool(true, sink);
+	}
+
+	@Benchmark
+	public boolean readBool() throws IOException, ChannelClosedException {
+		return IOUtils.readBool(bools);
+	}
+
+	@Benchmark
+	public void writeInt() throws IOException {
+		IOUtils.writeInt(123456, sink);
+	}
+
+	@Benchmark
+	public int readInt() throws IOException, ChannelClosedException {
+		return IOUtils.readInt(ints);
+	}
+
+	@Benchmark
+	public void writeOpKind() throws IOException {
+		IOUtils.writeOpKind(OpKind.OP_SHOWSEC, sink);
+	}
+
+	@Benchmark
+	public OpKind readOpKind() throws IOException, ChannelClosedException {
+		return IOUtils.readOpKind(ops);
+	}
+}
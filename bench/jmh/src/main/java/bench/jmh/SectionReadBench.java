@@ -0,0 +1,85 @@
+package bench.jmh;
+
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import server.*;
+
+/**
+ * Reads of whole documents as done by OP_SHOWDOC: every section of a
+ * document is opened with openSection, put in a Frame and written to a
+ * channel that discards it, then the frame is released.
+ * <p>
+ * With section_cache=0 every section is read from its file, otherwise the
+ * sections are served from the {@link SectionCache} (of that many MB) after
+ * the first time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SectionReadBench {
+	private static final String owner = "owner";
+	private static final String doc = "doc";
+	private static final int nsections = 16;
+
+	@Param({ "0", "64" })
+	public int section_cache;
+
+	// Size of each section, in bytes
+	@Param({ "1024", "65536" })
+	public int content_size;
+
+	private Path dir;
+	private DBInterface db;
+	private Section[] sections;
+	private Channels.NullChannel sink;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = Files.createTempDirectory("turing-jmh");
+		db = new DBInterface(new FileEngine(dir.resolve("db")), DBInterface.default_stripes,
+				DBInterface.default_cache_bytes, section_cache * 1024L * 1024);
+		db.createUser(owner, "pwd");
+		db.createDocument(owner, doc, nsections);
+		byte[] content = new byte[content_size];
+		new Random(42).nextBytes(content);
+		sections = new Section[nsections];
+		for (int i = 0; i < nsections; ++i) {
+			sections[i] = new Section(owner, doc, i);
+			db.editSection(owner, sections[i]).close();
+			db.finishEditSection(owner, sections[i], ByteBuffer.wrap(content));
+		}
+		sink = new Channels.NullChannel();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws Exception {
+		db.close();
+		Channels.deleteTree(dir);
+	}
+
+	@Benchmark
+	public long showDocument() throws Exception {
+		Frame frame = new Frame(false);
+		long written = 0;
+		try {
+			for (Section sec : sections) {
+				frame.putBool(db.isBeingModified(sec)).putBlob(db.openSection(sec));
+			}
+			for (Frame.Part p : frame.getParts()) {
+				while (p.hasRemaining()) {
+					written += p.isFile() ? p.transferTo(sink) : sink.write(p.getBuffer());
+				}
+			}
+		}
+		finally {
+			frame.release();
+		}
+		return written;
+	}
+}
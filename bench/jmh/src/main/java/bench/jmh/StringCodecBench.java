@@ -0,0 +1,62 @@
+package bench.jmh;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import server.lib.*;
+
+/**
+ * Encoding and decoding of strings with IOUtils, for ASCII strings (the fast
+ * path of StringCodec) and for strings with multi-byte characters.
+ * <p>
+ * Channels are in memory as in PrimitiveCodecBench.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringCodecBench {
+	@Param({ "ascii", "utf8" })
+	public String charset;
+
+	// Length in characters
+	@Param({ "16", "256", "4096" })
+	public int length;
+
+	private String str;
+	private WritableByteChannel sink;
+	private ReadableByteChannel encoded;
+
+	@Setup
+	public void setup() {
+		String alphabet = "ascii".equals(charset)
+			? "abcdefghijklmnopqrstuvwxyz0123456789"
+			: "abcàèìòù€ß日本語";
+		Random rnd = new Random(42);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) {
+			sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+		}
+		str = sb.toString();
+		sink = new Channels.NullChannel();
+		byte[] bytes = str.getBytes(Constants.encoding);
+		ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+		buff.putInt(bytes.length).put(bytes);
+		encoded = new Channels.LoopChannel(buff.array());
+	}
+
+	@Benchmark
+	public void writeString() throws IOException {
+		IOUtils.writeString(str, sink);
+	}
+
+	@Benchmark
+	public String readString() throws IOException, ChannelClosedException {
+		return IOUtils.readString(encoded);
+	}
+}
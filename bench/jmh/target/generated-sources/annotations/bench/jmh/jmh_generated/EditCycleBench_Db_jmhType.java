@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class EditCycleBench_Db_jmhType extends EditCycleBench_Db_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class EditCycleBench_Editor_jmhType extends EditCycleBench_Editor_jmhType_B3 {
+}
+
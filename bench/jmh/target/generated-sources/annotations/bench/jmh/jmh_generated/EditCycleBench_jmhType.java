@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class EditCycleBench_jmhType extends EditCycleBench_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class FileLineReaderBench_jmhType extends FileLineReaderBench_jmhType_B3 {
+}
+
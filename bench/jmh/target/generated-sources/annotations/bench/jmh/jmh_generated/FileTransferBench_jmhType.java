@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class FileTransferBench_jmhType extends FileTransferBench_jmhType_B3 {
+}
+
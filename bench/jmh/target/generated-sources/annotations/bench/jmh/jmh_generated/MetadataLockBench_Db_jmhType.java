@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class MetadataLockBench_Db_jmhType extends MetadataLockBench_Db_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class MetadataLockBench_User_jmhType extends MetadataLockBench_User_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class MetadataLockBench_jmhType extends MetadataLockBench_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class PrimitiveCodecBench_jmhType extends PrimitiveCodecBench_jmhType_B3 {
+}
+
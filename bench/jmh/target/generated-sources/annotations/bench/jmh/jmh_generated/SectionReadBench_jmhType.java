@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class SectionReadBench_jmhType extends SectionReadBench_jmhType_B3 {
+}
+
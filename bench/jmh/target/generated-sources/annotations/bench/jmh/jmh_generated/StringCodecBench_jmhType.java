@@ -0,0 +1,4 @@
+package bench.jmh.jmh_generated;
+public class StringCodecBench_jmhType extends StringCodecBench_jmhType_B3 {
+}
+
@@ -0,0 +1,173 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * A value read from a {@link StorageEngine}, ready to be sent: either a
+ * region of an open file or a buffer.
+ * <p>
+ * A file region keeps its own FileChannel, so it keeps the content it had
+ * when it was opened even if the value is later replaced. Whoever gets a
+ * Blob must close it, or hand it to a {@link Frame} that will.
+ */
+public final class Blob implements Closeable {
+	private final ByteBuffer buff;
+	private final FileChannel file;
+	private final long position;
+	private final long size;
+
+	private Blob(ByteBuffer buff_set, FileChannel file_set, long position_set, long size_set) {
+		buff = buff_set;
+		file = file_set;
+		position = position_set;
+		size = size_set;
+	}
+
+	/**
+	 * Creates a blob with the remaining bytes of a buffer.
+	 *
+	 * @param buff_set the buffer, ready to be read. It must not be modified
+	 *                 afterwards
+	 * @return the new blob
+	 */
+	public static Blob ofBuffer(ByteBuffer buff_set) {
+		return new Blob(buff_set.slice(), null, 0, buff_set.remaining());
+	}
+
+	/**
+	 * Creates a blob with a region of a file. The blob owns the channel, and
+	 * closes it when it's closed.
+	 *
+	 * @param file_set the channel, open for reading
+	 * @param position_set position of the first byte
+	 * @param size_set number of bytes
+	 * @return the new blob
+	 */
+	public static Blob ofRegion(FileChannel file_set, long position_set, long size_set) {
+		return new Blob(null, file_set, position_set, size_set);
+	}
+
+	/**
+	 * Creates a blob with a whole file.
+	 *
+	 * @param f path to the file
+	 * @return the new blob
+	 * @throws IOException if the file can't be opened
+	 */
+	public static Blob ofFile(Path f) throws IOException {
+		FileChannel file = FileChannel.open(f, StandardOpenOption.READ);
+		try {
+			return ofRegion(file, 0, file.size());
+		}
+		catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the size of the value.
+	 *
+	 * @return the number of bytes of the value
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Check whether this blob is a file region.
+	 *
+	 * @return true iff the value is read from a file
+	 */
+	public boolean isFile() {
+		return file != null;
+	}
+
+	/**
+	 * Get the content of a buffer blob.
+	 *
+	 * @return a new view of the buffer, ready to be read, or null if this
+	 *         blob is a file region
+	 */
+	public ByteBuffer getBuffer() {
+		return buff == null ? null : buff.duplicate();
+	}
+
+	/**
+	 * Get the channel of a file region.
+	 *
+	 * @return the channel, or null if this blob is a buffer
+	 */
+	public FileChannel getChannel() {
+		return file;
+	}
+
+	/**
+	 * Get the position of a file region in its file.
+	 *
+	 * @return the position of the first byte of the value
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Reads the whole value in memory. Meant for small values.
+	 *
+	 * @return a buffer with the value, ready to be read
+	 * @throws IOException if the file is shorter than expected, or if an IO
+	 *                     error occurs
+	 */
+	public ByteBuffer read() throws IOException {
+		if (buff != null) {
+			return buff.duplicate();
+		}
+		ByteBuffer result = ByteBuffer.allocate((int)size);
+		copyTo(result);
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * Copies the whole value to a buffer.
+	 *
+	 * @param dst buffer to copy to, with at least getSize() bytes remaining
+	 * @throws IOException if the file is shorter than expected, or if an IO
+	 *                     error occurs
+	 */
+	public void copyTo(ByteBuffer dst) throws IOException {
+		if (buff != null) {
+			dst.put(buff.duplicate());
+			return;
+		}
+		long file_pos = position;
+		long end = position + size;
+		int old_limit = dst.limit();
+		dst.limit(dst.position() + (int)size);
+		try {
+			while (file_pos < end) {
+				int read = file.read(dst, file_pos);
+				if (read == -1) {
+					throw new IOException("File truncated while being read");
+				}
+				file_pos += read;
+			}
+		}
+		finally {
+			dst.limit(old_limit);
+		}
+	}
+
+	/**
+	 * Closes the file of this blob, if any.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+}
@@ -5,6 +5,9 @@ package server;
  * <p>
  * This class holds informations on a chat state, like the last byte of the
  * address and the number of connected people.
+ * <p>
+ * Not thread-safe: DBInterface only modifies it inside the compute methods
+ * of its ConcurrentMap, that are atomic for each document.
  */
 public class ChatInfo {
 	private byte addr;
@@ -1,25 +1,52 @@
 package server;
 
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
+import java.util.function.*;
 import java.io.IOException;
 import java.nio.channels.*;
 import java.nio.*;
-// import server.lib.*;
+import server.lib.*;
 
 /**
  * A concurrent implementation of SocketChannel.
  * <p>
- * This class allows writes and reads as a SocketChannel, but offers also
- * methods to synchronize writings so that a multithreaded process can write
- * avoiding mixing up different messages.
+ * This class allows reads as a SocketChannel, while writes are done by
+ * sending complete {@link Frame}s: any thread can send a frame without
+ * blocking, the frame is put in a lock-free queue and written later by the
+ * thread that flushes this channel (its reactor, or a writer thread in
+ * thread-per-connection mode). This way frames sent by different threads
+ * never mix up, and no thread ever waits on another client's socket.
  * <p>
  * TODO: this should be a subclass of SocketChannel, but I don't know how to
  * do it.
  */
-public class ConcurrentSocketChannel implements ByteChannel, Lock {
+public class ConcurrentSocketChannel implements ByteChannel {
+	// Max number of buffers written by a single gathering write
+	private static final int max_gather = 64;
+	private static final ByteBuffer push_tag = ByteBuffer.allocate(Integer.BYTES).putInt(0, Constants.push_id);
+
 	private final SocketChannel chnl;
-	private final Lock lock;
+	private final RequestDecoder decoder;
+	// Key of this channel in its reactor's selector, kept for the whole life
+	// of the connection
+	private SelectionKey key;
+
+	// Frames sent and not yet taken by the flushing thread
+	private final Queue<Frame> outbound;
+	// Whether a flush has been requested and not started yet
+	private final AtomicBoolean flush_requested;
+	// Called to request a flush of this channel
+	private volatile Consumer<ConcurrentSocketChannel> flusher;
+	// Whether the channel should be closed once everything has been written
+	private volatile boolean closing;
+	// Only used by the flushing thread: parts taken from outbound and not
+	// completely written, and the framing mode at the end of outbound
+	private final ArrayDeque<Frame.Part> pending;
+	private final ByteBuffer[] gather;
+	private boolean pipelined;
 
 	/**
 	 * Creates a new ConcurrentSocketChannel based on a given SocketChannel.
@@ -31,9 +58,25 @@ public class ConcurrentSocketChannel implements ByteChannel, Lock {
 	 */
 	public ConcurrentSocketChannel(SocketChannel chnl_set) {
 		chnl = chnl_set;
-		lock = new ReentrantLock();
+		decoder = new RequestDecoder();
+		key = null;
+		outbound = new ConcurrentLinkedQueue<Frame>();
+		flush_requested = new AtomicBoolean(false);
+		flusher = null;
+		closing = false;
+		pending = new ArrayDeque<Frame.Part>();
+		gather = new ByteBuffer[max_gather];
+		pipelined = false;
 	}
 
+	/**
+	 * Get the decoder of the requests received on this channel.
+	 *
+	 * @return the RequestDecoder of this channel
+	 */
+	public RequestDecoder getDecoder() {
+		return decoder;
+	}
 
 	@Override
 	public String toString() {
@@ -45,39 +88,196 @@ public class ConcurrentSocketChannel implements ByteChannel, Lock {
 		return chnl.configureBlocking(block);
 	}
 
+	/**
+	 * Registers this channel with a selector, attaching this object to the
+	 * key. The key is remembered and can be got through {@link getKey}.
+	 */
 	public SelectionKey register(Selector sel, int ops) throws ClosedChannelException {
-		return chnl.register(sel, ops, this);
+		key = chnl.register(sel, ops, this);
+		return key;
 	}
 
-	// Lock interface
-	@Override
-	public void lock() {
-		lock.lock();
+	/**
+	 * Get the key of the last registration of this channel.
+	 *
+	 * @return the key of this channel, or null if it was never registered
+	 */
+	public SelectionKey getKey() {
+		return key;
 	}
 
-	@Override
-	public void lockInterruptibly() throws InterruptedException {
-		lock.lockInterruptibly();
+	// ============================== OUTBOUND ===============================
+	/**
+	 * Sets who flushes this channel. It must be set before the first frame is
+	 * sent.
+	 *
+	 * @param flusher_set function called, at most once until the flush
+	 *                    starts, to request a flush of this channel
+	 */
+	public void setFlusher(Consumer<ConcurrentSocketChannel> flusher_set) {
+		flusher = flusher_set;
 	}
 
-	@Override
-	public boolean tryLock() {
-		return lock.tryLock();
+	/**
+	 * Requests a flush, unless one is already pending.
+	 */
+	private void requestFlush() {
+		if (flush_requested.compareAndSet(false, true)) {
+			flusher.accept(this);
+		}
 	}
 
-	@Override
-	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-		return lock.tryLock(time, unit);
+	/**
+	 * Sends a frame on this channel. Thread-safe and lock-free, never blocks.
+	 *
+	 * @param frame the complete frame to send
+	 */
+	public void send(Frame frame) {
+		outbound.add(frame);
+		requestFlush();
 	}
 
-	@Override
-	public void unlock() {
-		lock.unlock();
+	/**
+	 * Closes this channel after every frame already sent has been written.
+	 * Thread-safe, never blocks.
+	 */
+	public void closeAfterFlush() {
+		closing = true;
+		requestFlush();
 	}
 
-	@Override
-	public Condition newCondition() {
-		return lock.newCondition();
+	/**
+	 * Moves the frames in the queue to the buffers to write, tagging pushes
+	 * if in pipelined mode.
+	 */
+	private void takeOutbound() {
+		Frame frame;
+		while (pending.size() < max_gather && (frame = outbound.poll()) != null) {
+			if (frame.isPush() && pipelined) {
+				pending.add(new Frame.Part(push_tag.duplicate(), false));
+			}
+			pending.addAll(frame.getParts());
+			if (frame.switchesToPipelined()) {
+				pipelined = true;
+			}
+		}
+	}
+
+	/**
+	 * Writes the parts at the head of pending: a file region with
+	 * transferTo, or the consecutive buffers with a single gathering write.
+	 *
+	 * @return the number of bytes written
+	 */
+	private long writePending() throws IOException {
+		Frame.Part head = pending.peek();
+		if (head.isFile()) {
+			return head.transferTo(chnl);
+		}
+		int n = 0;
+		for (Frame.Part p : pending) {
+			if (n == max_gather || p.isFile()) {
+				break;
+			}
+			gather[n++] = p.getBuffer();
+		}
+		long written = chnl.write(gather, 0, n);
+		Arrays.fill(gather, 0, n, null);
+		return written;
+	}
+
+	/**
+	 * Writes as much as possible of what has been sent, with gathering
+	 * writes for buffers and transferTo for files. Must be called only by the
+	 * thread flushing this channel.
+	 * <p>
+	 * In non-blocking mode it stops as soon as the socket can't accept more
+	 * data; in blocking mode it writes everything. If the channel has been
+	 * asked to close and everything has been written, it closes it.
+	 *
+	 * @return true iff everything has been written
+	 */
+	public boolean flush() throws IOException {
+		flush_requested.set(false);
+		takeOutbound();
+		while (!pending.isEmpty()) {
+			long written = writePending();
+			while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+				pending.poll().release();
+			}
+			takeOutbound();
+			if (written == 0 && !pending.isEmpty()) {
+				return false;
+			}
+		}
+		if (closing) {
+			close();
+		}
+		return true;
+	}
+
+	/**
+	 * Starts the thread that writes this channel, in blocking mode, for its
+	 * whole life and makes it the flusher of this channel. Used in
+	 * thread-per-connection mode, it must be called before the first frame is
+	 * sent.
+	 * <p>
+	 * The writer parks while there's nothing to write and is unparked by
+	 * each flush request, so frames are written in the order they were sent
+	 * by a single thread. It ends once the channel is closed, which happens
+	 * when it flushes after {@link #closeAfterFlush}.
+	 *
+	 * @param threads factory of the writer thread
+	 */
+	public void startWriter(ThreadFactory threads) {
+		Thread writer = threads.newThread(this::writeLoop);
+		flusher = c -> LockSupport.unpark(writer);
+		writer.start();
+	}
+
+	/**
+	 * Body of the writer thread. The flag is checked before parking, so a
+	 * request made before the thread started, or between the check and the
+	 * park, is never lost.
+	 */
+	private void writeLoop() {
+		while (isOpen()) {
+			if (!flush_requested.get()) {
+				LockSupport.park(this);
+				continue;
+			}
+			try {
+				flush();
+			}
+			catch (IOException e) {
+				// The reader of this channel will notice the problem too
+				discardOutbound();
+			}
+		}
+	}
+
+	/**
+	 * Drops everything not yet written, for instance because the connection
+	 * is broken. If the channel has been asked to close, it closes it. Must
+	 * be called only by the thread flushing this channel.
+	 */
+	public void discardOutbound() {
+		Frame.Part part;
+		while ((part = pending.poll()) != null) {
+			part.release();
+		}
+		Frame frame;
+		while ((frame = outbound.poll()) != null) {
+			frame.release();
+		}
+		if (closing) {
+			try {
+				close();
+			}
+			catch (IOException e) {
+				// Nothing else to do
+			}
+		}
 	}
 
 	// ByteChannel interface
@@ -86,6 +286,10 @@ public class ConcurrentSocketChannel implements ByteChannel, Lock {
 		return chnl.read(dst);
 	}
 
+	/**
+	 * Writes directly on the underlying channel, bypassing the queue of
+	 * frames. Should be used only if no frame is ever sent on this channel.
+	 */
 	@Override
 	public int write(ByteBuffer src) throws IOException {
 		return chnl.write(src);
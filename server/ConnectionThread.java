@@ -0,0 +1,65 @@
+package server;
+
+import java.util.*;
+import java.io.IOException;
+import java.nio.channels.*;
+import server.lib.*;
+
+/**
+ * Task that serves a single connection for its whole life.
+ * <p>
+ * Used when the server runs a thread per connection: the channel is kept in
+ * blocking mode and this task loops reading requests and handling them
+ * in the same thread, until the connection is closed. Requests are decoded
+ * by the same {@link RequestDecoder} used by reactors, so the protocol is
+ * exactly the same in both modes.
+ */
+public class ConnectionThread implements Runnable {
+	private final ConcurrentSocketChannel chnl;
+	private final TURINGServer server;
+
+	/**
+	 * Creates a new task for a connection.
+	 *
+	 * @param chnl_set the connection, in blocking mode
+	 * @param server_set the server to which the connection belongs
+	 */
+	public ConnectionThread(ConcurrentSocketChannel chnl_set, TURINGServer server_set) {
+		chnl = chnl_set;
+		server = server_set;
+	}
+
+	/**
+	 * Blocks until a request has been received completely.
+	 *
+	 * @return the request, or null if the connection has been closed or the
+	 *         client sent something that isn't a request
+	 */
+	private Request nextRequest() {
+		RequestDecoder decoder = chnl.getDecoder();
+		try {
+			Request req = decoder.poll();
+			while (req == null) {
+				decoder.read(chnl);
+				req = decoder.poll();
+			}
+			return req;
+		}
+		catch (IOException e) {
+			Logger.log(Logger.Level.WARN, () -> "Invalid request from " + chnl.toString() + ": " + e.getMessage());
+			return null;
+		}
+		catch (ChannelClosedException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void run() {
+		boolean open = true;
+		while (open) {
+			// A null request makes the handler close the connection
+			open = server.newOperationHandler(null, chnl, nextRequest()).handle();
+		}
+	}
+}
@@ -2,6 +2,7 @@ package server;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 import java.util.stream.*;
 import java.nio.*;
@@ -15,87 +16,352 @@ import server.lib.*;
 /**
  * Interface to handles synchronized interactions with filesystem and other data stored by the server not related to a single connection.
  * <p>
- * Synchronization matters because fs structure itself is used to store
- * informations that may be accessed concurrently. This class operates only on
- * the subtree rooted at root, and consider it as the base of the storage
- * system of the server.
+ * Synchronization matters because the stored files hold informations that
+ * may be accessed concurrently. Files are kept by a {@link StorageEngine},
+ * as values whose keys are their paths relative to the db root (for
+ * instance {@code owner/doc/section0}): a {@link FileEngine} keeps them as
+ * real files under the root directory, a {@link LogEngine} in an
+ * append-only log.
+ * <p>
+ * Files are guarded by striped locks, so that operations on unrelated users
+ * and documents run in parallel: a user lock guards the folder of a user
+ * (password, permissions and pending invitations), a document lock guards
+ * the folder of a document (its editors, and its existence). An operation
+ * takes at most one document lock and one user lock, always in this order:
+ * first the document, then the user. For instance invite locks the owner's
+ * document and then the invited user.
+ * <p>
+ * Passwords, permissions, editors and the {@link DocumentHeader} of each
+ * document (number, sizes and versions of its sections) are also kept in a
+ * {@link MetadataCache}, guarded by the same locks, so that permission
+ * checks and section queries don't touch files. Changes are written to the
+ * files first and then to the cache. The cache holds also the mailbox of
+ * each user, the invitations not yet delivered (see
+ * {@link #getPendingInvitations}).
+ * <p>
+ * Section files aren't guarded by these locks: only the user that claimed a
+ * section can write it. Claims are kept in concurrent maps without any
+ * lock, a section being claimed atomically with putIfAbsent and released
+ * with a conditional remove, so reading whether a section is being edited
+ * never blocks.
  */
 public class DBInterface {
 	public static final String pwd_file = "pwd";
 	public static final String invitations_file = "pending_invitations";
+	public static final String delivered_file = "delivered_invitations";
 	public static final String permissions_file = "editable_docs";
 	public static final String editors_file = "editors";
+	public static final String header_file = "header";
 	public static final String section_file_prefix = "section";
+	// Default number of user and document locks
+	public static final int default_stripes = 64;
+	// Default bound to the memory used by the metadata cache
+	public static final long default_cache_bytes = 64L * 1024 * 1024;
+	// Default bound to the memory used by the section cache
+	public static final long default_section_cache_bytes = 64L * 1024 * 1024;
+	// Size from which a fully delivered invitations journal is emptied
+	public static final long journal_compact_bytes = 64L * 1024;
 
-	private final Path root;
-	private final Lock fslock;
-	private final Lock editlock;
-	// Given a username, returns if they're editing
-	private final Map<String, Section> isEditing;
-	// Given a section, returns if it is being edited
-	private final Map<Section, Boolean> beingEdited;
-	// Chat infos
-	private byte new_chat_add = 0;
-	private final Map<String, ChatInfo> doc_to_chat;
+	private final StorageEngine engine;
+	private final LockStripes user_locks;
+	private final LockStripes doc_locks;
+	private final MetadataCache metadata;
+	// Null if sections aren't cached
+	private final SectionCache sections;
+	// Given a username, returns the section they're editing
+	private final ConcurrentMap<String, Section> isEditing;
+	// Given a section, returns the user editing it
+	private final ConcurrentMap<Section, String> beingEdited;
+	// Users invited while offline since their invitations were last
+	// delivered, in this run of the server
+	private final Set<String> new_invitations;
+	// Chat infos, only modified inside compute so that the number of
+	// connected users of a chat is updated atomically with the map
+	private final AtomicInteger new_chat_add;
+	private final ConcurrentMap<String, ChatInfo> doc_to_chat;
 
 	/**
-	 * Creates a new instance of DBInterface. If the passed root directory
-	 * doesn't exists, creates it.
+	 * Creates a new instance of DBInterface keeping files in a directory. If
+	 * the passed root directory doesn't exists, creates it.
 	 *
 	 * @param dir path to the root directory
 	 * @throws IOException if happens an error during the creation of root dir
 	 */
 	public DBInterface(String dir) throws IOException {
-		root = Paths.get(dir);
-		try {
-			Files.createDirectory(root);
-		}
-		catch (FileAlreadyExistsException e) {
-			// Directory already exists, nothing to do
+		this(dir, default_stripes);
+	}
+
+	/**
+	 * Creates a new instance of DBInterface keeping files in a directory,
+	 * with a given number of user and document locks. If the passed root
+	 * directory doesn't exists, creates it.
+	 *
+	 * @param dir path to the root directory
+	 * @param stripes number of user locks and of document locks
+	 * @throws IOException if happens an error during the creation of root dir
+	 */
+	public DBInterface(String dir, int stripes) throws IOException {
+		this(new FileEngine(Paths.get(dir)), stripes, default_cache_bytes);
+	}
+
+	/**
+	 * Creates a new instance of DBInterface on a storage engine, with a given
+	 * number of user and document locks and a given bound to the metadata
+	 * cache.
+	 *
+	 * @param engine_set engine storing the files
+	 * @param stripes number of user locks and of document locks
+	 * @param cache_bytes bound to the memory used by the metadata cache
+	 * @throws IllegalArgumentException if stripes or cache_bytes aren't
+	 *                                  positive
+	 */
+	public DBInterface(StorageEngine engine_set, int stripes, long cache_bytes) throws IllegalArgumentException {
+		this(engine_set, stripes, cache_bytes, default_section_cache_bytes);
+	}
+
+	/**
+	 * Creates a new instance of DBInterface on a storage engine, with a given
+	 * number of user and document locks and given bounds to the metadata
+	 * cache and to the section cache.
+	 *
+	 * @param engine_set engine storing the files
+	 * @param stripes number of user locks and of document locks
+	 * @param cache_bytes bound to the memory used by the metadata cache
+	 * @param section_cache_bytes bound to the memory used by the section
+	 *                            cache, 0 to not cache sections
+	 * @throws IllegalArgumentException if stripes or cache_bytes aren't
+	 *                                  positive, or if section_cache_bytes
+	 *                                  is negative
+	 */
+	public DBInterface(StorageEngine engine_set, int stripes, long cache_bytes, long section_cache_bytes) throws IllegalArgumentException {
+		if (section_cache_bytes < 0) {
+			throw new IllegalArgumentException("The section cache can't have a negative size");
 		}
-		fslock = new ReentrantLock();
-		editlock = new ReentrantLock();
+		engine = engine_set;
+		user_locks = new LockStripes(stripes);
+		doc_locks = new LockStripes(stripes);
+		metadata = new MetadataCache(cache_bytes, user_locks, doc_locks);
+		sections = section_cache_bytes == 0 ? null : new SectionCache(section_cache_bytes);
 		// Both are lazily filled, and begin empty (no one's editing anything)
-		isEditing = new HashMap<String, Section>();
-		beingEdited = new HashMap<Section, Boolean>();
+		isEditing = new ConcurrentHashMap<String, Section>();
+		beingEdited = new ConcurrentHashMap<Section, String>();
+		new_invitations = ConcurrentHashMap.<String>newKeySet();
+
+		new_chat_add = new AtomicInteger(0);
+		doc_to_chat = new ConcurrentHashMap<String, ChatInfo>();
+	}
+
 
-		doc_to_chat = new HashMap<String, ChatInfo>();
+	/**
+	 * Closes the storage engine. No other method can be called afterwards.
+	 *
+	 * @throws IOException if an IO error occurs
+	 */
+	public void close() throws IOException {
+		engine.close();
 	}
 
+	/**
+	 * Get the key of a file, joining the parts of its path.
+	 */
+	private static String key(String... parts) {
+		return String.join(Section.sep, parts);
+	}
 
 	/**
-	 * Get the absolute path of a db element.
+	 * Get the key of the file of a section.
+	 */
+	private static String sectionKey(Section sec) {
+		return key(sec.getOwner(), sec.getDocumentName(), section_file_prefix + Integer.toString(sec.getN()));
+	}
+
+	/**
+	 * Get the cache of users and documents metadata, for its statistics.
 	 *
-	 * @param path path of the element relative to the db root directory
-	 * @return the absolute path of the given element
+	 * @return the metadata cache
 	 */
-	public Path getAbsolutePath(Path path) {
-		return root.resolve(path);
+	public MetadataCache getMetadataCache() {
+		return metadata;
+	}
+
+	/**
+	 * Get the cache of sections contents, for its statistics.
+	 *
+	 * @return the section cache, or null if sections aren't cached
+	 */
+	public SectionCache getSectionCache() {
+		return sections;
+	}
+
+	/**
+	 * Get the informations of a user from the cache, loading them from their
+	 * files if needed. The caller must hold the user lock.
+	 *
+	 * @return the informations of usr, or null if usr doesn't exist
+	 */
+	private MetadataCache.UserInfo loadUser(String usr) throws IOException {
+		MetadataCache.UserInfo info = metadata.getUser(usr);
+		if (info != null) {
+			return info;
+		}
+		ByteBuffer pwd_content = engine.read(key(usr, pwd_file));
+		if (pwd_content == null) {
+			return null;
+		}
+		// The first line, as FileLineReader.readLine
+		String pwd = IOUtils.encoding.decode(pwd_content).toString();
+		int idx = pwd.indexOf(IOUtils.linesep);
+		if (idx != -1) {
+			pwd = pwd.substring(0, idx);
+		}
+		ByteBuffer docs = engine.read(key(usr, permissions_file));
+		if (docs == null) {
+			throw new NoSuchFileException(key(usr, permissions_file));
+		}
+		ByteBuffer journal = engine.read(key(usr, invitations_file));
+		if (journal == null) {
+			throw new NoSuchFileException(key(usr, invitations_file));
+		}
+		// The offset is never past the end of the journal, clamped anyway
+		// against a damaged file
+		int size = journal.remaining();
+		journal.position(journal.position() + (int)Math.min(readDelivered(usr), size));
+		return metadata.putUser(usr, pwd, IOUtils.getRows(docs), IOUtils.getRows(journal), size);
+	}
+
+	/**
+	 * Reads the offset of the invitations journal up to which the
+	 * invitations have been delivered. The caller must hold the user lock.
+	 *
+	 * @return the offset, 0 if it has never been written
+	 */
+	private long readDelivered(String usr) throws IOException {
+		ByteBuffer content = engine.read(key(usr, delivered_file));
+		return content == null || content.remaining() < Long.BYTES ? 0 : content.getLong();
+	}
+
+	/**
+	 * Writes the offset of the invitations journal up to which the
+	 * invitations have been delivered. The caller must hold the user lock.
+	 */
+	private void writeDelivered(String usr, long offset) throws IOException {
+		ByteBuffer content = ByteBuffer.allocate(Long.BYTES);
+		content.putLong(offset);
+		content.flip();
+		engine.put(key(usr, delivered_file), content);
+	}
+
+	/**
+	 * Get the informations of a document from the cache, loading them from
+	 * its files if needed. The caller must hold the document lock.
+	 *
+	 * @return the informations of the document, or null if it doesn't exist
+	 */
+	private MetadataCache.DocumentInfo loadDocument(String owner, String doc) throws IOException {
+		String fulldocname = owner + Section.sep + doc;
+		MetadataCache.DocumentInfo info = metadata.getDocument(fulldocname);
+		if (info != null) {
+			return info;
+		}
+		ByteBuffer editors = engine.read(key(owner, doc, editors_file));
+		if (editors == null) {
+			return null;
+		}
+		DocumentHeader header;
+		ByteBuffer header_content = engine.read(key(owner, doc, header_file));
+		if (header_content != null) {
+			header = DocumentHeader.fromBuffer(header_content);
+		}
+		else {
+			// Document created before headers existed
+			header = scanSections(owner, doc);
+			engine.put(key(owner, doc, header_file), header.toBuffer());
+		}
+		return metadata.putDocument(fulldocname, IOUtils.getRows(editors), header);
+	}
+
+	/**
+	 * Get the header of a document without taking its lock if it's cached,
+	 * otherwise loading it with the document lock.
+	 *
+	 * @return the header of the document, or null if it doesn't exist
+	 */
+	private DocumentHeader getHeader(String owner, String doc) throws IOException {
+		DocumentHeader header = metadata.getHeader(owner + Section.sep + doc);
+		if (header != null) {
+			return header;
+		}
+		Lock doc_lock = doc_locks.get(owner + Section.sep + doc);
+		try {
+			doc_lock.lock();
+			MetadataCache.DocumentInfo info = loadDocument(owner, doc);
+			return info == null ? null : info.getHeader();
+		}
+		finally {
+			doc_lock.unlock();
+			metadata.trim();
+		}
+	}
+
+	/**
+	 * Builds the header of a document from its section files.
+	 *
+	 * @return the header, with all the versions at 0
+	 */
+	private DocumentHeader scanSections(String owner, String doc) throws IOException {
+		int preflen = section_file_prefix.length();
+		Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+		for (String name : engine.list(key(owner, doc), section_file_prefix)) {
+			int n = Integer.parseInt(name.substring(preflen));
+			sizes.put(n, engine.size(key(owner, doc, name)));
+		}
+		long[] result = new long[sizes.isEmpty() ? 0 : Collections.max(sizes.keySet()) + 1];
+		for (Map.Entry<Integer, Long> e : sizes.entrySet()) {
+			result[e.getKey()] = e.getValue();
+		}
+		return DocumentHeader.fromSizes(result);
 	}
 
 	// ============================== USERS ==================================
+	/**
+	 * Check if a string can be the name of a user or of a document: it must
+	 * be a single part of a key, not beginning with
+	 * {@link StorageEngine#reserved_prefix}.
+	 *
+	 * @param name the name to check
+	 * @return true iff name is non-empty, doesn't contain {@link Section#sep}
+	 *         and doesn't begin with the reserved prefix
+	 */
+	public static boolean isValidName(String name) {
+		return !name.isEmpty() && !name.contains(Section.sep) && !name.startsWith(StorageEngine.reserved_prefix);
+	}
+
 	/**
 	 * Creates a user if it doesn't exists. Synchronized.
 	 *
 	 * @param usr the username to create
 	 * @return true iff the user was created (ie: didn't exist)
+	 * @throws IllegalArgumentException if usr isn't a valid name
 	 */
-	public boolean createUser(String usr, String pwd) throws IOException {
-		Path usr_path = root.resolve(usr);
+	public boolean createUser(String usr, String pwd) throws IOException, IllegalArgumentException {
+		if (!isValidName(usr)) {
+			throw new IllegalArgumentException("Invalid username: " + usr);
+		}
+		Lock usr_lock = user_locks.get(usr);
 		try {
-			fslock.lock();
-			Files.createDirectory(usr_path);
-			// This also creates the file
-			IOUtils.createFileContent(usr_path.resolve(pwd_file), pwd.trim());
-			Files.createFile(usr_path.resolve(invitations_file));
-			Files.createFile(usr_path.resolve(permissions_file));
+			usr_lock.lock();
+			// The password is created first, and it tells if the user exists
+			if (!engine.create(key(usr, pwd_file), IOUtils.rowBuffer(pwd.trim()))) {
+				return false;
+			}
+			engine.put(key(usr, invitations_file), ByteBuffer.allocate(0));
+			engine.put(key(usr, permissions_file), ByteBuffer.allocate(0));
+			metadata.putUser(usr, pwd.trim(), Collections.<String>emptyList(), Collections.<String>emptyList(), 0);
 			return true;
 		}
-		catch (FileAlreadyExistsException e) {
-			return false;
-		}
 		finally {
-			fslock.unlock();
+			usr_lock.unlock();
+			metadata.trim();
 		}
 	}
 
@@ -106,7 +372,7 @@ public class DBInterface {
 	 * @return true iff usr exists
 	 */
 	public boolean userExists(String usr) throws IOException {
-		return root.resolve(usr).toFile().exists();
+		return engine.exists(key(usr, pwd_file));
 	}
 
 	/**
@@ -117,80 +383,144 @@ public class DBInterface {
 	 * @return true iff usr exists and pwd matches
 	 */
 	public boolean checkUser(String usr, String pwd) throws IOException {
-		Path usr_info = root.resolve(usr).resolve(pwd_file);
-		fslock.lock();
-		if (!usr_info.toFile().exists()) {
-			fslock.unlock();
-			return false;
-		}
-		try (
-			FileLineReader reader = new FileLineReader(usr_info);
-		) {
-			return pwd.trim().equals(reader.readLine());
-		}
-		catch (FileIteratorException e) {
-			throw e.getCause();
+		Lock usr_lock = user_locks.get(usr);
+		try {
+			usr_lock.lock();
+			MetadataCache.UserInfo info = loadUser(usr);
+			return info != null && pwd.trim().equals(info.getPassword());
 		}
 		finally {
-			fslock.unlock();
+			usr_lock.unlock();
+			metadata.trim();
 		}
 	}
 
 	/**
-	 * Get the documents that a certain user can modify.
+	 * Get the documents that a certain user can modify. Synchronized.
 	 *
 	 * @param usr the username
 	 * @return a collection of full document names
 	 */
 	public Collection<String> userModificableDocuments(String usr) throws IOException {
-		Path docslist = root.resolve(usr).resolve(permissions_file);
-		return IOUtils.getFileRows(docslist);
+		Lock usr_lock = user_locks.get(usr);
+		try {
+			usr_lock.lock();
+			MetadataCache.UserInfo info = loadUser(usr);
+			if (info == null) {
+				throw new NoSuchFileException(key(usr, permissions_file));
+			}
+			return info.getDocuments();
+		}
+		finally {
+			usr_lock.unlock();
+			metadata.trim();
+		}
 	}
 
 	/**
-	 * Check if a user is modifying something now. Synchronized.
+	 * Check if a user is modifying something now. Thread-safe, never blocks.
 	 *
 	 * @param usr user to check
 	 * @return the section being modified by usr or null if they aren't
 	 *         modifying anything
 	 */
 	public Section userIsModifying(String usr) {
- 		try {
- 			editlock.lock();
- 			return isEditing.getOrDefault(usr, null);
- 		}
- 		finally {
- 			editlock.unlock();
- 		}
-	 }
+		return isEditing.get(usr);
+	}
 
 	/**
-	 * Get the list of pending invitations, clearing it after. Not synchronized.
+	 * Get the list of pending invitations as {@link #getPendingInvitations},
+	 * but only if the user has been invited while offline since their
+	 * invitations were last delivered. Synchronized: the check is made under
+	 * the same lock that records the invitations, so one recorded meanwhile
+	 * is either returned or kept for the next time. If there's nothing new it
+	 * reads no files, but it only knows of the invitations recorded since the
+	 * server started: it's meaningful only for users whose invitations have
+	 * been delivered in this run of the server, like the ones resuming a
+	 * session.
+	 *
+	 * @param usr the username
+	 * @return a collection of full document names, empty if usr hasn't been
+	 *         invited since the last delivery
+	 */
+	public Collection<String> getNewInvitations(String usr) throws IOException {
+		Lock usr_lock = user_locks.get(usr);
+		try {
+			usr_lock.lock();
+			if (!new_invitations.contains(usr)) {
+				return Collections.<String>emptyList();
+			}
+			return getPendingInvitations(usr);
+		}
+		finally {
+			usr_lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the list of pending invitations, emptying the mailbox after.
+	 * Synchronized, so an invitation recorded meanwhile is either returned
+	 * or kept for the next time.
 	 * <p>
-	 * Given that this function isn't synchronized it should be called only
-	 * when usr is connected in order to avoid that some thread writes to the
-	 * file of pending invitations while it is being read.
+	 * Invitations are appended to a journal and never rewritten one by one:
+	 * the mailbox is the part of the journal after the delivered offset, and
+	 * it's kept in memory with the other informations of the user. Delivering
+	 * the mailbox only writes the new offset, or, once the journal has grown
+	 * past {@link #journal_compact_bytes}, empties it and resets the offset.
+	 * Nothing is written if the mailbox is empty.
 	 *
 	 * @param usr the username
 	 * @return a collection of full document names, that are the ones usr has
 	 *         been invited since its last login
 	 */
 	public Collection<String> getPendingInvitations(String usr) throws IOException {
-		Path invitations = root.resolve(usr).resolve(invitations_file);
-		Collection<String> result = IOUtils.getFileRows(invitations);
-		IOUtils.emptyFile(invitations);
-		return result;
+		Lock usr_lock = user_locks.get(usr);
+		try {
+			usr_lock.lock();
+			new_invitations.remove(usr);
+			MetadataCache.UserInfo info = loadUser(usr);
+			if (info == null) {
+				throw new NoSuchFileException(key(usr, pwd_file));
+			}
+			List<String> result = metadata.getInvitations(info);
+			if (result.isEmpty()) {
+				return result;
+			}
+			long journal_bytes = info.getJournalBytes();
+			if (journal_bytes >= journal_compact_bytes) {
+				// Offset reset first: a crash before the journal is emptied
+				// only delivers its invitations again. The other way round a
+				// stale offset would hide the invitations appended later
+				writeDelivered(usr, 0);
+				engine.put(key(usr, invitations_file), ByteBuffer.allocate(0));
+				journal_bytes = 0;
+			}
+			else {
+				writeDelivered(usr, journal_bytes);
+			}
+			metadata.clearInvitations(info, journal_bytes);
+			return result;
+		}
+		finally {
+			usr_lock.unlock();
+			metadata.trim();
+		}
 	}
 
 	// ============================ DOCUMENTS ================================
 	/**
-	 * Check if a document exist. Not synchronized.
+	 * Check if a document exist. Not synchronized: documents are never
+	 * deleted, so if the document is cached there's no need to check the
+	 * filesystem.
 	 *
-	 * @param doc_path path of the document relative to the db root directory
+	 * @param owner owner of the document
+	 * @param doc name of the document
 	 * @return true iff the document exist
+	 * @throws IOException if an IO error occurs
 	 */
-	public boolean documentExist(Path doc_path) {
-		return root.resolve(doc_path).toFile().exists();
+	public boolean documentExist(String owner, String doc) throws IOException {
+		return metadata.getHeader(owner + Section.sep + doc) != null
+				|| engine.exists(key(owner, doc, editors_file));
 	}
 
 	/**
@@ -202,27 +532,42 @@ public class DBInterface {
 	 * @param n number of sections
 	 * @return true iff the document was created (ie: didn't exist)
 	 * @throws IOException if usr doesn't exist of if an IO error occurs
+	 * @throws IllegalArgumentException if name isn't a valid name
 	 */
-	public boolean createDocument(String usr, String name, int n) throws IOException {
+	public boolean createDocument(String usr, String name, int n) throws IOException, IllegalArgumentException {
+		if (!isValidName(name)) {
+			throw new IllegalArgumentException("Invalid document name: " + name);
+		}
+		// Lock order: document, then user
+		Lock doc_lock = doc_locks.get(usr + Section.sep + name);
+		Lock usr_lock = user_locks.get(usr);
 		try {
-			fslock.lock();
-			Path usr_path = root.resolve(usr);
-			Path doc_path = usr_path.resolve(name);
-			Files.createDirectory(doc_path);
-
-			// A user has permission over its own documents
-			IOUtils.createFileContent(doc_path.resolve(editors_file), usr);
-			IOUtils.addRow(usr_path.resolve(permissions_file), name);
+			doc_lock.lock();
+			usr_lock.lock();
+			// A user has permission over its own documents. The editors are
+			// created first, and they tell if the document exists
+			if (!engine.create(key(usr, name, editors_file), IOUtils.rowBuffer(usr))) {
+				return false;
+			}
+			engine.append(key(usr, permissions_file), IOUtils.rowBuffer(name));
 			for (Integer i = 0; i < n; ++i) {
-				Files.createFile(doc_path.resolve(section_file_prefix + i.toString()));
+				engine.put(key(usr, name, section_file_prefix + i.toString()), ByteBuffer.allocate(0));
+			}
+			// Written last: if it's missing after a crash, it's rebuilt from
+			// the section files
+			DocumentHeader header = new DocumentHeader(n);
+			engine.put(key(usr, name, header_file), header.toBuffer());
+			metadata.putDocument(usr + Section.sep + name, Collections.singletonList(usr), header);
+			MetadataCache.UserInfo info = metadata.peekUser(usr);
+			if (info != null) {
+				metadata.addDocument(info, name);
 			}
 			return true;
 		}
-		catch (FileAlreadyExistsException e) {
-			return false;
-		}
 		finally {
-			fslock.unlock();
+			usr_lock.unlock();
+			doc_lock.unlock();
+			metadata.trim();
 		}
 	}
 
@@ -239,15 +584,33 @@ public class DBInterface {
 	 *         permission on the file before this operation)
 	 */
 	public boolean invite(String owner, String doc, String usr_invited, boolean pending) throws IOException {
-		Path doc_editors = root.resolve(owner).resolve(doc).resolve(editors_file);
-		Path usr_folder = root.resolve(usr_invited);
+		String doc_editors = key(owner, doc, editors_file);
+		// Lock order: document, then user
+		Lock doc_lock = doc_locks.get(owner + Section.sep + doc);
+		Lock usr_lock = user_locks.get(usr_invited);
 		try {
-			fslock.lock();
-			if (!IOUtils.searchRow(doc_editors, usr_invited, 0)) {
-				IOUtils.addRow(doc_editors, usr_invited);
-				IOUtils.addRow(usr_folder.resolve(permissions_file), owner + "/" + doc);
+			doc_lock.lock();
+			usr_lock.lock();
+			MetadataCache.DocumentInfo doc_info = loadDocument(owner, doc);
+			if (doc_info == null) {
+				throw new NoSuchFileException(doc_editors);
+			}
+			if (!doc_info.isEditor(usr_invited)) {
+				engine.append(doc_editors, IOUtils.rowBuffer(usr_invited));
+				metadata.addEditor(doc_info, usr_invited);
+				engine.append(key(usr_invited, permissions_file), IOUtils.rowBuffer(owner + "/" + doc));
+				MetadataCache.UserInfo usr_info = metadata.peekUser(usr_invited);
+				if (usr_info != null) {
+					metadata.addDocument(usr_info, owner + "/" + doc);
+				}
 				if (pending) {
-					IOUtils.addRow(usr_folder.resolve(invitations_file), owner + "/" + doc);
+					ByteBuffer row = IOUtils.rowBuffer(owner + "/" + doc);
+					int row_bytes = row.remaining();
+					engine.append(key(usr_invited, invitations_file), row);
+					if (usr_info != null) {
+						metadata.addInvitation(usr_info, owner + "/" + doc, row_bytes);
+					}
+					new_invitations.add(usr_invited);
 				}
 				return true;
 			}
@@ -256,12 +619,14 @@ public class DBInterface {
 			}
 		}
 		finally {
-			fslock.unlock();
+			usr_lock.unlock();
+			doc_lock.unlock();
+			metadata.trim();
 		}
 	}
 
 	/**
-	 * Get the last byte of the IP addr of a document's chat. Not synchronized,
+	 * Get the last byte of the IP addr of a document's chat. Never blocks, but
 	 * should only be used by a thread that is sure the ChatInfo object is in
 	 * the hashtable (for instance, by a thread handling a user that is
 	 * modifying this document). Assumes the document is associated with a
@@ -277,38 +642,98 @@ public class DBInterface {
 	// ============================= SECTIONS ================================
 	/**
 	 * Check if a section exist. If the document itself doesn't exits it returns
-	 * false. Not synchronized.
+	 * false. Doesn't touch the filesystem nor block if the document is
+	 * cached.
 	 *
 	 * @param sec section to check
 	 * @return true if the document and the section exists, false otherwise
+	 * @throws IOException if the header of the document can't be read
 	 */
-	public boolean sectionExist(Section sec) {
-		return this.documentExist(sec.getDocumentPath())
-				&& root.resolve(sec.getFullPath()).toFile().exists();
+	public boolean sectionExist(Section sec) throws IOException {
+		DocumentHeader header = getHeader(sec.getOwner(), sec.getDocumentName());
+		return header != null && header.hasSection(sec.getN());
 	}
 
 	/**
-	 * Get the number of sections of the passed document. Not synchronized.
-	 * <p>
-	 * This function is not synchronized for two reasons: first and most
-	 * important is never used in a context in which the number of section may
-	 * change. Second even if it would do the worst thing that may happen is an
-	 * IOException, that the server will report as "ERR_RETRY".
+	 * Get the number of sections of the passed document. Doesn't touch the
+	 * filesystem nor block if the document is cached.
 	 *
-	 * @param doc the path to the doc
+	 * @param owner owner of the document
+	 * @param doc name of the document
 	 * @return the number of sections of that document
+	 * @throws IOException if the document doesn't exist or if its header
+	 *                     can't be read
 	 */
-	public int sectionNumber(Path doc) throws IOException {
-		try (
-			DirectoryStream<Path> doc_files = Files.newDirectoryStream(
-							root.resolve(doc), section_file_prefix + "*");
-		) {
-			int preflen = section_file_prefix.length();
-			return StreamSupport.stream(doc_files.spliterator(), false)
-					.mapToInt(p -> Integer.parseInt(
-							p.getFileName().toString().substring(preflen)
-						))
-					.max().getAsInt() + 1;
+	public int sectionNumber(String owner, String doc) throws IOException {
+		DocumentHeader header = getHeader(owner, doc);
+		if (header == null) {
+			throw new NoSuchFileException(owner + Section.sep + doc);
+		}
+		return header.getSectionCount();
+	}
+
+	/**
+	 * Get the sizes and versions of the sections of a document. Doesn't
+	 * touch the filesystem nor block if the document is cached.
+	 *
+	 * @param owner owner of the document
+	 * @param doc name of the document
+	 * @return the header of the document, or null if it doesn't exist
+	 * @throws IOException if the header of the document can't be read
+	 */
+	public DocumentHeader documentHeader(String owner, String doc) throws IOException {
+		return getHeader(owner, doc);
+	}
+
+	/**
+	 * Opens the content of a section to send it. Not synchronized: the blob
+	 * keeps the content the section had when it was opened, even if an edit
+	 * replaces it meanwhile.
+	 * <p>
+	 * If sections are cached, the content of the current version of the
+	 * section (as in the header of its document) is taken from the cache,
+	 * or loaded in it.
+	 *
+	 * @param sec an existing section
+	 * @return the content of the section, that the caller must close
+	 * @throws IOException if the section doesn't exist or if an IO error
+	 *                     occurs
+	 */
+	public Blob openSection(Section sec) throws IOException {
+		DocumentHeader header = sections == null ? null : getHeader(sec.getOwner(), sec.getDocumentName());
+		long version = 0;
+		if (header != null && header.hasSection(sec.getN())) {
+			version = header.getVersion(sec.getN());
+			ByteBuffer cached = sections.get(sec, version);
+			if (cached != null) {
+				return Blob.ofBuffer(cached);
+			}
+		}
+		else {
+			header = null;
+		}
+		Blob content = engine.open(sectionKey(sec));
+		if (content == null) {
+			throw new NoSuchFileException(sectionKey(sec));
+		}
+		if (header == null) {
+			return content;
+		}
+		try {
+			ByteBuffer loaded = sections.put(sec, version, content);
+			if (loaded == null) {
+				// Too big to be cached
+				return content;
+			}
+			content.close();
+			return Blob.ofBuffer(loaded);
+		}
+		catch (IOException e) {
+			content.close();
+			throw e;
+		}
+		finally {
+			sections.trim();
 		}
 	}
 
@@ -316,19 +741,13 @@ public class DBInterface {
 	 * Get if a section is being modified.
 	 * <p>
 	 * There's no check on the existance of the section. If it doesn't, returns
-	 * false.
+	 * false. Thread-safe, never blocks.
 	 *
 	 * @param sec the section to check
 	 * @return true iff the section exists and is currently being modified
 	 */
 	public boolean isBeingModified(Section sec) {
-		try {
-			editlock.lock();
-			return beingEdited.getOrDefault(sec, false);
-		}
-		finally {
-			editlock.unlock();
-		}
+		return beingEdited.containsKey(sec);
 	}
 
 	/**
@@ -338,7 +757,8 @@ public class DBInterface {
 	 *
 	 * @param usr the username of the user requesting the edit
 	 * @param sec section to edit
-	 * @return Path of the required section
+	 * @return the content of the required section, that the caller must
+	 *         close
 	 * @throws NoSuchDocumentException if the given document doesn't exists
 	 * @throws NoPermissionException if the user doesn't have permission
 	 * @throws NoSuchSectionException if the given section doesn't exists
@@ -346,71 +766,100 @@ public class DBInterface {
 	 * @throws UserBusyException if the user is editing something else
 	 * @throws IOException if document doesn't exist or if an IO error occurs
 	 */
-	public Path editSection(String usr, Section sec) throws IOException, NoSuchDocumentException, NoPermissionException, NoSuchSectionException, SectionBusyException, UserBusyException {
-		// Those are here because sec_path is needed after
-		Path doc_path = root.resolve(sec.getDocumentPath());
-		Path sec_path = doc_path.resolve(sec.getSectionPath());
+	public Blob editSection(String usr, Section sec) throws IOException, NoSuchDocumentException, NoPermissionException, NoSuchSectionException, SectionBusyException, UserBusyException {
+		Lock doc_lock = doc_locks.get(sec.getFullDocumentName());
 		try {
-			fslock.lock();
+			doc_lock.lock();
 			// Check document existance
-			if (!this.documentExist(sec.getDocumentPath())) {
+			MetadataCache.DocumentInfo info = loadDocument(sec.getOwner(), sec.getDocumentName());
+			if (info == null) {
 				throw new NoSuchDocumentException(sec.getFullDocumentName());
 			}
 			// Check permissions
-			if (!IOUtils.searchRow(doc_path.resolve(editors_file), usr, 0)) {
+			if (!info.isEditor(usr)) {
 				throw new NoPermissionException(usr, sec.getFullDocumentName());
 			}
 			// Check existence
-			if (!sec_path.toFile().exists()) {
+			if (!info.getHeader().hasSection(sec.getN())) {
 				throw new NoSuchSectionException(sec.getN());
 			}
 		}
 		finally {
-			fslock.unlock();
+			doc_lock.unlock();
+			metadata.trim();
+		}
+		// Claim the section, then the user: if another thread claimed either
+		// first, this one gives up its claims and fails
+		if (beingEdited.putIfAbsent(sec, usr) != null) {
+			throw new SectionBusyException(sec.getN());
+		}
+		if (isEditing.putIfAbsent(usr, sec) != null) {
+			beingEdited.remove(sec, usr);
+			throw new UserBusyException(usr);
 		}
+		// Only the user can modify the section now, then no need for
+		// further synchronization
+		Blob content;
 		try {
-			editlock.lock();
-			// Check section free
-			if (beingEdited.getOrDefault(sec, false)) {
-				throw new SectionBusyException(sec.getN());
-			}
-			// Check user free
-			if (isEditing.getOrDefault(usr, null) != null) {
-				throw new UserBusyException(usr);
-			}
-			// Give edit to the user
-			isEditing.put(usr, sec);
-			beingEdited.put(sec, true);
-			ChatInfo chat = doc_to_chat.get(sec.getFullDocumentName());
+			content = openSection(sec);
+		}
+		catch (IOException e) {
+			endcleanSectionEdit(usr, sec);
+			throw e;
+		}
+		doc_to_chat.compute(sec.getFullDocumentName(), (name, chat) -> {
 			if (chat == null) {
-				chat = new ChatInfo(new_chat_add);
-				doc_to_chat.put(sec.getFullDocumentName(), chat);
-				++new_chat_add;
+				chat = new ChatInfo((byte)new_chat_add.getAndIncrement());
 			}
 			chat.connect();
-			return sec_path;
-			// Now the writeLock can be released because only the user can
-			// modify the section file, then no need for synchronization
+			return chat;
+		});
+		return content;
+	}
+
+	/**
+	 * Records the new size of a section in the header of its document,
+	 * growing its version. Synchronized on the document lock, so that
+	 * concurrent edits of other sections aren't lost.
+	 */
+	private void updateHeader(Section sec, long size) throws IOException {
+		Lock doc_lock = doc_locks.get(sec.getFullDocumentName());
+		try {
+			doc_lock.lock();
+			MetadataCache.DocumentInfo info = loadDocument(sec.getOwner(), sec.getDocumentName());
+			if (info == null) {
+				throw new NoSuchFileException(sec.getFullDocumentName());
+			}
+			DocumentHeader header = info.getHeader().withSection(sec.getN(), size);
+			engine.put(key(sec.getOwner(), sec.getDocumentName(), header_file), header.toBuffer());
+			metadata.setHeader(info, header);
+			// Readers that see the new header won't use the old entry anyway,
+			// but its memory is freed now
+			if (sections != null) {
+				sections.invalidate(sec);
+			}
 		}
 		finally {
-			editlock.unlock();
+			doc_lock.unlock();
+			metadata.trim();
 		}
 	}
 
 	/**
 	 * Does the cleanup after the end of a section edit.
 	 * It's just to factorize code commono to both finishEditSection and
-	 * cleanUserEdit. Not synchronized, expect the caller to do it.
+	 * cleanUserEdit. Thread-safe: if it's called twice for the same edit,
+	 * only the first call releases it.
 	 */
 	private void endcleanSectionEdit(String usr, Section sec) {
 		// Edit itself
-		isEditing.remove(usr);
-		beingEdited.remove(sec);
-		// Chat
-		ChatInfo chat = doc_to_chat.get(sec.getFullDocumentName());
-		if (chat.disconnect()) {
-			doc_to_chat.remove(sec.getFullDocumentName());
+		if (!isEditing.remove(usr, sec)) {
+			return;
 		}
+		beingEdited.remove(sec, usr);
+		// Chat, removed when the last editor leaves
+		doc_to_chat.computeIfPresent(sec.getFullDocumentName(),
+				(name, chat) -> chat.disconnect() ? null : chat);
 	}
 
 	/**
@@ -425,16 +874,40 @@ public class DBInterface {
 	 * @throws IOException if document doesn't exist or if an IO error occurs
 	 */
 	public void finishEditSection(String usr, Section sec, ReadableByteChannel newContent) throws IOException {
-		// Write on the file the whole Channel. No need to synchronize
-		// because noone else can modify this section at this time.
-		IOUtils.channelToFile(newContent, root.resolve(sec.getFullPath()));
-		// Release edit lock on the section
+		// Write the whole Channel. No need to synchronize because noone else
+		// can modify this section at this time. Readers that already opened
+		// the old content keep reading it.
+		long size = engine.put(sectionKey(sec), newContent);
+		// Release the claim on the section once the header is updated, so
+		// the next editor sees the new version
 		try {
-			editlock.lock();
+			updateHeader(sec, size);
+		}
+		finally {
 			endcleanSectionEdit(usr, sec);
 		}
+	}
+
+	/**
+	 * End the edit of a section, with the new content already received.
+	 * <p>
+	 * Doesn't check that the given user is really modifying the given section.
+	 * In this case there may be unexpected behaviors and concurrency problems.
+	 *
+	 * @param usr the username of the user ending the edit
+	 * @param sec the section that was being edited by usr
+	 * @param newContent the new content of the section
+	 * @throws IOException if document doesn't exist or if an IO error occurs
+	 */
+	public void finishEditSection(String usr, Section sec, ByteBuffer newContent) throws IOException {
+		// No need to synchronize, as above
+		long size = newContent.remaining();
+		engine.put(sectionKey(sec), newContent);
+		try {
+			updateHeader(sec, size);
+		}
 		finally {
-			editlock.unlock();
+			endcleanSectionEdit(usr, sec);
 		}
 	}
 
@@ -449,15 +922,9 @@ public class DBInterface {
 	 * @param usr the username of the user ending the edit
 	 */
 	public void cleanUserEdit(String usr) {
-		try {
-			editlock.lock();
-			Section sec = isEditing.get(usr);
-			if (sec != null) {
-				endcleanSectionEdit(usr, sec);
-			}
-		}
-		finally {
-			editlock.unlock();
+		Section sec = isEditing.get(usr);
+		if (sec != null) {
+			endcleanSectionEdit(usr, sec);
 		}
 	}
 }
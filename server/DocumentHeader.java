@@ -0,0 +1,149 @@
+package server;
+
+import java.nio.*;
+import java.io.*;
+
+/**
+ * Immutable description of the sections of a document: how many they are,
+ * and the size and version of each of them.
+ * <p>
+ * It's stored in the header file of the document, made of the number of
+ * sections (an int) followed by the size and the version of each section
+ * (two longs). The version of a section starts at 0 and grows by one every
+ * time its content is replaced. A new header always replaces the old one
+ * as a whole, with {@link StorageEngine#put}, so it's never seen
+ * half-written.
+ */
+public final class DocumentHeader {
+	private final long[] sizes;
+	private final long[] versions;
+
+	private DocumentHeader(long[] sizes_set, long[] versions_set) {
+		sizes = sizes_set;
+		versions = versions_set;
+	}
+
+	/**
+	 * Creates the header of a new document, with n empty sections at
+	 * version 0.
+	 *
+	 * @param n number of sections
+	 */
+	public DocumentHeader(int n) {
+		this(new long[n], new long[n]);
+	}
+
+	/**
+	 * Get the number of sections.
+	 *
+	 * @return the number of sections of the document
+	 */
+	public int getSectionCount() {
+		return sizes.length;
+	}
+
+	/**
+	 * Check if the document has a section.
+	 *
+	 * @param n number of the section
+	 * @return true iff section n exists
+	 */
+	public boolean hasSection(int n) {
+		return n >= 0 && n < sizes.length;
+	}
+
+	/**
+	 * Get the size of a section, in bytes.
+	 *
+	 * @param n number of an existing section
+	 * @return the size of the section
+	 */
+	public long getSize(int n) {
+		return sizes[n];
+	}
+
+	/**
+	 * Get the version of a section.
+	 *
+	 * @param n number of an existing section
+	 * @return how many times the section has been replaced
+	 */
+	public long getVersion(int n) {
+		return versions[n];
+	}
+
+	/**
+	 * Get the header after the replacement of a section: its size changes
+	 * and its version grows by one. This header isn't modified.
+	 *
+	 * @param n number of an existing section
+	 * @param size new size of the section
+	 * @return the new header
+	 */
+	public DocumentHeader withSection(int n, long size) {
+		long[] new_sizes = sizes.clone();
+		long[] new_versions = versions.clone();
+		new_sizes[n] = size;
+		++new_versions[n];
+		return new DocumentHeader(new_sizes, new_versions);
+	}
+
+	/**
+	 * Get the rough memory used by this header, in bytes.
+	 */
+	long weight() {
+		return 48 + 16L * sizes.length;
+	}
+
+	/**
+	 * Encodes this header, in the format of the header file.
+	 *
+	 * @return a buffer with the header, ready to be read
+	 */
+	public ByteBuffer toBuffer() {
+		ByteBuffer buff = ByteBuffer.allocate(4 + 16 * sizes.length);
+		buff.putInt(sizes.length);
+		for (int i = 0; i < sizes.length; ++i) {
+			buff.putLong(sizes[i]).putLong(versions[i]);
+		}
+		buff.flip();
+		return buff;
+	}
+
+	/**
+	 * Decodes a header, in the format of the header file.
+	 *
+	 * @param buff the content of the header file, ready to be read
+	 * @return the header
+	 * @throws IOException if the content is malformed
+	 */
+	public static DocumentHeader fromBuffer(ByteBuffer buff) throws IOException {
+		try {
+			int n = buff.getInt();
+			if (n < 0 || buff.remaining() != 16L * n) {
+				throw new IOException("Malformed document header");
+			}
+			long[] sizes = new long[n];
+			long[] versions = new long[n];
+			for (int i = 0; i < n; ++i) {
+				sizes[i] = buff.getLong();
+				versions[i] = buff.getLong();
+			}
+			return new DocumentHeader(sizes, versions);
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Malformed document header");
+		}
+	}
+
+	/**
+	 * Builds the header of a document from its section files, for documents
+	 * created without one. Versions start at 0.
+	 *
+	 * @param sizes_set size of each section file
+	 * @return the header
+	 */
+	public static DocumentHeader fromSizes(long[] sizes_set) {
+		return new DocumentHeader(sizes_set.clone(), new long[sizes_set.length]);
+	}
+}
@@ -0,0 +1,232 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import server.lib.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Storage engine keeping a file for each key, under a root directory: the
+ * key {@code owner/doc/section0} is the file
+ * {@code root/owner/doc/section0}.
+ * <p>
+ * A value is replaced writing the new content to a temporary file in the
+ * same directory, whose name begins with {@link #tmp_prefix}, and then
+ * moving it over the old one with an atomic move. The prefix is reserved
+ * (see {@link StorageEngine#reserved_prefix}), so a temporary file never
+ * has the name of a user or a document. Readers that already
+ * opened the old file keep reading the old content.
+ * <p>
+ * Unless fsync is OFF, every write is durable when it returns: a temporary
+ * file is forced before being moved, and then the directories whose entries
+ * changed are forced, as is a file after an append. The latter go through a
+ * {@link GroupCommit}, so concurrent writes share the forces of the same
+ * directories and files.
+ */
+public class FileEngine implements StorageEngine {
+	public static final String tmp_prefix = StorageEngine.reserved_prefix + "new_";
+
+	private final Path root;
+	// Null if writes aren't forced
+	private final GroupCommit<Path> commit;
+
+	/**
+	 * Creates a new engine that doesn't force writes. If the root directory
+	 * doesn't exists, creates it.
+	 *
+	 * @param root_set path to the root directory
+	 * @throws IOException if happens an error during the creation of root dir
+	 */
+	public FileEngine(Path root_set) throws IOException {
+		this(root_set, GroupCommit.Mode.OFF);
+	}
+
+	/**
+	 * Creates a new engine. If the root directory doesn't exists, creates
+	 * it.
+	 *
+	 * @param root_set path to the root directory
+	 * @param sync how writes are forced to disk
+	 * @throws IOException if happens an error during the creation of root dir
+	 */
+	public FileEngine(Path root_set, GroupCommit.Mode sync) throws IOException {
+		root = root_set;
+		try {
+			Files.createDirectory(root);
+		}
+		catch (FileAlreadyExistsException e) {
+			// Directory already exists, nothing to do
+		}
+		commit = sync == GroupCommit.Mode.OFF ? null : new GroupCommit<Path>(FileEngine::force, sync);
+	}
+
+	/**
+	 * Forces a file or a directory to disk. Directories can't be forced on
+	 * every platform, there failures are ignored.
+	 */
+	private static void force(Path p) throws IOException {
+		try (
+			FileChannel chnl = FileChannel.open(p, READ);
+		) {
+			chnl.force(true);
+		}
+		catch (IOException e) {
+			if (!Files.isDirectory(p)) {
+				throw e;
+			}
+		}
+	}
+
+	private Path resolve(String key) {
+		return root.resolve(key);
+	}
+
+	private Path tmpPath(Path f) {
+		return f.resolveSibling(tmp_prefix + f.getFileName().toString());
+	}
+
+	/**
+	 * Creates the missing parent directories of a file.
+	 *
+	 * @return the directories whose entries will change creating f or moving
+	 *         something on it: its parent, and the parents of the
+	 *         directories created
+	 */
+	private List<Path> createParents(Path f) throws IOException {
+		List<Path> changed = new ArrayList<Path>();
+		Path dir = f.getParent();
+		changed.add(dir);
+		if (commit != null) {
+			for (Path p = dir; !p.equals(root) && !Files.isDirectory(p); p = p.getParent()) {
+				changed.add(p.getParent());
+			}
+		}
+		Files.createDirectories(dir);
+		return changed;
+	}
+
+	/**
+	 * Moves a new version of a file over the old one, and makes the move
+	 * durable if writes are forced.
+	 */
+	private void replace(Path tmp, Path f, List<Path> changed) throws IOException {
+		Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (commit != null) {
+			commit.commit(changed);
+		}
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return resolve(key).toFile().exists();
+	}
+
+	@Override
+	public long size(String key) throws IOException {
+		try {
+			return Files.size(resolve(key));
+		}
+		catch (NoSuchFileException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public boolean create(String key, ByteBuffer content) throws IOException {
+		Path f = resolve(key);
+		List<Path> changed = createParents(f);
+		try (
+			FileChannel out = FileChannel.open(f, CREATE_NEW, WRITE);
+		) {
+			while (content.hasRemaining()) {
+				out.write(content);
+			}
+		}
+		catch (FileAlreadyExistsException e) {
+			return false;
+		}
+		if (commit != null) {
+			changed.add(0, f);
+			commit.commit(changed);
+		}
+		return true;
+	}
+
+	@Override
+	public void append(String key, ByteBuffer data) throws IOException {
+		Path f = resolve(key);
+		try (
+			FileChannel out = FileChannel.open(f, WRITE, APPEND);
+		) {
+			while (data.hasRemaining()) {
+				out.write(data);
+			}
+		}
+		if (commit != null) {
+			commit.commit(f);
+		}
+	}
+
+	@Override
+	public void put(String key, ByteBuffer content) throws IOException {
+		Path f = resolve(key);
+		List<Path> changed = createParents(f);
+		// Forced before the move, or a crash could leave f empty
+		IOUtils.bufferToFile(content, tmpPath(f), commit != null);
+		replace(tmpPath(f), f, changed);
+	}
+
+	@Override
+	public long put(String key, ReadableByteChannel src) throws IOException {
+		Path f = resolve(key);
+		List<Path> changed = createParents(f);
+		IOUtils.channelToFile(src, tmpPath(f), commit != null);
+		long size = Files.size(tmpPath(f));
+		replace(tmpPath(f), f, changed);
+		return size;
+	}
+
+	@Override
+	public ByteBuffer read(String key) throws IOException {
+		try {
+			return ByteBuffer.wrap(Files.readAllBytes(resolve(key)));
+		}
+		catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public Blob open(String key) throws IOException {
+		try {
+			return Blob.ofFile(resolve(key));
+		}
+		catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public List<String> list(String parent, String name_prefix) throws IOException {
+		List<String> result = new ArrayList<String>();
+		try (
+			DirectoryStream<Path> files = Files.newDirectoryStream(resolve(parent), name_prefix + "*");
+		) {
+			for (Path p : files) {
+				result.add(p.getFileName().toString());
+			}
+		}
+		catch (NoSuchFileException e) {
+			// No parent, no keys
+		}
+		return result;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release, every file is closed after each operation
+	}
+}
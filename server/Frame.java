@@ -0,0 +1,369 @@
+package server;
+
+import java.util.*;
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import server.lib.*;
+
+/**
+ * A complete message to be sent to a client.
+ * <p>
+ * A frame is built appending its fields with the put methods, and then it's
+ * handed to {@link ConcurrentSocketChannel#send}. Since a frame is sent as a
+ * whole, frames sent concurrently on the same connection never mix up.
+ * <p>
+ * Fields are packed in a single buffer, so that a small frame is written with
+ * a single syscall. Buffers are taken from {@link BufferPool} and released
+ * once written. Files bigger than {@link copy_threshold} aren't copied in
+ * memory: they're kept as regions of an open FileChannel and sent with
+ * {@link FileChannel#transferTo}. A frame is thus a sequence of
+ * {@link Part}s, alternating buffers and file regions.
+ * <p>
+ * Not synchronized: a frame must be built by a single thread, and must not
+ * be modified after it has been sent. A frame that isn't sent after a file
+ * has been put in it must be {@link release}d.
+ */
+public class Frame {
+	/**
+	 * Files up to this size are copied in the frame, bigger ones are
+	 * transferred directly from the file when the frame is written.
+	 */
+	public static final long copy_threshold = 32 * 1024;
+	private static final int initial_capacity = 64;
+
+	private final List<Part> parts;
+	private final boolean push;
+	private boolean pipeline_switch;
+	// Total size of the files put in this frame
+	private long file_bytes;
+	// Buffer to which fields are appended, not yet in parts. Null if no field
+	// has been appended since the last part
+	private ByteBuffer current;
+
+	/**
+	 * Piece of a frame, either a buffer or a region of a file.
+	 */
+	public static final class Part {
+		private final ByteBuffer buff;
+		private final boolean pooled;
+		private final FileChannel file;
+		private long position;
+		private final long end;
+
+		/**
+		 * Creates a part that writes the remaining bytes of a buffer.
+		 *
+		 * @param buff_set the buffer, ready to be read
+		 * @param pooled_set whether the buffer must be given back to
+		 *                   BufferPool once written
+		 */
+		Part(ByteBuffer buff_set, boolean pooled_set) {
+			buff = buff_set;
+			pooled = pooled_set;
+			file = null;
+			position = 0;
+			end = 0;
+		}
+
+		private Part(FileChannel file_set, long position_set, long size) {
+			buff = null;
+			pooled = false;
+			file = file_set;
+			position = position_set;
+			end = position_set + size;
+		}
+
+		/**
+		 * Check whether this part is a file region.
+		 *
+		 * @return true iff this part is sent from a file
+		 */
+		public boolean isFile() {
+			return file != null;
+		}
+
+		/**
+		 * Get the buffer of this part.
+		 *
+		 * @return the buffer, ready to be read, or null if this part is a
+		 *         file region
+		 */
+		public ByteBuffer getBuffer() {
+			return buff;
+		}
+
+		/**
+		 * Check whether this part has still something to write.
+		 *
+		 * @return true iff not everything has been written yet
+		 */
+		public boolean hasRemaining() {
+			return file == null ? buff.hasRemaining() : position < end;
+		}
+
+		/**
+		 * Writes as much as possible of this file region to a channel.
+		 *
+		 * @param chnl channel to write to
+		 * @return the number of bytes written
+		 * @throws IOException if the file is shorter than expected, or if an
+		 *                     IO error occurs
+		 */
+		public long transferTo(WritableByteChannel chnl) throws IOException {
+			long count = file.transferTo(position, end - position, chnl);
+			if (count == 0 && file.size() <= position) {
+				throw new IOException("File truncated while being sent");
+			}
+			position += count;
+			return count;
+		}
+
+		/**
+		 * Releases the resources of this part: its file, or its buffer if it
+		 * was taken from BufferPool.
+		 */
+		public void release() {
+			if (pooled) {
+				BufferPool.release(buff);
+			}
+			else if (file != null) {
+				try {
+					file.close();
+				}
+				catch (IOException e) {
+					// Nothing else to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a new empty frame.
+	 *
+	 * @param push_set whether the frame is sent by the server on its own
+	 *                 initiative rather than in response to a request
+	 */
+	public Frame(boolean push_set) {
+		parts = new ArrayList<Part>();
+		push = push_set;
+		pipeline_switch = false;
+		file_bytes = 0;
+		current = null;
+	}
+
+	/**
+	 * Check whether this frame is sent on the server's initiative. In
+	 * pipelined mode such frames are prefixed by
+	 * {@link server.lib.Constants#push_id} when they are sent.
+	 *
+	 * @return true iff this frame isn't a response
+	 */
+	public boolean isPush() {
+		return push;
+	}
+
+	/**
+	 * Marks this frame as the last one before the connection switches to
+	 * pipelined mode.
+	 */
+	public void switchToPipelined() {
+		pipeline_switch = true;
+	}
+
+	/**
+	 * Check whether the connection switches to pipelined mode after this
+	 * frame.
+	 *
+	 * @return true iff this is the last frame not in pipelined mode
+	 */
+	public boolean switchesToPipelined() {
+		return pipeline_switch;
+	}
+
+	/**
+	 * Get the number of bytes of files in this frame.
+	 *
+	 * @return the total size of the files put in this frame
+	 */
+	public long getFileBytes() {
+		return file_bytes;
+	}
+
+	/**
+	 * Get the content of this frame. After this call nothing can be appended
+	 * to this frame.
+	 *
+	 * @return the parts that make up this frame, in order and ready to be
+	 *         written
+	 */
+	public List<Part> getParts() {
+		seal();
+		return parts;
+	}
+
+	/**
+	 * Releases the files and buffers held by this frame. To be called if the
+	 * frame won't be sent.
+	 */
+	public void release() {
+		seal();
+		for (Part p : parts) {
+			p.release();
+		}
+		parts.clear();
+	}
+
+	// ================================ FIELDS ================================
+	/**
+	 * Moves the buffer being filled to the parts of this frame.
+	 */
+	private void seal() {
+		if (current != null) {
+			current.flip();
+			parts.add(new Part(current, true));
+			current = null;
+		}
+	}
+
+	/**
+	 * Makes sure that the buffer being filled has room for more bytes.
+	 *
+	 * @param size number of bytes to be appended
+	 * @return the buffer to which append them
+	 */
+	private ByteBuffer reserve(int size) {
+		if (current == null) {
+			current = BufferPool.acquire(Math.max(initial_capacity, size));
+			current.clear();
+		}
+		else if (current.remaining() < size) {
+			ByteBuffer bigger = BufferPool.acquire(Math.max(current.capacity() * 2, current.position() + size));
+			bigger.clear();
+			current.flip();
+			bigger.put(current);
+			BufferPool.release(current);
+			current = bigger;
+		}
+		return current;
+	}
+
+	/**
+	 * Appends a byte.
+	 *
+	 * @param b byte to append
+	 * @return this frame
+	 */
+	public Frame putByte(byte b) {
+		reserve(1).put(b);
+		return this;
+	}
+
+	/**
+	 * Appends a boolean, as a byte.
+	 *
+	 * @param b boolean to append
+	 * @return this frame
+	 */
+	public Frame putBool(boolean b) {
+		return putByte((byte)(b ? 1 : 0));
+	}
+
+	/**
+	 * Appends a kind of operation, as a byte.
+	 *
+	 * @param op the OpKind to append
+	 * @return this frame
+	 */
+	public Frame putOpKind(OpKind op) {
+		return putByte(OpKind.getNum(op));
+	}
+
+	/**
+	 * Appends an int.
+	 *
+	 * @param n int to append
+	 * @return this frame
+	 */
+	public Frame putInt(int n) {
+		reserve(Integer.BYTES).putInt(n);
+		return this;
+	}
+
+	/**
+	 * Appends a long.
+	 *
+	 * @param n long to append
+	 * @return this frame
+	 */
+	public Frame putLong(long n) {
+		reserve(Long.BYTES).putLong(n);
+		return this;
+	}
+
+	/**
+	 * Appends a string, in the format specified in the report.
+	 *
+	 * @param str string to append
+	 * @return this frame
+	 */
+	public Frame putString(String str) {
+		StringCodec.encode(str, reserve(StringCodec.maxEncodedSize(str)));
+		return this;
+	}
+
+	/**
+	 * Appends a whole file, preceded by its length as a long, like
+	 * {@link IOUtils#fileToChannel}.
+	 * <p>
+	 * The file is opened immediately, so if it's later replaced by another
+	 * file (rather than modified) the frame still sends the old content.
+	 *
+	 * @param f path to the file
+	 * @return this frame
+	 */
+	public Frame putFile(Path f) throws IOException {
+		return putBlob(Blob.ofFile(f));
+	}
+
+	/**
+	 * Appends a value read from a {@link StorageEngine}, preceded by its
+	 * length as a long, like {@link #putFile}. The frame takes ownership of
+	 * the blob: it's closed once copied or sent, or when the frame is
+	 * released.
+	 * <p>
+	 * Values in direct buffers (as the ones of {@link SectionCache}) are
+	 * never copied: the buffer becomes a part of the frame, written with
+	 * the fields around it by a single gathering write.
+	 *
+	 * @param blob the value
+	 * @return this frame
+	 */
+	public Frame putBlob(Blob blob) throws IOException {
+		try {
+			long size = blob.getSize();
+			putLong(size);
+			file_bytes += size;
+			ByteBuffer buff = blob.getBuffer();
+			if (buff != null && (buff.isDirect() || size > copy_threshold)) {
+				// Already in memory, written without copying it
+				seal();
+				parts.add(new Part(buff, false));
+			}
+			else if (size <= copy_threshold) {
+				blob.copyTo(reserve((int)size));
+				blob.close();
+			}
+			else {
+				seal();
+				parts.add(new Part(blob.getChannel(), blob.getPosition(), size));
+			}
+		}
+		catch (IOException e) {
+			blob.close();
+			throw e;
+		}
+		return this;
+	}
+}
@@ -0,0 +1,185 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Makes writes durable forcing their files to disk, sharing a single force
+ * among all the writes that need it at about the same time (group commit).
+ * <p>
+ * A writer calls {@link #commit} with the targets (files, segments...) it
+ * has written, and returns once they've been forced. The first writer that
+ * finds no force in progress becomes the leader: it takes every target
+ * requested so far, forces each distinct one once, and wakes up the writers
+ * that were waiting for them. Writers arriving while the leader is forcing
+ * gather in the next batch, and one of them leads it when the current
+ * force ends. So the more the writers, the bigger the batches, and the
+ * number of forces per second stays about the same as with a single writer.
+ *
+ * @param <T> type of the targets to force; equal targets in the same batch
+ *            are forced once
+ */
+public class GroupCommit<T> {
+	/**
+	 * How writes are made durable.
+	 */
+	public enum Mode {
+		// Never forced, as the OS sees fit
+		OFF,
+		// Forced by every writer on its own
+		EACH,
+		// Forced in batches, as described above
+		GROUP;
+
+		/**
+		 * Get a mode from its name, as given to {@code --fsync}.
+		 *
+		 * @param name the name, case insensitive
+		 * @return the mode
+		 * @throws IllegalArgumentException if there's no such mode
+		 */
+		public static Mode parse(String name) throws IllegalArgumentException {
+			return valueOf(name.toUpperCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * Forces a target to disk.
+	 */
+	public interface Forcer<T> {
+		public void force(T target) throws IOException;
+	}
+
+	private static final class Batch<T> {
+		private final Set<T> targets = new LinkedHashSet<T>();
+		private boolean done = false;
+		private IOException error = null;
+	}
+
+	private final Forcer<T> forcer;
+	private final boolean batching;
+	private final Lock lock;
+	private final Condition committed;
+	// Batch collecting targets, guarded by lock
+	private Batch<T> open;
+	// Whether a leader is forcing a batch, guarded by lock
+	private boolean forcing;
+	private final AtomicLong commits;
+	private final AtomicLong forces;
+
+	/**
+	 * Creates a new group commit.
+	 *
+	 * @param forcer_set how to force a target
+	 * @param mode_set EACH to force the targets of each commit on their own,
+	 *                 GROUP to batch them
+	 * @throws IllegalArgumentException if mode_set is OFF
+	 */
+	public GroupCommit(Forcer<T> forcer_set, Mode mode_set) throws IllegalArgumentException {
+		if (mode_set == Mode.OFF) {
+			throw new IllegalArgumentException("Nothing to commit with fsync off");
+		}
+		forcer = forcer_set;
+		batching = mode_set == Mode.GROUP;
+		lock = new ReentrantLock();
+		committed = lock.newCondition();
+		open = new Batch<T>();
+		forcing = false;
+		commits = new AtomicLong(0);
+		forces = new AtomicLong(0);
+	}
+
+	/**
+	 * Forces a target to disk, in a batch with other commits.
+	 *
+	 * @param target the target
+	 * @throws IOException if forcing the batch failed
+	 */
+	public void commit(T target) throws IOException {
+		commit(Collections.singletonList(target));
+	}
+
+	/**
+	 * Forces some targets to disk, in a batch with other commits. Blocks
+	 * until they're forced.
+	 *
+	 * @param targets the targets
+	 * @throws IOException if forcing the batch failed, even because of a
+	 *                     target of another commit
+	 */
+	public void commit(Collection<? extends T> targets) throws IOException {
+		commits.incrementAndGet();
+		if (!batching) {
+			for (T t : targets) {
+				forcer.force(t);
+			}
+			forces.incrementAndGet();
+			return;
+		}
+		Batch<T> batch;
+		try {
+			lock.lock();
+			batch = open;
+			batch.targets.addAll(targets);
+			// The batch is still open when no one is forcing, so who finds
+			// no leader leads it
+			while (!batch.done && forcing) {
+				committed.awaitUninterruptibly();
+			}
+			if (batch.done) {
+				if (batch.error != null) {
+					throw new IOException("Group commit failed", batch.error);
+				}
+				return;
+			}
+			forcing = true;
+			open = new Batch<T>();
+		}
+		finally {
+			lock.unlock();
+		}
+		IOException error = null;
+		for (T t : batch.targets) {
+			try {
+				forcer.force(t);
+			}
+			catch (IOException e) {
+				error = e;
+			}
+		}
+		forces.incrementAndGet();
+		try {
+			lock.lock();
+			batch.done = true;
+			batch.error = error;
+			forcing = false;
+			committed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Get the number of commits so far.
+	 *
+	 * @return how many times commit has been called
+	 */
+	public long getCommits() {
+		return commits.get();
+	}
+
+	/**
+	 * Get the number of batches forced so far.
+	 *
+	 * @return how many forces served the commits
+	 */
+	public long getForces() {
+		return forces.get();
+	}
+}
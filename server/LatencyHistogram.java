@@ -0,0 +1,151 @@
+package server;
+
+import java.util.concurrent.atomic.*;
+import server.lib.*;
+
+/**
+ * Lock-free histogram of durations, in nanoseconds.
+ * <p>
+ * Values are counted in buckets on a logarithmic scale: each power of two is
+ * split in 8 buckets, so a percentile is reported with an error of at most
+ * 12.5%. Recording a value is a few atomic increments, thus it can be done
+ * by any number of threads without contention on a lock. Reads aren't
+ * atomic snapshots, but each of them is consistent enough for monitoring.
+ */
+public class LatencyHistogram {
+	// Bits of the value kept after its most significant one
+	private static final int sub_bits = 3;
+	private static final int sub_buckets = 1 << sub_bits;
+	private static final int nbuckets = (64 - sub_bits) * sub_buckets;
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	/**
+	 * Creates a new empty histogram.
+	 */
+	public LatencyHistogram() {
+		buckets = new AtomicLongArray(nbuckets);
+		count = new AtomicLong(0);
+		sum = new AtomicLong(0);
+		max = new AtomicLong(0);
+	}
+
+	/**
+	 * Get the bucket of a value.
+	 */
+	private static int bucketOf(long value) {
+		if (value < sub_buckets) {
+			return (int)value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exp - sub_bits)) & (sub_buckets - 1);
+		return (exp - sub_bits + 1) * sub_buckets + sub;
+	}
+
+	/**
+	 * Get the highest value counted in a bucket.
+	 */
+	private static long highestOf(int bucket) {
+		if (bucket < sub_buckets) {
+			return bucket;
+		}
+		int exp = bucket / sub_buckets + sub_bits - 1;
+		long sub = bucket % sub_buckets;
+		long lowest = (sub_buckets + sub) << (exp - sub_bits);
+		return lowest + (1L << (exp - sub_bits)) - 1;
+	}
+
+	/**
+	 * Records a duration. Thread-safe and lock-free.
+	 *
+	 * @param nanos the duration, in nanoseconds. Negative values are
+	 *              counted as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long prev = max.get();
+		while (value > prev && !max.compareAndSet(prev, value)) {
+			prev = max.get();
+		}
+	}
+
+	/**
+	 * Get the number of recorded values.
+	 *
+	 * @return how many values have been recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the mean of the recorded values.
+	 *
+	 * @return the mean, in nanoseconds, or 0 if nothing has been recorded
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * Get the highest recorded value.
+	 *
+	 * @return the maximum, in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get a percentile of the recorded values.
+	 *
+	 * @param p the percentile, between 0 and 100
+	 * @return an upper bound of the p-th percentile, in nanoseconds, or 0 if
+	 *         nothing has been recorded
+	 */
+	public long getPercentile(double p) {
+		long total = 0;
+		long[] snapshot = new long[nbuckets];
+		for (int i = 0; i < nbuckets; ++i) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long)Math.ceil(total * p / 100));
+		long seen = 0;
+		for (int i = 0; i < nbuckets; ++i) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Get a summary of the recorded values, that can be sent through RMI.
+	 *
+	 * @return count, mean, p50, p99, p999 and max of the recorded values
+	 */
+	public LatencySummary getSummary() {
+		return new LatencySummary(getCount(), getMean(), getPercentile(50),
+			getPercentile(99), getPercentile(99.9), getMax());
+	}
+
+	/**
+	 * Get a short description of the recorded values, in microseconds.
+	 */
+	@Override
+	public String toString() {
+		return getSummary().toString();
+	}
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * A fixed set of locks, each guarding all the keys that hash to it.
+ * <p>
+ * Operations on different keys usually take different locks and run in
+ * parallel, while the number of locks doesn't grow with the number of keys.
+ * Two keys may share a lock, so a thread must never hold two locks of the
+ * same LockStripes at once, or it may deadlock with itself.
+ */
+public class LockStripes {
+	private final Lock[] locks;
+	private final int mask;
+
+	/**
+	 * Creates a new set of locks.
+	 *
+	 * @param n minimum number of locks, rounded up to a power of two
+	 * @throws IllegalArgumentException if n isn't positive
+	 */
+	public LockStripes(int n) throws IllegalArgumentException {
+		if (n <= 0) {
+			throw new IllegalArgumentException("The number of locks must be positive");
+		}
+		int size = Integer.highestOneBit(n);
+		if (size < n) {
+			size <<= 1;
+		}
+		locks = new Lock[size];
+		for (int i = 0; i < size; ++i) {
+			locks[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Get the lock guarding a key.
+	 *
+	 * @param key the key
+	 * @return the lock of key, always the same for equal keys
+	 */
+	public Lock get(String key) {
+		int h = key.hashCode();
+		// Spreads the high bits, Strings often differ only at the end
+		h ^= h >>> 16;
+		return locks[h & mask];
+	}
+}
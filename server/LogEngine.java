@@ -0,0 +1,728 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+import server.lib.*;
+import static server.Logger.Level.*;
+
+/**
+ * Log-structured storage engine: every change is a record appended to a
+ * segment file, and an in-memory index maps each key to the regions of the
+ * segments holding its value.
+ * <p>
+ * A record is made of a CRC32 of the rest of the record (an int), its type
+ * (a byte: put or append), the length of the key (an int), the length of
+ * the value (a long), the key in UTF-8 and the value. A put replaces the
+ * value of the key, an append adds to it, so a value is a put followed by
+ * any number of appends. Segments are named {@code segment-N.log} and only
+ * the last one is written; when it reaches the maximum size a new one is
+ * started.
+ * <p>
+ * At startup every segment is read in order to rebuild the index. A record
+ * that is incomplete or whose CRC doesn't match at the end of the last
+ * segment is the trace of a crash during a write, and it's truncated away;
+ * anywhere else it means the segment is corrupted, and the engine refuses
+ * to start.
+ * <p>
+ * Replaced values stay in their segments until compaction: a background
+ * thread periodically looks for segments where less than
+ * {@link #compact_ratio} of the bytes are still referenced, copies their
+ * live values to the end of the log as new puts, and deletes them. Copies
+ * are forced to disk before the old segment is deleted.
+ * <p>
+ * Writes and compaction are serialized by a lock, while reads only take the
+ * read side of a lock that guards the deletion of segments, so they run in
+ * parallel with each other and with writes.
+ * <p>
+ * Unless fsync is OFF, every write is durable when it returns: after
+ * appending its record, outside the lock, the writer forces the segment
+ * through a {@link GroupCommit}, so all the records appended while a force
+ * is in progress are made durable by the next single force.
+ */
+public class LogEngine implements StorageEngine {
+	public static final String segment_prefix = "segment-";
+	public static final String segment_suffix = ".log";
+	public static final long default_segment_bytes = 64L * 1024 * 1024;
+	// A segment is compacted when less than this fraction of it is live
+	public static final double compact_ratio = 0.5;
+	// Seconds between two checks of the compactor
+	private static final long compact_period = 10;
+	private static final byte put_record = 1;
+	private static final byte append_record = 2;
+	// CRC, type, key length and value length
+	private static final int header_size = 4 + 1 + 4 + 8;
+	private static final int chunk_size = 64 * 1024;
+	private static final Charset key_encoding = StandardCharsets.UTF_8;
+
+	/**
+	 * A segment file.
+	 */
+	private static final class Segment {
+		private final long id;
+		private final Path path;
+		private final FileChannel channel;
+		// Bytes of the records still referenced by the index
+		private final AtomicLong live;
+		// End of the last record, modified only with write_lock
+		private volatile long size;
+
+		private Segment(long id_set, Path path_set, FileChannel channel_set) {
+			id = id_set;
+			path = path_set;
+			channel = channel_set;
+			live = new AtomicLong(0);
+			size = 0;
+		}
+	}
+
+	/**
+	 * A region of a segment with part of a value.
+	 */
+	private static final class Extent {
+		private final Segment segment;
+		private final long position;
+		private final long length;
+		// Length of the whole record, header and key included
+		private final long record_length;
+
+		private Extent(Segment segment_set, long position_set, long length_set, long record_length_set) {
+			segment = segment_set;
+			position = position_set;
+			length = length_set;
+			record_length = record_length_set;
+		}
+	}
+
+	/**
+	 * Immutable entry of the index: the regions with the value of a key, in
+	 * order.
+	 */
+	private static final class Entry {
+		private final Extent[] extents;
+		private final long size;
+
+		private Entry(Extent[] extents_set) {
+			extents = extents_set;
+			long total = 0;
+			for (Extent e : extents) {
+				total += e.length;
+			}
+			size = total;
+		}
+
+		private Entry append(Extent e) {
+			Extent[] result = Arrays.copyOf(extents, extents.length + 1);
+			result[extents.length] = e;
+			return new Entry(result);
+		}
+
+		private boolean uses(Segment seg) {
+			for (Extent e : extents) {
+				if (e.segment == seg) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A record read from a segment.
+	 */
+	private static final class Record {
+		private final byte type;
+		private final String key;
+		private final long value_length;
+		// Length of the whole record
+		private final long length;
+
+		private Record(byte type_set, String key_set, long value_length_set, long length_set) {
+			type = type_set;
+			key = key_set;
+			value_length = value_length_set;
+			length = length_set;
+		}
+	}
+
+	private final Path dir;
+	private final long segment_bytes;
+	private final ConcurrentMap<String, Entry> index;
+	// Segments by id, guarded by write_lock
+	private final TreeMap<Long, Segment> segments;
+	// Segment being written, guarded by write_lock
+	private Segment active;
+	// Serializes writes to the active segment, index updates and compaction
+	private final Lock write_lock;
+	// Read side taken to read from segments, write side to delete them
+	private final ReadWriteLock files_lock;
+	private final Thread compactor;
+	private volatile boolean closed;
+	// Null if writes aren't forced
+	private final GroupCommit<Segment> commit;
+
+	/**
+	 * Opens the log in a directory, without forcing writes, as
+	 * {@link #LogEngine(Path, long, GroupCommit.Mode)}.
+	 *
+	 * @param dir_set directory of the segments
+	 * @param segment_bytes_set size after which a new segment is started
+	 * @throws IOException if a segment is corrupted or if an IO error occurs
+	 * @throws IllegalArgumentException if segment_bytes_set isn't positive
+	 */
+	public LogEngine(Path dir_set, long segment_bytes_set) throws IOException, IllegalArgumentException {
+		this(dir_set, segment_bytes_set, GroupCommit.Mode.OFF);
+	}
+
+	/**
+	 * Opens the log in a directory, creating it if it doesn't exist, and
+	 * starts the compaction thread, that is a daemon.
+	 *
+	 * @param dir_set directory of the segments
+	 * @param segment_bytes_set size after which a new segment is started
+	 * @param sync how writes are forced to disk
+	 * @throws IOException if a segment is corrupted or if an IO error occurs
+	 * @throws IllegalArgumentException if segment_bytes_set isn't positive
+	 */
+	public LogEngine(Path dir_set, long segment_bytes_set, GroupCommit.Mode sync) throws IOException, IllegalArgumentException {
+		if (segment_bytes_set <= 0) {
+			throw new IllegalArgumentException("Segments must have a positive size");
+		}
+		dir = dir_set;
+		segment_bytes = segment_bytes_set;
+		try {
+			Files.createDirectory(dir);
+		}
+		catch (FileAlreadyExistsException e) {
+			// Directory already exists, nothing to do
+		}
+		index = new ConcurrentHashMap<String, Entry>();
+		segments = new TreeMap<Long, Segment>();
+		write_lock = new ReentrantLock();
+		files_lock = new ReentrantReadWriteLock();
+		closed = false;
+		commit = sync == GroupCommit.Mode.OFF ? null : new GroupCommit<Segment>(LogEngine::force, sync);
+		recover();
+		compactor = new Thread(this::compactLoop, "turing-compactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	// ============================== RECOVERY ===============================
+	private Segment openSegment(long id) throws IOException {
+		Path path = dir.resolve(String.format("%s%016d%s", segment_prefix, id, segment_suffix));
+		boolean created = !path.toFile().exists();
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (created && commit != null) {
+			// The new segment must survive a crash, or so would not its
+			// records. Directories can't be forced on every platform
+			try (
+				FileChannel dir_chnl = FileChannel.open(dir, StandardOpenOption.READ);
+			) {
+				dir_chnl.force(true);
+			}
+			catch (IOException e) {
+				// Nothing else to do
+			}
+		}
+		return new Segment(id, path, channel);
+	}
+
+	/**
+	 * Rebuilds the index reading every segment, and chooses the segment to
+	 * write.
+	 */
+	private void recover() throws IOException {
+		List<Long> ids = new ArrayList<Long>();
+		boolean folders = false;
+		try (
+			DirectoryStream<Path> files = Files.newDirectoryStream(dir);
+		) {
+			for (Path p : files) {
+				String name = p.getFileName().toString();
+				if (name.startsWith(segment_prefix) && name.endsWith(segment_suffix)) {
+					ids.add(Long.parseLong(name.substring(segment_prefix.length(), name.length() - segment_suffix.length())));
+				}
+				else if (p.toFile().isDirectory()) {
+					folders = true;
+				}
+			}
+		}
+		if (ids.isEmpty() && folders) {
+			Logger.log(WARN, () -> dir.toString() + " looks like a db of files, convert it with MigrateDB");
+		}
+		Collections.sort(ids);
+		for (int i = 0; i < ids.size(); ++i) {
+			Segment seg = openSegment(ids.get(i));
+			segments.put(seg.id, seg);
+			long end = replay(seg);
+			if (end < seg.channel.size()) {
+				if (i < ids.size() - 1) {
+					throw new IOException("Segment " + seg.path.toString() + " corrupted at " + Long.toString(end));
+				}
+				Logger.log(WARN, () -> "Truncating incomplete record at the end of " + seg.path.toString());
+				seg.channel.truncate(end);
+			}
+			seg.size = end;
+		}
+		if (segments.isEmpty()) {
+			active = openSegment(1);
+			segments.put(active.id, active);
+		}
+		else {
+			active = segments.lastEntry().getValue();
+			if (active.size >= segment_bytes) {
+				active = openSegment(active.id + 1);
+				segments.put(active.id, active);
+			}
+		}
+		active.channel.position(active.size);
+		Logger.log(INFO, () -> "Log storage opened: " + Integer.toString(segments.size()) + " segments, "
+			+ Integer.toString(index.size()) + " keys");
+	}
+
+	/**
+	 * Applies every valid record of a segment to the index.
+	 *
+	 * @return the end of the last valid record
+	 */
+	private long replay(Segment seg) throws IOException {
+		long pos = 0;
+		long end = seg.channel.size();
+		Record r;
+		while ((r = readRecord(seg, pos, end, true)) != null) {
+			Extent e = new Extent(seg, pos + r.length - r.value_length, r.value_length, r.length);
+			apply(r.key, r.type, e);
+			pos += r.length;
+		}
+		return pos;
+	}
+
+	/**
+	 * Reads the record at a position of a segment.
+	 *
+	 * @param check whether to check the CRC, reading the whole value
+	 * @return the record, or null if there isn't a valid one
+	 */
+	private Record readRecord(Segment seg, long pos, long end, boolean check) throws IOException {
+		if (end - pos < header_size) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(header_size);
+		readFully(seg.channel, header, pos);
+		header.flip();
+		int crc = header.getInt();
+		byte type = header.get();
+		int key_length = header.getInt();
+		long value_length = header.getLong();
+		if ((type != put_record && type != append_record) || key_length < 0 || value_length < 0
+				|| end - pos - header_size < (long)key_length + value_length) {
+			return null;
+		}
+		ByteBuffer key = ByteBuffer.allocate(key_length);
+		readFully(seg.channel, key, pos + header_size);
+		key.flip();
+		if (check) {
+			CRC32 sum = new CRC32();
+			header.position(4);
+			sum.update(header);
+			sum.update(key.duplicate());
+			ByteBuffer chunk = ByteBuffer.allocate((int)Math.min(chunk_size, Math.max(1, value_length)));
+			long value_pos = pos + header_size + key_length;
+			long remaining = value_length;
+			while (remaining > 0) {
+				chunk.clear();
+				chunk.limit((int)Math.min(chunk.capacity(), remaining));
+				readFully(seg.channel, chunk, value_pos);
+				chunk.flip();
+				value_pos += chunk.remaining();
+				remaining -= chunk.remaining();
+				sum.update(chunk);
+			}
+			if ((int)sum.getValue() != crc) {
+				return null;
+			}
+		}
+		return new Record(type, key_encoding.decode(key).toString(), value_length, header_size + key_length + value_length);
+	}
+
+	private static void readFully(FileChannel chnl, ByteBuffer buff, long pos) throws IOException {
+		long p = pos;
+		while (buff.hasRemaining()) {
+			int n = chnl.read(buff, p);
+			if (n == -1) {
+				throw new EOFException("Unexpected end of segment");
+			}
+			p += n;
+		}
+	}
+
+	// =============================== WRITES ================================
+	/**
+	 * Updates the index with a record, keeping the count of live bytes of
+	 * the segments.
+	 */
+	private void apply(String key, byte type, Extent e) {
+		e.segment.live.addAndGet(e.record_length);
+		Entry old = index.get(key);
+		if (type == append_record && old != null) {
+			index.put(key, old.append(e));
+		}
+		else {
+			index.put(key, new Entry(new Extent[] { e }));
+			if (old != null) {
+				for (Extent x : old.extents) {
+					x.segment.live.addAndGet(-x.record_length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment. Must be called with
+	 * write_lock.
+	 *
+	 * @return the region of the value in the segment
+	 */
+	private Extent writeRecord(byte type, String key, ByteBuffer value) throws IOException {
+		byte[] key_bytes = key.getBytes(key_encoding);
+		long value_length = value.remaining();
+		ByteBuffer header = ByteBuffer.allocate(header_size + key_bytes.length);
+		header.putInt(0).put(type).putInt(key_bytes.length).putLong(value_length).put(key_bytes);
+		header.flip();
+		CRC32 sum = new CRC32();
+		header.position(4);
+		sum.update(header);
+		sum.update(value.duplicate());
+		header.putInt(0, (int)sum.getValue());
+		header.position(0);
+		long pos = active.size;
+		ByteBuffer[] parts = { header, value };
+		try {
+			while (header.hasRemaining() || value.hasRemaining()) {
+				active.channel.write(parts);
+			}
+		}
+		catch (IOException e) {
+			// Leave no half record behind, it would hide the next ones
+			active.channel.truncate(pos);
+			active.channel.position(pos);
+			throw e;
+		}
+		Extent result = new Extent(active, pos + header.capacity(), value_length, header.capacity() + value_length);
+		active.size = pos + result.record_length;
+		return result;
+	}
+
+	/**
+	 * Starts a new segment if the active one is full, forcing the old one to
+	 * disk. Must be called with write_lock.
+	 */
+	private void rollIfFull() throws IOException {
+		if (active.size < segment_bytes) {
+			return;
+		}
+		active.channel.force(false);
+		Segment seg = openSegment(active.id + 1);
+		segments.put(seg.id, seg);
+		active = seg;
+	}
+
+	/**
+	 * Appends a record and applies it to the index. Must be called with
+	 * write_lock.
+	 *
+	 * @return the segment the record was written to
+	 */
+	private Segment write(byte type, String key, ByteBuffer value) throws IOException {
+		Extent e = writeRecord(type, key, value);
+		apply(key, type, e);
+		rollIfFull();
+		return e.segment;
+	}
+
+	/**
+	 * Forces a segment to disk for a commit.
+	 */
+	private static void force(Segment seg) throws IOException {
+		try {
+			seg.channel.force(false);
+		}
+		catch (ClosedChannelException e) {
+			// Deleted by compaction: it was forced when it stopped being the
+			// active segment, and its values have been copied and forced
+		}
+	}
+
+	/**
+	 * Makes a write durable, if writes are forced. Must be called without
+	 * write_lock, so that other writes join the same force.
+	 */
+	private void sync(Segment seg) throws IOException {
+		if (commit != null) {
+			commit.commit(seg);
+		}
+	}
+
+	@Override
+	public boolean create(String key, ByteBuffer content) throws IOException {
+		Segment seg;
+		try {
+			write_lock.lock();
+			if (index.containsKey(key)) {
+				return false;
+			}
+			seg = write(put_record, key, content);
+		}
+		finally {
+			write_lock.unlock();
+		}
+		sync(seg);
+		return true;
+	}
+
+	@Override
+	public void append(String key, ByteBuffer data) throws IOException {
+		Segment seg;
+		try {
+			write_lock.lock();
+			if (!index.containsKey(key)) {
+				throw new NoSuchFileException(key);
+			}
+			seg = write(append_record, key, data);
+		}
+		finally {
+			write_lock.unlock();
+		}
+		sync(seg);
+	}
+
+	@Override
+	public void put(String key, ByteBuffer content) throws IOException {
+		Segment seg;
+		try {
+			write_lock.lock();
+			seg = write(put_record, key, content);
+		}
+		finally {
+			write_lock.unlock();
+		}
+		sync(seg);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The value is received in memory before being written, so that the log
+	 * isn't blocked while it's read from the channel.
+	 */
+	@Override
+	public long put(String key, ReadableByteChannel src) throws IOException {
+		ByteBuffer content = IOUtils.channelToBuffer(src);
+		long size = content.remaining();
+		put(key, content);
+		return size;
+	}
+
+	// =============================== READS =================================
+	@Override
+	public boolean exists(String key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public long size(String key) {
+		Entry e = index.get(key);
+		return e == null ? -1 : e.size;
+	}
+
+	/**
+	 * Reads a value in memory. Must be called with the read side of
+	 * files_lock, or with write_lock.
+	 */
+	private ByteBuffer readEntry(Entry entry) throws IOException {
+		if (entry.size > Integer.MAX_VALUE) {
+			throw new IOException("Value too big to be read in memory");
+		}
+		ByteBuffer result = ByteBuffer.allocate((int)entry.size);
+		for (Extent e : entry.extents) {
+			result.limit(result.position() + (int)e.length);
+			readFully(e.segment.channel, result, e.position);
+		}
+		result.flip();
+		return result;
+	}
+
+	@Override
+	public ByteBuffer read(String key) throws IOException {
+		try {
+			files_lock.readLock().lock();
+			Entry e = index.get(key);
+			return e == null ? null : readEntry(e);
+		}
+		finally {
+			files_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A value written with a single put is a region of its segment, opened
+	 * with a new channel so that it can be read even if the segment is
+	 * deleted by compaction meanwhile. Other values are read in memory.
+	 */
+	@Override
+	public Blob open(String key) throws IOException {
+		try {
+			files_lock.readLock().lock();
+			Entry entry = index.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.extents.length > 1) {
+				return Blob.ofBuffer(readEntry(entry));
+			}
+			Extent e = entry.extents[0];
+			return Blob.ofRegion(FileChannel.open(e.segment.path, StandardOpenOption.READ), e.position, e.length);
+		}
+		finally {
+			files_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<String> list(String parent, String name_prefix) {
+		String prefix = parent + Section.sep;
+		List<String> result = new ArrayList<String>();
+		for (String key : index.keySet()) {
+			if (key.startsWith(prefix) && key.startsWith(name_prefix, prefix.length())
+					&& key.indexOf(Section.sep, prefix.length()) == -1) {
+				result.add(key.substring(prefix.length()));
+			}
+		}
+		return result;
+	}
+
+	// ============================= COMPACTION ==============================
+	private void compactLoop() {
+		while (!closed) {
+			// Not interrupted by close, that would close the channel being
+			// written
+			LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(compact_period));
+			if (closed) {
+				break;
+			}
+			try {
+				compact();
+			}
+			catch (IOException e) {
+				Logger.log(ERROR, () -> "Compaction failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Compacts every segment, except the active one, where less than
+	 * {@link #compact_ratio} of the bytes are still referenced. Called
+	 * periodically by the compaction thread.
+	 *
+	 * @return the number of segments compacted
+	 * @throws IOException if an IO error occurs
+	 */
+	public int compact() throws IOException {
+		List<Segment> victims = new ArrayList<Segment>();
+		try {
+			write_lock.lock();
+			for (Segment seg : segments.values()) {
+				if (seg != active && seg.live.get() < seg.size * compact_ratio) {
+					victims.add(seg);
+				}
+			}
+		}
+		finally {
+			write_lock.unlock();
+		}
+		// One at a time, so that writes can proceed in between
+		for (Segment seg : victims) {
+			try {
+				write_lock.lock();
+				compactSegment(seg);
+			}
+			finally {
+				write_lock.unlock();
+			}
+		}
+		return victims.size();
+	}
+
+	/**
+	 * Copies the live values of a segment to the end of the log and deletes
+	 * it. Must be called with write_lock.
+	 */
+	private void compactSegment(Segment seg) throws IOException {
+		long pos = 0;
+		long copied = 0;
+		Set<String> seen = new HashSet<String>();
+		Record r;
+		while ((r = readRecord(seg, pos, seg.size, false)) != null) {
+			pos += r.length;
+			if (!seen.add(r.key)) {
+				continue;
+			}
+			Entry e = index.get(r.key);
+			if (e != null && e.uses(seg)) {
+				ByteBuffer value = readEntry(e);
+				copied += value.remaining();
+				write(put_record, r.key, value);
+			}
+		}
+		// The copies must be on disk before the originals are deleted
+		active.channel.force(false);
+		try {
+			files_lock.writeLock().lock();
+			segments.remove(seg.id);
+			seg.channel.close();
+			Files.delete(seg.path);
+		}
+		finally {
+			files_lock.writeLock().unlock();
+		}
+		final long moved = copied;
+		Logger.log(DEBUG, () -> "Compacted " + seg.path.getFileName().toString() + ", "
+			+ Long.toString(moved) + " bytes copied");
+	}
+
+	/**
+	 * Stops the compaction thread, forces the log to disk and closes the
+	 * segments.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(compactor);
+		try {
+			compactor.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			write_lock.lock();
+			active.channel.force(false);
+			for (Segment seg : segments.values()) {
+				seg.channel.close();
+			}
+		}
+		finally {
+			write_lock.unlock();
+		}
+	}
+}
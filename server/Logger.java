@@ -0,0 +1,367 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.io.*;
+import java.nio.file.*;
+import java.text.*;
+import server.lib.*;
+
+/**
+ * Leveled and asynchronous logger of TURING server.
+ * <p>
+ * Messages below the configured level are discarded before being built,
+ * since they're passed as Suppliers. The others are put in a bounded
+ * lock-free ring buffer, and a background thread writes them either to
+ * stdout or to a rolling file. A thread that logs never waits for IO nor for
+ * other threads: if the buffer is full the message is dropped and counted,
+ * and the count is written in the log as soon as there's room again.
+ * <p>
+ * Until {@link start} is called messages are written synchronously to
+ * stdout, which is handy for tests and tools.
+ */
+public final class Logger {
+	/**
+	 * Levels of the messages, from the least to the most important.
+	 */
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	private static final int default_buffer = 8192;
+	private static final int default_file_mb = 16;
+	// Number of old files kept when the log file is rotated
+	private static final int kept_files = 5;
+	// How long the writer sleeps when there's nothing to write
+	private static final long idle_nanos = 10 * 1000 * 1000;
+
+	private static volatile Level level = Level.INFO;
+	private static volatile Ring ring = null;
+	private static final AtomicLong dropped = new AtomicLong(0);
+	// Set when the JVM exits, to make the writer write what's left and stop
+	private static volatile boolean stop = false;
+	// Output options, used by start
+	private static String file = null;
+	private static long file_bytes = default_file_mb * 1024L * 1024L;
+	private static int buffer_size = default_buffer;
+
+	private Logger() {}
+
+	/**
+	 * A message waiting to be written.
+	 */
+	private static final class Entry {
+		private final long time;
+		private final Level level;
+		private final String thread;
+		private final String message;
+
+		private Entry(Level level_set, String message_set) {
+			time = System.currentTimeMillis();
+			level = level_set;
+			thread = Thread.currentThread().getName();
+			message = message_set;
+		}
+	}
+
+	/**
+	 * Bounded lock-free queue with many producers and a single consumer.
+	 * <p>
+	 * Each slot has a sequence number telling whether it's free for the
+	 * producer of a given position or full for the consumer, so that
+	 * producers only contend on a CAS of the tail.
+	 */
+	private static final class Ring {
+		private final int mask;
+		private final AtomicReferenceArray<Entry> slots;
+		private final AtomicLongArray seqs;
+		private final AtomicLong tail;
+		// Only used by the consumer
+		private long head;
+
+		private Ring(int capacity) {
+			int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+			mask = size - 1;
+			slots = new AtomicReferenceArray<Entry>(size);
+			seqs = new AtomicLongArray(size);
+			for (int i = 0; i < size; ++i) {
+				seqs.set(i, i);
+			}
+			tail = new AtomicLong(0);
+			head = 0;
+		}
+
+		private boolean offer(Entry e) {
+			long pos = tail.get();
+			while (true) {
+				int idx = (int)(pos & mask);
+				long diff = seqs.get(idx) - pos;
+				if (diff == 0) {
+					if (tail.compareAndSet(pos, pos + 1)) {
+						slots.set(idx, e);
+						seqs.set(idx, pos + 1);
+						return true;
+					}
+					pos = tail.get();
+				}
+				else if (diff < 0) {
+					// The slot still holds a message of the previous lap
+					return false;
+				}
+				else {
+					pos = tail.get();
+				}
+			}
+		}
+
+		private Entry poll() {
+			int idx = (int)(head & mask);
+			if (seqs.get(idx) != head + 1) {
+				return null;
+			}
+			Entry e = slots.get(idx);
+			slots.set(idx, null);
+			seqs.set(idx, head + mask + 1);
+			++head;
+			return e;
+		}
+	}
+
+	// ============================ CONFIGURATION ============================
+	/**
+	 * Reads the logging options: {@code --log-level=debug|info|warn|error},
+	 * {@code --log-file=path} (stdout if missing), {@code --log-size=MB} (size
+	 * at which the file is rotated) and {@code --log-buffer=N} (messages that
+	 * can wait to be written).
+	 *
+	 * @param config options of the server
+	 * @throws IllegalArgumentException if an option is invalid
+	 */
+	public static void configure(ServerConfig config) throws IllegalArgumentException {
+		String lvl = config.getString("log-level", "info");
+		try {
+			level = Level.valueOf(lvl.toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown log level " + lvl);
+		}
+		file = config.has("log-file") ? config.getString("log-file", null) : null;
+		if ("".equals(file)) {
+			throw new IllegalArgumentException("Option --log-file requires a path");
+		}
+		int mb = config.getInt("log-size", default_file_mb, default_file_mb);
+		buffer_size = config.getInt("log-buffer", default_buffer, default_buffer);
+		if (mb <= 0 || buffer_size <= 0) {
+			throw new IllegalArgumentException("Log size and buffer must be positive");
+		}
+		file_bytes = mb * 1024L * 1024L;
+	}
+
+	/**
+	 * Starts the background writer. From now on messages are written
+	 * asynchronously. Calling it again has no effect.
+	 *
+	 * @throws IOException if the log file can't be opened
+	 */
+	public static synchronized void start() throws IOException {
+		if (ring != null) {
+			return;
+		}
+		Ring r = new Ring(buffer_size);
+		Writer thread_out = file == null ? null : new RollingFile(Paths.get(file), file_bytes);
+		Thread writer = new Thread(() -> drain(r, thread_out), "logger");
+		writer.setDaemon(true);
+		writer.start();
+		// Writes what's left when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			stop = true;
+			LockSupport.unpark(writer);
+			try {
+				writer.join(1000);
+			}
+			catch (InterruptedException e) {
+				// Exiting anyway
+			}
+		}));
+		ring = r;
+	}
+
+	// =============================== LOGGING ===============================
+	/**
+	 * Check whether messages of a level are logged.
+	 *
+	 * @param lvl the level
+	 * @return true iff messages of level lvl are written
+	 */
+	public static boolean isEnabled(Level lvl) {
+		return lvl.compareTo(level) >= 0;
+	}
+
+	/**
+	 * Logs a message. Thread-safe, never blocks.
+	 *
+	 * @param lvl level of the message
+	 * @param msg the message, built only if the level is enabled
+	 */
+	public static void log(Level lvl, Supplier<String> msg) {
+		if (isEnabled(lvl)) {
+			log(lvl, msg.get());
+		}
+	}
+
+	/**
+	 * Logs a message already built. Thread-safe, never blocks.
+	 *
+	 * @param lvl level of the message
+	 * @param msg the message
+	 */
+	public static void log(Level lvl, String msg) {
+		if (!isEnabled(lvl)) {
+			return;
+		}
+		Ring r = ring;
+		if (r == null) {
+			System.out.println(msg);
+		}
+		else if (!r.offer(new Entry(lvl, msg))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of messages dropped because the buffer was full.
+	 *
+	 * @return how many messages were dropped
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	// =============================== WRITER ================================
+	/**
+	 * Body of the writer thread: writes messages until asked to stop, then
+	 * writes the ones left and exits.
+	 *
+	 * @param r the buffer to drain
+	 * @param out the rolling file, or null to write to stdout
+	 */
+	private static void drain(Ring r, Writer out) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		StringBuilder line = new StringBuilder();
+		long reported = 0;
+		boolean stopping = false;
+		while (true) {
+			Entry e;
+			boolean wrote = false;
+			while ((e = r.poll()) != null) {
+				line.setLength(0);
+				line.append(format.format(new Date(e.time))).append(' ')
+					.append(e.level.toString()).append(" [").append(e.thread)
+					.append("] ").append(e.message).append(IOUtils.linesep);
+				write(out, line.toString());
+				wrote = true;
+			}
+			long now_dropped = dropped.get();
+			if (now_dropped != reported) {
+				write(out, "Logger: " + Long.toString(now_dropped - reported)
+					+ " messages dropped" + IOUtils.linesep);
+				reported = now_dropped;
+				wrote = true;
+			}
+			if (wrote) {
+				flush(out);
+			}
+			if (stopping) {
+				return;
+			}
+			if (!wrote) {
+				LockSupport.parkNanos(idle_nanos);
+			}
+			stopping = stop;
+		}
+	}
+
+	private static void write(Writer out, String s) {
+		if (out == null) {
+			// Looked up every time, so that it can be redirected
+			System.out.print(s);
+			return;
+		}
+		try {
+			out.write(s);
+		}
+		catch (IOException e) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static void flush(Writer out) {
+		if (out == null) {
+			System.out.flush();
+			return;
+		}
+		try {
+			out.flush();
+		}
+		catch (IOException e) {
+			// Nothing else to do
+		}
+	}
+
+	/**
+	 * Log file that is rotated when it reaches a given size: the current file
+	 * is renamed to name.1, name.1 to name.2 and so on, keeping at most
+	 * kept_files old files.
+	 */
+	private static final class RollingFile extends Writer {
+		private final Path path;
+		private final long max_bytes;
+		private Writer out;
+		private long written;
+
+		private RollingFile(Path path_set, long max_bytes_set) throws IOException {
+			path = path_set;
+			max_bytes = max_bytes_set;
+			open();
+		}
+
+		private void open() throws IOException {
+			written = Files.exists(path) ? Files.size(path) : 0;
+			// Not a FileChannel, that would be closed by an interrupt
+			out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(path.toFile(), true), Constants.encoding));
+		}
+
+		private void rotate() throws IOException {
+			out.close();
+			for (int i = kept_files - 1; i >= 1; --i) {
+				Path old = Paths.get(path.toString() + "." + Integer.toString(i));
+				if (Files.exists(old)) {
+					Files.move(old, Paths.get(path.toString() + "." + Integer.toString(i + 1)), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			Files.move(path, Paths.get(path.toString() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+			open();
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			if (written > 0 && written + len > max_bytes) {
+				rotate();
+			}
+			out.write(cbuf, off, len);
+			// Characters, not bytes: close enough for deciding when to rotate
+			written += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
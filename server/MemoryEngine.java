@@ -0,0 +1,110 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+import java.util.concurrent.*;
+import server.lib.*;
+
+/**
+ * Storage engine keeping every value in memory, lost when the server stops.
+ * Meant for benchmarks and tests that shouldn't depend on the disk.
+ * <p>
+ * Values are byte arrays that are never modified: a put replaces the array,
+ * an append replaces it with a longer copy. So a {@link Blob} opened on a
+ * value keeps the content it had, without copying it.
+ */
+public class MemoryEngine implements StorageEngine {
+	// Sorted, so that the keys under a prefix are a range
+	private final ConcurrentNavigableMap<String, byte[]> values;
+
+	/**
+	 * Creates a new empty engine.
+	 */
+	public MemoryEngine() {
+		values = new ConcurrentSkipListMap<String, byte[]>();
+	}
+
+	private static byte[] toArray(ByteBuffer content) {
+		byte[] result = new byte[content.remaining()];
+		content.get(result);
+		return result;
+	}
+
+	@Override
+	public boolean exists(String key) {
+		return values.containsKey(key);
+	}
+
+	@Override
+	public long size(String key) {
+		byte[] value = values.get(key);
+		return value == null ? -1 : value.length;
+	}
+
+	@Override
+	public boolean create(String key, ByteBuffer content) {
+		return values.putIfAbsent(key, toArray(content)) == null;
+	}
+
+	@Override
+	public void append(String key, ByteBuffer data) throws IOException {
+		byte[] added = toArray(data);
+		byte[] result = values.computeIfPresent(key, (k, old) -> {
+			byte[] value = Arrays.copyOf(old, old.length + added.length);
+			System.arraycopy(added, 0, value, old.length, added.length);
+			return value;
+		});
+		if (result == null) {
+			throw new NoSuchFileException(key);
+		}
+	}
+
+	@Override
+	public void put(String key, ByteBuffer content) {
+		values.put(key, toArray(content));
+	}
+
+	@Override
+	public long put(String key, ReadableByteChannel src) throws IOException {
+		byte[] value = toArray(IOUtils.channelToBuffer(src));
+		values.put(key, value);
+		return value.length;
+	}
+
+	@Override
+	public ByteBuffer read(String key) {
+		byte[] value = values.get(key);
+		return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+	}
+
+	@Override
+	public Blob open(String key) {
+		byte[] value = values.get(key);
+		return value == null ? null : Blob.ofBuffer(ByteBuffer.wrap(value).asReadOnlyBuffer());
+	}
+
+	@Override
+	public List<String> list(String parent, String name_prefix) {
+		String from = parent + Section.sep + name_prefix;
+		List<String> result = new ArrayList<String>();
+		for (String key : values.tailMap(from).keySet()) {
+			if (!key.startsWith(from)) {
+				break;
+			}
+			String name = key.substring(parent.length() + Section.sep.length());
+			// Only the keys directly under parent
+			if (!name.contains(Section.sep)) {
+				result.add(name);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void close() {
+		values.clear();
+	}
+}
@@ -0,0 +1,426 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import server.lib.*;
+
+/**
+ * In-memory copy of the metadata files of users and documents, used by
+ * {@link DBInterface}.
+ * <p>
+ * Entries are loaded by DBInterface the first time a user or a document is
+ * touched, and every change is written to the files first and then applied
+ * to the entry (write-through), so the files stay the reference and an
+ * entry can always be dropped and loaded again.
+ * <p>
+ * Entries are read, loaded and modified only by threads holding the lock of
+ * their key (the user lock for users, the document lock for documents),
+ * thus an entry needs no synchronization of its own. The only exception is
+ * the {@link DocumentHeader} of a document, that is immutable and replaced
+ * as a whole, so it can be read without any lock. The same locks make
+ * eviction safe: an entry is evicted only by a thread that got its lock
+ * with tryLock, so eviction never waits and never drops an entry someone is
+ * using.
+ * <p>
+ * Memory is bounded by an estimate of the bytes used by the entries. When
+ * it exceeds the bound, {@link #trim} sweeps the entries as in the CLOCK
+ * algorithm: an entry used since the last sweep gets a second chance, the
+ * others are evicted.
+ */
+public class MetadataCache {
+	// Rough size of an entry, of its map node and of a String
+	private static final long entry_weight = 96;
+	private static final long string_weight = 40;
+
+	/**
+	 * Cached informations of a user: password, documents they can modify
+	 * and their mailbox, ie: the invitations not yet delivered to them.
+	 */
+	public static final class UserInfo {
+		private final String pwd;
+		private final List<String> documents;
+		private final List<String> invitations;
+		// Size of the invitations journal
+		private long journal_bytes;
+		private volatile long weight;
+		private volatile boolean referenced;
+
+		private UserInfo(String pwd_set, Collection<String> documents_set, Collection<String> invitations_set, long journal_bytes_set) {
+			pwd = pwd_set;
+			documents = new ArrayList<String>(documents_set);
+			invitations = new ArrayList<String>(invitations_set);
+			journal_bytes = journal_bytes_set;
+			weight = entry_weight + (pwd == null ? 0 : weight(pwd));
+			for (String doc : documents) {
+				weight += weight(doc);
+			}
+			for (String doc : invitations) {
+				weight += weight(doc);
+			}
+			referenced = true;
+		}
+
+		public String getPassword() {
+			return pwd;
+		}
+
+		/**
+		 * Get the documents this user can modify, in the order of the file.
+		 *
+		 * @return a copy of the list of documents
+		 */
+		public List<String> getDocuments() {
+			return new ArrayList<String>(documents);
+		}
+
+		/**
+		 * Get the size of the invitations journal, up to which every
+		 * invitation is either delivered or in the mailbox.
+		 *
+		 * @return the size of the journal, in bytes
+		 */
+		public long getJournalBytes() {
+			return journal_bytes;
+		}
+	}
+
+	/**
+	 * Cached informations of a document: who can modify it and its sections.
+	 */
+	public static final class DocumentInfo {
+		private final Set<String> editors;
+		private volatile DocumentHeader header;
+		private volatile long weight;
+		private volatile boolean referenced;
+
+		private DocumentInfo(Collection<String> editors_set, DocumentHeader header_set) {
+			editors = new HashSet<String>();
+			header = header_set;
+			weight = entry_weight + header.weight();
+			for (String usr : editors_set) {
+				if (editors.add(usr.trim())) {
+					weight += weight(usr);
+				}
+			}
+			referenced = true;
+		}
+
+		/**
+		 * Check if a user can modify this document.
+		 *
+		 * @param usr the username, trimmed as the rows of the editors file
+		 * @return true iff usr is an editor
+		 */
+		public boolean isEditor(String usr) {
+			return editors.contains(usr.trim());
+		}
+
+		/**
+		 * Get the sections of this document. Doesn't need the document lock.
+		 *
+		 * @return the current header of the document
+		 */
+		public DocumentHeader getHeader() {
+			return header;
+		}
+	}
+
+	private final long max_bytes;
+	private final LockStripes user_locks;
+	private final LockStripes doc_locks;
+	private final ConcurrentMap<String, UserInfo> users;
+	private final ConcurrentMap<String, DocumentInfo> documents;
+	private final AtomicLong bytes;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+	// Whether a thread is sweeping the entries
+	private final AtomicBoolean trimming;
+
+	/**
+	 * Creates a new empty cache.
+	 *
+	 * @param max_bytes_set bound to the estimated memory used by the entries
+	 * @param user_locks_set locks guarding users
+	 * @param doc_locks_set locks guarding documents, by full name
+	 * @throws IllegalArgumentException if max_bytes_set isn't positive
+	 */
+	public MetadataCache(long max_bytes_set, LockStripes user_locks_set, LockStripes doc_locks_set) throws IllegalArgumentException {
+		if (max_bytes_set <= 0) {
+			throw new IllegalArgumentException("The metadata cache must have a positive size");
+		}
+		max_bytes = max_bytes_set;
+		user_locks = user_locks_set;
+		doc_locks = doc_locks_set;
+		users = new ConcurrentHashMap<String, UserInfo>();
+		documents = new ConcurrentHashMap<String, DocumentInfo>();
+		bytes = new AtomicLong(0);
+		hits = new AtomicLong(0);
+		misses = new AtomicLong(0);
+		evictions = new AtomicLong(0);
+		trimming = new AtomicBoolean(false);
+	}
+
+	private static long weight(String s) {
+		return string_weight + 2L * s.length();
+	}
+
+	// ============================== USERS ==================================
+	/**
+	 * Get the cached informations of a user, counting a hit or a miss. The
+	 * caller must hold the user lock.
+	 *
+	 * @param usr the username
+	 * @return the informations of usr, or null if they aren't cached
+	 */
+	public UserInfo getUser(String usr) {
+		UserInfo info = users.get(usr);
+		if (info == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		info.referenced = true;
+		return info;
+	}
+
+	/**
+	 * Get the cached informations of a user without counting a lookup, to
+	 * update them if they are cached. The caller must hold the user lock.
+	 *
+	 * @param usr the username
+	 * @return the informations of usr, or null if they aren't cached
+	 */
+	public UserInfo peekUser(String usr) {
+		return users.get(usr);
+	}
+
+	/**
+	 * Caches the informations of a user, read from their files. The caller
+	 * must hold the user lock.
+	 *
+	 * @param usr the username
+	 * @param pwd the password
+	 * @param docs the documents usr can modify
+	 * @param invitations the invitations not yet delivered to usr
+	 * @param journal_bytes size of the invitations journal
+	 * @return the new informations
+	 */
+	public UserInfo putUser(String usr, String pwd, Collection<String> docs, Collection<String> invitations, long journal_bytes) {
+		UserInfo info = new UserInfo(pwd, docs, invitations, journal_bytes);
+		UserInfo old = users.put(usr, info);
+		bytes.addAndGet(info.weight - (old == null ? 0 : old.weight));
+		return info;
+	}
+
+	/**
+	 * Adds a document to the ones a user can modify, after it's been added
+	 * to their file. The caller must hold the user lock.
+	 *
+	 * @param info the informations of the user
+	 * @param doc the document, as written in the file
+	 */
+	public void addDocument(UserInfo info, String doc) {
+		info.documents.add(doc);
+		info.weight += weight(doc);
+		bytes.addAndGet(weight(doc));
+	}
+
+	/**
+	 * Puts an invitation in the mailbox of a user, after it's been appended
+	 * to their journal. The caller must hold the user lock.
+	 *
+	 * @param info the informations of the user
+	 * @param doc the document, as written in the journal
+	 * @param row_bytes bytes appended to the journal
+	 */
+	public void addInvitation(UserInfo info, String doc, long row_bytes) {
+		info.invitations.add(doc);
+		info.journal_bytes += row_bytes;
+		info.weight += weight(doc);
+		bytes.addAndGet(weight(doc));
+	}
+
+	/**
+	 * Get the invitations in the mailbox of a user.
+	 *
+	 * @param info the informations of the user
+	 * @return a copy of the invitations not yet delivered, oldest first
+	 */
+	public List<String> getInvitations(UserInfo info) {
+		return new ArrayList<String>(info.invitations);
+	}
+
+	/**
+	 * Empties the mailbox of a user, after the delivery has been recorded.
+	 * The caller must hold the user lock.
+	 *
+	 * @param info the informations of the user
+	 * @param journal_bytes the new size of the journal
+	 */
+	public void clearInvitations(UserInfo info, long journal_bytes) {
+		long freed = 0;
+		for (String doc : info.invitations) {
+			freed += weight(doc);
+		}
+		info.invitations.clear();
+		info.journal_bytes = journal_bytes;
+		info.weight -= freed;
+		bytes.addAndGet(-freed);
+	}
+
+	// ============================ DOCUMENTS ================================
+	/**
+	 * Get the cached informations of a document, counting a hit or a miss.
+	 * The caller must hold the document lock.
+	 *
+	 * @param fulldocname full name of the document
+	 * @return the informations of the document, or null if they aren't cached
+	 */
+	public DocumentInfo getDocument(String fulldocname) {
+		DocumentInfo info = documents.get(fulldocname);
+		if (info == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		info.referenced = true;
+		return info;
+	}
+
+	/**
+	 * Get the header of a cached document, counting a hit or a miss. Doesn't
+	 * need the document lock, and never blocks.
+	 *
+	 * @param fulldocname full name of the document
+	 * @return the header of the document, or null if it isn't cached
+	 */
+	public DocumentHeader getHeader(String fulldocname) {
+		DocumentInfo info = getDocument(fulldocname);
+		return info == null ? null : info.header;
+	}
+
+	/**
+	 * Caches the informations of a document, read from its files. The caller
+	 * must hold the document lock.
+	 *
+	 * @param fulldocname full name of the document
+	 * @param editors users that can modify the document
+	 * @param header sections of the document
+	 * @return the new informations
+	 */
+	public DocumentInfo putDocument(String fulldocname, Collection<String> editors, DocumentHeader header) {
+		DocumentInfo info = new DocumentInfo(editors, header);
+		DocumentInfo old = documents.put(fulldocname, info);
+		bytes.addAndGet(info.weight - (old == null ? 0 : old.weight));
+		return info;
+	}
+
+	/**
+	 * Adds an editor to a document, after it's been added to its file. The
+	 * caller must hold the document lock.
+	 *
+	 * @param info the informations of the document
+	 * @param usr the new editor
+	 */
+	public void addEditor(DocumentInfo info, String usr) {
+		if (info.editors.add(usr.trim())) {
+			info.weight += weight(usr);
+			bytes.addAndGet(weight(usr));
+		}
+	}
+
+	/**
+	 * Replaces the header of a document, after it's been written to its
+	 * file. The caller must hold the document lock.
+	 *
+	 * @param info the informations of the document
+	 * @param header the new header, with the same number of sections
+	 */
+	public void setHeader(DocumentInfo info, DocumentHeader header) {
+		info.header = header;
+	}
+
+	// ============================= EVICTION ================================
+	/**
+	 * Evicts entries until the memory bound is respected again, if it isn't.
+	 * <p>
+	 * Must be called without holding any user or document lock. Never
+	 * blocks: if another thread is already sweeping it returns immediately,
+	 * and entries whose lock is busy are skipped.
+	 */
+	public void trim() {
+		if (bytes.get() <= max_bytes || !trimming.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			// Two rounds: the first one may only clear the referenced flags
+			for (int round = 0; round < 2 && bytes.get() > max_bytes; ++round) {
+				sweepUsers();
+				sweepDocuments();
+			}
+		}
+		finally {
+			trimming.set(false);
+		}
+	}
+
+	private void sweepUsers() {
+		Iterator<Map.Entry<String, UserInfo>> it = users.entrySet().iterator();
+		while (it.hasNext() && bytes.get() > max_bytes) {
+			Map.Entry<String, UserInfo> e = it.next();
+			UserInfo info = e.getValue();
+			if (info.referenced) {
+				info.referenced = false;
+				continue;
+			}
+			Lock lock = user_locks.get(e.getKey());
+			if (lock.tryLock()) {
+				try {
+					if (users.remove(e.getKey(), info)) {
+						bytes.addAndGet(-info.weight);
+						evictions.incrementAndGet();
+					}
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	private void sweepDocuments() {
+		Iterator<Map.Entry<String, DocumentInfo>> it = documents.entrySet().iterator();
+		while (it.hasNext() && bytes.get() > max_bytes) {
+			Map.Entry<String, DocumentInfo> e = it.next();
+			DocumentInfo info = e.getValue();
+			if (info.referenced) {
+				info.referenced = false;
+				continue;
+			}
+			Lock lock = doc_locks.get(e.getKey());
+			if (lock.tryLock()) {
+				try {
+					if (documents.remove(e.getKey(), info)) {
+						bytes.addAndGet(-info.weight);
+						evictions.incrementAndGet();
+					}
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a summary of the state of this cache. Thread-safe.
+	 *
+	 * @return hits, misses, evictions and estimated bytes used
+	 */
+	public CacheSummary getSummary() {
+		return new CacheSummary(hits.get(), misses.get(), evictions.get(), bytes.get());
+	}
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Copies a db kept as a tree of files (the {@link FileEngine} layout) into a
+ * new {@link LogEngine}, to start the server with {@code --storage=log}.
+ * <p>
+ * Every file becomes the key of its path relative to the source directory.
+ * Temporary files left by an interrupted replacement are skipped. The source
+ * isn't modified, and the server must not be running while copying it.
+ * <p>
+ * Usage: {@code MigrateDB source_dir dest_dir [segment_MB]}
+ */
+public class MigrateDB {
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: MigrateDB source_dir dest_dir [segment_MB]");
+			System.exit(1);
+		}
+		Path source = Paths.get(args[0]);
+		Path dest = Paths.get(args[1]);
+		try {
+			long segment_bytes = args.length > 2 ? Long.parseLong(args[2]) * 1024 * 1024 : LogEngine.default_segment_bytes;
+			if (dest.toFile().exists()) {
+				try (
+					Stream<Path> files = Files.list(dest);
+				) {
+					if (files.findAny().isPresent()) {
+						System.out.println("The destination " + dest.toString() + " isn't empty");
+						System.exit(1);
+					}
+				}
+			}
+			List<Path> to_copy;
+			try (
+				Stream<Path> files = Files.walk(source);
+			) {
+				to_copy = files.filter(Files::isRegularFile)
+						.filter(p -> !p.getFileName().toString().startsWith(StorageEngine.reserved_prefix))
+						.collect(Collectors.toList());
+			}
+			long bytes = 0;
+			try (
+				LogEngine engine = new LogEngine(dest, segment_bytes);
+			) {
+				for (Path p : to_copy) {
+					Path rel = source.relativize(p);
+					List<String> parts = new ArrayList<String>();
+					for (Path part : rel) {
+						parts.add(part.toString());
+					}
+					ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(p));
+					bytes += content.remaining();
+					engine.put(String.join(Section.sep, parts), content);
+				}
+			}
+			System.out.println("Copied " + Integer.toString(to_copy.size()) + " files, " + Long.toString(bytes) + " bytes");
+		}
+		catch (IllegalArgumentException e) { // Catches also NumberFormatException
+			System.out.println("Wrong arguments: " + e.getMessage());
+			System.exit(1);
+		}
+		catch (IOException e) {
+			System.out.println("Migration failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
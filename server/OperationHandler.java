@@ -5,9 +5,10 @@ import java.util.concurrent.*;
 import java.io.IOException;
 import java.net.*;
 import java.nio.*;
-import java.nio.file.*;
 import java.nio.channels.*;
+import java.util.function.*;
 import server.lib.*;
+import static server.Logger.Level.*;
 
 /**
  * Task of TURING server to handle a single operation on a connection.
@@ -17,231 +18,372 @@ public class OperationHandler implements Runnable {
 	private final ConcurrentSocketChannel chnl;
 	// private final SocketChannel chnl;
 	private final DBInterface db_interface;
-	private final BlockingQueue<ConcurrentSocketChannel> freesc;
+	private final Reactor reactor;
 	private final Map<ConcurrentSocketChannel, String> socket_to_user;
 	private final Map<String, ConcurrentSocketChannel> user_to_socket;
-	private final Selector selector;
 	private final String usr;
+	private final Request request;
+	private final ServerStats stats;
+	private final SessionTokens sessions;
 
-	public OperationHandler(ConcurrentSocketChannel chnl_set, DBInterface db_interface_set, BlockingQueue<ConcurrentSocketChannel> freesc_set, Map<ConcurrentSocketChannel, String> socket_to_user_set, Map<String, ConcurrentSocketChannel> user_to_socket_set, Selector selector_set) {
+	/**
+	 * Creates a new handler for a request received on a connection.
+	 *
+	 * @param chnl_set the connection
+	 * @param request_set the request to handle, already decoded. If null the
+	 *                    connection has been closed by the other end, and
+	 *                    this handler only frees its resources
+	 * @param reactor_set the reactor to which give back the connection, or
+	 *                    null if this handler is only used through
+	 *                    {@link handle}
+	 * @param stats_set statistics in which record the handled operations
+	 * @param sessions_set tokens to resume sessions, or null if sessions
+	 *                     can't be resumed
+	 */
+	public OperationHandler(ConcurrentSocketChannel chnl_set, Request request_set, DBInterface db_interface_set, Reactor reactor_set, Map<ConcurrentSocketChannel, String> socket_to_user_set, Map<String, ConcurrentSocketChannel> user_to_socket_set, ServerStats stats_set, SessionTokens sessions_set) {
 		if (chnl_set == null) {
 			throw new NullPointerException();
 		}
 		chnl = chnl_set;
+		request = request_set;
 		db_interface = db_interface_set;
-		freesc = freesc_set;
+		reactor = reactor_set;
 		socket_to_user = socket_to_user_set;
 		user_to_socket = user_to_socket_set;
-		selector = selector_set;
+		stats = stats_set;
+		sessions = sessions_set;
 		usr = socket_to_user.getOrDefault(chnl, null);
 	}
 
 	/**
-	 * Utility function to handle logging. May become something finer than a
-	 * println in the future.
+	 * Utility function to handle logging.
 	 *
-	 * @param s the string to log
+	 * @param level level of the message
+	 * @param s the message to log, built only if level is enabled
 	 */
-	private void log(String s) {
-		System.out.println("User " + usr + " - " + s);
+	private void log(Logger.Level level, Supplier<String> s) {
+		if (Logger.isEnabled(level)) {
+			Logger.log(level, "User " + usr + " - " + s.get());
+		}
 	}
 
-	private void lockedWriteOp(OpKind op) throws IOException, ChannelClosedException {
-		try {
-			chnl.lock();
-			IOUtils.writeOpKind(op, chnl);
+	/**
+	 * Creates the frame of the response to this instance's request, beginning
+	 * with the given OpKind, prefixed by the request's ID if it was sent in
+	 * pipelined mode.
+	 *
+	 * @param op the OpKind of the response
+	 * @return a new frame to which append the rest of the response
+	 */
+	private Frame newResponse(OpKind op) {
+		Frame resp = new Frame(false);
+		if (request.isTagged()) {
+			resp.putInt(request.getId());
 		}
-		finally {
-			chnl.unlock();
+		return resp.putOpKind(op);
+	}
+
+	private void sendResponseOp(OpKind op) {
+		chnl.send(newResponse(op));
+	}
+
+	/**
+	 * Sends a response, counting the bytes of files in it.
+	 *
+	 * @param resp the complete response
+	 */
+	private void sendResponse(Frame resp) {
+		stats.countFileBytesSent(resp.getFileBytes());
+		chnl.send(resp);
+	}
+
+	/**
+	 * Notifies an invitation on a channel.
+	 *
+	 * @param target channel of the invited user
+	 * @param fulldocname full name of the document
+	 */
+	private static void sendInvite(ConcurrentSocketChannel target, String fulldocname) {
+		target.send(new Frame(true).putOpKind(OpKind.OP_INVITE).putString(fulldocname));
+	}
+
+	/**
+	 * Notifies all the invitations received while offline, in a single
+	 * OP_INVITES frame: their number followed by the full names of the
+	 * documents, oldest first.
+	 *
+	 * @param target channel of the invited user
+	 * @param fulldocnames full names of the documents
+	 */
+	private static void sendInvites(ConcurrentSocketChannel target, Collection<String> fulldocnames) {
+		Frame frame = new Frame(true).putOpKind(OpKind.OP_INVITES).putInt(fulldocnames.size());
+		for (String fulldocname : fulldocnames) {
+			frame.putString(fulldocname);
 		}
+		target.send(frame);
 	}
 
 	// ============================= OP HANDLERS =============================
 	// Set of utility functions just to split handleOperation
 	private void handleCreate() throws IOException, ChannelClosedException {
-		String docname = IOUtils.readString(chnl);
-		int nsec = IOUtils.readInt(chnl);
-		if (db_interface.createDocument(usr, docname, nsec)) {
-			log("Created document " + usr + "/" + docname);
-			lockedWriteOp(OpKind.RESP_OK);
+		String docname = request.getString(0);
+		int nsec = request.getInt(0);
+		if (!DBInterface.isValidName(docname)) {
+			log(DEBUG, () -> "Creation of document " + usr + "/" + docname + " failed: invalid name");
+			sendResponseOp(OpKind.ERR_WRONG_DOCNAME);
+		}
+		else if (db_interface.createDocument(usr, docname, nsec)) {
+			log(DEBUG, () -> "Created document " + usr + "/" + docname);
+			sendResponseOp(OpKind.RESP_OK);
 		}
 		else {
-			log("Creation of document " + usr + "/" + docname + " failed: already exists");
-			lockedWriteOp(OpKind.ERR_DOCUMENT_EXISTS);
+			log(DEBUG, () -> "Creation of document " + usr + "/" + docname + " failed: already exists");
+			sendResponseOp(OpKind.ERR_DOCUMENT_EXISTS);
 		}
 	}
 
 	private void handleEdit() throws IOException, ChannelClosedException {
-		String fulldocname = IOUtils.readString(chnl);
-		int nsec = IOUtils.readInt(chnl);
+		String fulldocname = request.getString(0);
+		int nsec = request.getInt(0);
 		try {
 			Section sec = new Section(fulldocname, nsec);
-			Path section_path = db_interface.editSection(usr, sec);
+			Blob content = db_interface.editSection(usr, sec);
+			Frame resp = newResponse(OpKind.RESP_OK);
 			try {
-				chnl.lock();
-				IOUtils.writeOpKind(OpKind.RESP_OK, chnl);
-				IOUtils.fileToChannel(section_path, chnl);
-				IOUtils.writeByte(db_interface.getLastChatByte(fulldocname), chnl);
+				resp.putBlob(content)
+					.putByte(db_interface.getLastChatByte(fulldocname));
 			}
-			finally {
-				chnl.unlock();
+			catch (IOException e) {
+				resp.release();
+				throw e;
 			}
-			log("Started edit of section " + sec.getDebugRepr() + " succesfull");
+			// A pipelined OP_ENDEDIT can now carry the new content
+			chnl.getDecoder().allowSectionBody(true);
+			sendResponse(resp);
+			log(DEBUG, () -> "Started edit of section " + sec.getDebugRepr() + " succesfull");
 		}
 		catch (IllegalArgumentException e) {
-			log("Wrongly formatted full document name " + fulldocname);
-			lockedWriteOp(OpKind.ERR_NO_DOCUMENT);
+			log(DEBUG, () -> "Wrongly formatted full document name " + fulldocname);
+			sendResponseOp(OpKind.ERR_NO_DOCUMENT);
 		}
 		catch (NoSuchDocumentException e) {
-			log("Edit of " + fulldocname + " failed: no such document");
-			lockedWriteOp(OpKind.ERR_NO_DOCUMENT);
+			log(DEBUG, () -> "Edit of " + fulldocname + " failed: no such document");
+			sendResponseOp(OpKind.ERR_NO_DOCUMENT);
 		}
 		catch (NoPermissionException e) {
-			log("Edit of " + fulldocname + " failed: no permissions");
-			lockedWriteOp(OpKind.ERR_PERMISSION);
+			log(DEBUG, () -> "Edit of " + fulldocname + " failed: no permissions");
+			sendResponseOp(OpKind.ERR_PERMISSION);
 		}
 		catch (NoSuchSectionException e) {
-			log("Edit of section " + Integer.toString(nsec) + " failed: no such section");
-			lockedWriteOp(OpKind.ERR_NO_SECTION);
+			log(DEBUG, () -> "Edit of section " + Integer.toString(nsec) + " failed: no such section");
+			sendResponseOp(OpKind.ERR_NO_SECTION);
 		}
 		catch (SectionBusyException e) {
-			log("Edit of section " + Integer.toString(nsec) + " failed: section busy");
-			lockedWriteOp(OpKind.ERR_SECTION_BUSY);
+			log(DEBUG, () -> "Edit of section " + Integer.toString(nsec) + " failed: section busy");
+			sendResponseOp(OpKind.ERR_SECTION_BUSY);
 		}
 		catch (UserBusyException e) {
-			log("Edit failed: user busy");
-			lockedWriteOp(OpKind.ERR_USER_BUSY);
+			log(DEBUG, () -> "Edit failed: user busy");
+			sendResponseOp(OpKind.ERR_USER_BUSY);
 		}
 	}
 
 	private void handleEndEdit() throws IOException, ChannelClosedException {
 		Section sec = db_interface.userIsModifying(usr);
 		if (sec == null) {
-			log("End of edit failed: user isn't editing anything");
-			lockedWriteOp(OpKind.ERR_USER_FREE);
+			log(DEBUG, () -> "End of edit failed: user isn't editing anything");
+			sendResponseOp(OpKind.ERR_USER_FREE);
 		}
 		else {
-			log("End of edit succesfull");
-			try {
-				chnl.lock();
-				IOUtils.writeOpKind(OpKind.RESP_OK, chnl);
-				db_interface.finishEditSection(usr, sec, chnl);
-			}
-			finally {
-				chnl.unlock();
-			}
-			log("File received succesfully");
+			log(DEBUG, () -> "End of edit succesfull");
+			// The new content is received by the selector and handled by
+			// handleEndEditBody
+			chnl.getDecoder().expectSectionBody();
+			sendResponseOp(OpKind.RESP_OK);
+		}
+	}
+
+	private void handleEndEditInline() throws IOException, ChannelClosedException {
+		chnl.getDecoder().allowSectionBody(false);
+		Section sec = db_interface.userIsModifying(usr);
+		// Without payload the decoder dropped the content, as the
+		// connection held no edit when it arrived
+		if (sec == null || !request.hasPayload()) {
+			log(DEBUG, () -> "End of edit failed: user isn't editing anything");
+			sendResponseOp(OpKind.ERR_USER_FREE);
+		}
+		else {
+			db_interface.finishEditSection(usr, sec, request.getPayload());
+			log(DEBUG, () -> "End of edit succesfull");
+			sendResponseOp(OpKind.RESP_OK);
 		}
 	}
 
+	private void handleEndEditBody() throws IOException {
+		chnl.getDecoder().allowSectionBody(false);
+		Section sec = db_interface.userIsModifying(usr);
+		if (sec == null) {
+			log(DEBUG, () -> "Received a section without an edit in progress");
+			return;
+		}
+		db_interface.finishEditSection(usr, sec, request.getPayload());
+		log(DEBUG, () -> "File received succesfully");
+	}
+
 	private void handleShowSec() throws IOException, ChannelClosedException {
-		String fulldocname = IOUtils.readString(chnl);
-		int nsec = IOUtils.readInt(chnl);
+		String fulldocname = request.getString(0);
+		int nsec = request.getInt(0);
 		try {
 			Section sec = new Section(fulldocname, nsec);
-			if (!db_interface.documentExist(sec.getDocumentPath())) {
-				log("Showing of " + sec.getFullDocumentName() + " failed: doesn't exists");
-				lockedWriteOp(OpKind.ERR_NO_DOCUMENT);
+			if (!db_interface.documentExist(sec.getOwner(), sec.getDocumentName())) {
+				log(DEBUG, () -> "Showing of " + sec.getFullDocumentName() + " failed: doesn't exists");
+				sendResponseOp(OpKind.ERR_NO_DOCUMENT);
 			}
 			else if (!db_interface.sectionExist(sec)) {
-				log("Showing of " + sec.getDebugRepr() + " failed: doesn't exists");
-				lockedWriteOp(OpKind.ERR_NO_SECTION);
+				log(DEBUG, () -> "Showing of " + sec.getDebugRepr() + " failed: doesn't exists");
+				sendResponseOp(OpKind.ERR_NO_SECTION);
 			}
 			else {
-				log("Showing " + sec.getDebugRepr() + " succesful");
-				try {
-					chnl.lock();
-					IOUtils.writeOpKind(OpKind.RESP_OK, chnl);
-					IOUtils.writeBool(db_interface.isBeingModified(sec), chnl);
-					IOUtils.fileToChannel(db_interface.getAbsolutePath(sec.getFullPath()), chnl);
-				}
-				finally {
-					chnl.unlock();
-				}
+				log(DEBUG, () -> "Showing " + sec.getDebugRepr() + " succesful");
+				sendResponse(newResponse(OpKind.RESP_OK)
+					.putBool(db_interface.isBeingModified(sec))
+					.putBlob(db_interface.openSection(sec)));
 			}
 		}
 		catch (IllegalArgumentException e) {
-			log("Wrongly formatted full document name " + fulldocname);
-			IOUtils.writeOpKind(OpKind.ERR_NO_DOCUMENT, chnl);
+			log(DEBUG, () -> "Wrongly formatted full document name " + fulldocname);
+			sendResponseOp(OpKind.ERR_NO_DOCUMENT);
 		}
 	}
 
 	private void handleShowDoc() throws IOException, ChannelClosedException {
-		String fulldocname = IOUtils.readString(chnl);
-		Path docpath = Paths.get(fulldocname);
-		if (!db_interface.documentExist(docpath)) {
-			log("Show of document " + fulldocname + " failed: doesn't exists");
-			lockedWriteOp(OpKind.ERR_NO_DOCUMENT);
+		String fulldocname = request.getString(0);
+		int idx_slash = fulldocname.indexOf(Section.sep);
+		String owner = idx_slash == -1 ? null : fulldocname.substring(0, idx_slash);
+		String docname = idx_slash == -1 ? null : fulldocname.substring(idx_slash + 1);
+		if (owner == null || !db_interface.documentExist(owner, docname)) {
+			log(DEBUG, () -> "Show of document " + fulldocname + " failed: doesn't exists");
+			sendResponseOp(OpKind.ERR_NO_DOCUMENT);
 		}
 		else {
-			log("Show of document " + fulldocname + " succesful");
-			int numsec = db_interface.sectionNumber(docpath);
-			log("Numsec = " + Integer.toString(numsec));
+			int numsec = db_interface.sectionNumber(owner, docname);
+			log(DEBUG, () -> "Show of document " + fulldocname + " succesful, " + Integer.toString(numsec) + " sections");
+			Frame resp = newResponse(OpKind.RESP_OK).putInt(numsec);
 			try {
-				chnl.lock();
-				IOUtils.writeOpKind(OpKind.RESP_OK, chnl);
-				IOUtils.writeInt(numsec, chnl);
 				for (int i = 0; i < numsec; ++i) {
-					log("Sending section " + Integer.toString(i));
 					Section sec = new Section(fulldocname, i);
-					IOUtils.writeBool(db_interface.isBeingModified(sec), chnl);
-					IOUtils.fileToChannel(db_interface.getAbsolutePath(sec.getFullPath()), chnl);
+					resp.putBool(db_interface.isBeingModified(sec))
+						.putBlob(db_interface.openSection(sec));
 				}
 			}
-			finally {
-				chnl.unlock();
+			catch (IOException e) {
+				// Files already opened must be closed
+				resp.release();
+				throw e;
 			}
+			sendResponse(resp);
 		}
 	}
 
 	private void handleInvite() throws IOException, ChannelClosedException {
-		String invited_usr = IOUtils.readString(chnl);
-		String docname = IOUtils.readString(chnl);
-		if (!db_interface.documentExist(Paths.get(usr).resolve(docname))) {
-			log("Invitation to " + docname + " failed: doesn't exists");
-			lockedWriteOp(OpKind.ERR_NO_DOCUMENT);
+		String invited_usr = request.getString(0);
+		String docname = request.getString(1);
+		if (!db_interface.documentExist(usr, docname)) {
+			log(DEBUG, () -> "Invitation to " + docname + " failed: doesn't exists");
+			sendResponseOp(OpKind.ERR_NO_DOCUMENT);
 		}
 		else {
-			log("Invitation to " + docname + " succesful");
+			log(DEBUG, () -> "Invitation to " + docname + " succesful");
 			ConcurrentSocketChannel notifyChnl = user_to_socket.getOrDefault(invited_usr, null);
 			boolean invitedOnline = notifyChnl != null;
-			if (db_interface.invite(usr, docname, invited_usr, !invitedOnline) && invitedOnline) {
-				// notify invitation on notifyChnl
-				try {
-					// No risk of deadlock because I'm not holding any other lock
-					notifyChnl.lock();
-					IOUtils.writeOpKind(OpKind.OP_INVITE, notifyChnl);
-					IOUtils.writeString(usr + "/" + docname, notifyChnl);
-					log("Invitation notified");
-				}
-				finally {
-					notifyChnl.unlock();
+			boolean invited = db_interface.invite(usr, docname, invited_usr, !invitedOnline);
+			if (invited && invitedOnline) {
+				// notify invitation on notifyChnl, without waiting for it
+				sendInvite(notifyChnl, usr + "/" + docname);
+				log(DEBUG, () -> "Invitation notified");
+			}
+			else if (invited) {
+				// The invited user may have logged in after the check above
+				// and fetched their mailbox before the invitation was
+				// recorded: then it's delivered now
+				notifyChnl = user_to_socket.get(invited_usr);
+				if (notifyChnl != null) {
+					Collection<String> invitations = db_interface.getPendingInvitations(invited_usr);
+					if (!invitations.isEmpty()) {
+						sendInvites(notifyChnl, invitations);
+						log(DEBUG, () -> "Invitation notified after login");
+					}
 				}
 			}
-			lockedWriteOp(OpKind.RESP_OK);
+			sendResponseOp(OpKind.RESP_OK);
 		}
 	}
 
+	private void handlePipeline() throws IOException, ChannelClosedException {
+		// The decoder has already switched to pipelined mode, the frames
+		// sent after this one switch now
+		Frame resp = newResponse(OpKind.RESP_OK);
+		resp.switchToPipelined();
+		sendResponse(resp);
+		log(DEBUG, () -> "Switched to pipelined mode");
+	}
+
 	private void handleListDocs() throws IOException, ChannelClosedException {
-		try {
-			chnl.lock();
-			IOUtils.writeOpKind(OpKind.RESP_OK, chnl);
-			Collection<String> documents = db_interface.userModificableDocuments(usr);
-			IOUtils.writeInt(documents.size(), chnl);
-			for(String doc : documents) {
-				IOUtils.writeString(doc, chnl);
-			}
-		}
-		finally {
-			chnl.unlock();
+		Collection<String> documents = db_interface.userModificableDocuments(usr);
+		Frame resp = newResponse(OpKind.RESP_OK).putInt(documents.size());
+		for(String doc : documents) {
+			resp.putString(doc);
 		}
+		sendResponse(resp);
 	}
 
 
+	/**
+	 * Logs in the user of this connection, once their credentials have been
+	 * checked, unless they're already logged on another connection. In
+	 * pipelined mode the response carries a new session token, empty if
+	 * sessions can't be resumed; in normal mode it's the bare RESP_OK of the
+	 * original protocol and no token is issued. It's followed by the pending
+	 * invitations.
+	 * <p>
+	 * A resumed session doesn't touch the files of the user: the user had
+	 * their invitations delivered when they first logged in, so they're read
+	 * only if they've been invited since.
+	 *
+	 * @param login_usr the user
+	 * @param resumed whether the session has been resumed with a token
+	 */
+	private void completeLogin(String login_usr, boolean resumed) throws IOException {
+		ConcurrentSocketChannel other_chnl = user_to_socket.get(login_usr);
+		if (other_chnl != null && other_chnl != chnl) {
+			log(DEBUG, () -> "User already in use");
+			sendResponseOp(OpKind.ERR_USERNAME_BUSY);
+			return;
+		}
+		log(INFO, () -> "Login sucessfull with username \"" + login_usr + "\"");
+		// The token is part of the response only in pipelined mode, so the
+		// response of the normal mode is still the bare RESP_OK
+		Frame resp = newResponse(OpKind.RESP_OK);
+		if (chnl.getDecoder().isPipelined()) {
+			resp.putString(sessions == null ? "" : sessions.issue(login_usr));
+		}
+		// Sent before the user is online, so that no invitation can be sent
+		// before the response
+		sendResponse(resp);
+		socket_to_user.put(chnl, login_usr);
+		user_to_socket.put(login_usr, chnl);
+		// Fetched after the user is online: an invitation recorded later is
+		// delivered by its inviter, see handleInvite
+		Collection<String> invitations = resumed ? db_interface.getNewInvitations(login_usr) : db_interface.getPendingInvitations(login_usr);
+		if (!invitations.isEmpty()) {
+			sendInvites(chnl, invitations);
+		}
+	}
+
 	// ========================================================================
 
 	/**
-	 * Main logic of the class. Handle this instance's SocketChannel.
+	 * Main logic of the class. Handle this instance's request.
 	 *<p>
 	 * This function is intended to be the {@link run} body, moved in another
 	 * function in order to be wrapped and ensure the correct end of this
@@ -254,53 +396,52 @@ public class OperationHandler implements Runnable {
 	 *                                during the communication
 	 */
 	private boolean handleOperation() throws IOException, ChannelClosedException {
-		chnl.configureBlocking(true);
-		OpKind op = IOUtils.readOpKind(chnl);
+		if (request == null) {
+			throw new ChannelClosedException();
+		}
+		OpKind op = request.getOp();
 		if (usr == null) {
-			// No need to synchronize those writes because if the user isn't
-			// connected noone can send invitations to him
-			if (op == OpKind.OP_LOGIN) {
-				log("Requested login");
+			if (op == OpKind.OP_PIPELINE) {
+				handlePipeline();
+				return true;
+			}
+			else if (op == OpKind.OP_LOGIN) {
+				log(DEBUG, () -> "Requested login");
 				String login_usr, login_pwd;
-				login_usr = IOUtils.readString(chnl);
-				login_pwd = IOUtils.readString(chnl);
+				login_usr = request.getString(0);
+				login_pwd = request.getString(1);
 				if (!db_interface.checkUser(login_usr, login_pwd)) {
-					log("User/pwd mismatch");
-					IOUtils.writeOpKind(OpKind.ERR_INVALID_LOGIN, chnl);
+					log(DEBUG, () -> "User/pwd mismatch");
+					sendResponseOp(OpKind.ERR_INVALID_LOGIN);
 					return true;
 				}
-				ConcurrentSocketChannel other_chnl = user_to_socket.get(login_usr);
-				if (other_chnl != null && other_chnl != chnl) {
-					log("User already in use");
-					IOUtils.writeOpKind(OpKind.ERR_USERNAME_BUSY, chnl);
+				completeLogin(login_usr, false);
+				return true;
+			}
+			else if (op == OpKind.OP_RESUME) {
+				log(DEBUG, () -> "Requested session resumption");
+				// Neither the password nor the user lock: only the table
+				String login_usr = sessions == null ? null : sessions.resume(request.getString(0));
+				if (login_usr == null) {
+					log(DEBUG, () -> "Unknown or expired session token");
+					sendResponseOp(OpKind.ERR_INVALID_LOGIN);
 					return true;
 				}
-				log("Login sucessfull with username \"" + login_usr + "\"");
-				socket_to_user.put(chnl, login_usr);
-				user_to_socket.put(login_usr, chnl);
-				IOUtils.writeOpKind(OpKind.RESP_OK, chnl);
-				// TODO: notify pending invitations
-				Collection<String> invitations = db_interface.getPendingInvitations(login_usr);
-				// Someone else may decide to send an invitation here, thus lock
-				chnl.lock();
-				for (String invitation : invitations) {
-					IOUtils.writeOpKind(OpKind.OP_INVITE, chnl);
-					IOUtils.writeString(invitation, chnl);
-				}
-				chnl.unlock();
+				completeLogin(login_usr, true);
 				return true;
 			}
 			else {
-				log("Requested non login on unlogged socket");
-				IOUtils.writeOpKind(OpKind.ERR_UNLOGGED, chnl);
+				log(DEBUG, () -> "Requested non login on unlogged socket");
+				sendResponseOp(OpKind.ERR_UNLOGGED);
 				return false;
 			}
 		}
 		// usr != null
 		switch (op) {
 			case OP_LOGIN:
-				log("Requested login on logged socket");
-				lockedWriteOp(OpKind.ERR_ALREADY_LOGGED);
+			case OP_RESUME:
+				log(DEBUG, () -> "Requested login on logged socket");
+				sendResponseOp(OpKind.ERR_ALREADY_LOGGED);
 			break;
 			case OP_CREATE:
 				handleCreate();
@@ -308,8 +449,19 @@ public class OperationHandler implements Runnable {
 			case OP_EDIT:
 				handleEdit();
 				break;
+			case OP_PIPELINE:
+				handlePipeline();
+				break;
 			case OP_ENDEDIT:
-				handleEndEdit();
+				if (request.isTagged()) {
+					handleEndEditInline();
+				}
+				else if (request.hasPayload()) {
+					handleEndEditBody();
+				}
+				else {
+					handleEndEdit();
+				}
 				break;
 			case OP_SHOWSEC:
 				handleShowSec();
@@ -324,46 +476,82 @@ public class OperationHandler implements Runnable {
 				handleListDocs();
 				break;
 			default:
-				log("Requested unknown operation: " + op.toString());
-				lockedWriteOp(OpKind.ERR_UNKNOWN_OP);
+				log(WARN, () -> "Requested unknown operation: " + op.toString());
+				sendResponseOp(OpKind.ERR_UNKNOWN_OP);
 				break;
 		}
 		return true;
 	}
 
-	@Override
-	public void run() {
+	/**
+	 * Handles this instance's request, then either leaves the connection open
+	 * or, if it was closed or must be closed, frees its resources.
+	 *
+	 * @return true iff the connection is still open and should be given back
+	 *         to whoever reads its requests
+	 */
+	public boolean handle() {
 		boolean shouldReturn;
+		long start = System.nanoTime();
+		if (request != null && request.hasPayload()) {
+			stats.countFileBytesReceived(request.getPayload().remaining());
+		}
 		try {
 			shouldReturn = this.handleOperation();
 		}
 		catch (IOException e) {
-			log("I/O exception while handling operation: " + e.getMessage());
+			log(WARN, () -> "I/O exception while handling operation: " + e.getMessage());
 			shouldReturn = false;
 		}
 		catch (ChannelClosedException e) {
-			log("Channel closed by the other end");
+			log(DEBUG, () -> "Channel closed by the other end");
 			shouldReturn = false;
 		}
-		if (shouldReturn) {
-			freesc.add(chnl);
-			selector.wakeup();
-		}
-		else {
+		if (!shouldReturn) {
 			// Disconnect the channel and frees the user again
 			socket_to_user.remove(chnl);
 			if (usr != null) {
-				log("Disconnecting " + usr + " and freeing their edit");
+				log(INFO, () -> "Disconnecting " + usr + " and freeing their edit");
 				user_to_socket.remove(usr);
 				db_interface.cleanUserEdit(usr);
 			}
-			try {
-				chnl.close();
-			}
-			catch (IOException e) {
-				log("Error closing a connection: PANIC");
-				e.printStackTrace();
-			}
+			// Whatever has been sent is written before closing
+			chnl.closeAfterFlush();
+		}
+		if (request != null) {
+			stats.recordOperation(request.getOp(), System.nanoTime() - start);
+		}
+		return shouldReturn;
+	}
+
+	/**
+	 * Check whether this instance's request can be refused when the server
+	 * is overloaded. Some requests can't: the end of a connection, the
+	 * content of a section (the client has already sent it and doesn't
+	 * expect an answer) and the switch to pipelined mode (the decoder has
+	 * already switched).
+	 *
+	 * @return true iff {@link refuse} can be called
+	 */
+	public boolean isRefusable() {
+		return request != null && !request.hasPayload() && request.getOp() != OpKind.OP_PIPELINE;
+	}
+
+	/**
+	 * Refuses this instance's request because the server is overloaded,
+	 * answering ERR_RETRY without handling it, and gives the connection back
+	 * to the reactor. The request must be {@link isRefusable}.
+	 */
+	public void refuse() {
+		log(DEBUG, () -> "Server overloaded, operation " + request.getOp().toString() + " refused");
+		sendResponseOp(OpKind.ERR_RETRY);
+		reactor.returnChannel(chnl);
+	}
+
+	@Override
+	public void run() {
+		if (handle()) {
+			reactor.returnChannel(chnl);
 		}
 	}
 }
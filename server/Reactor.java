@@ -0,0 +1,248 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.function.*;
+import server.lib.*;
+import static server.Logger.Level.*;
+
+/**
+ * Selector thread of TURING server.
+ * <p>
+ * A reactor owns a Selector and the connections registered to it: it reads
+ * requests from them and dispatches the complete ones to the server's
+ * workers. Workers give the connection back through {@link returnChannel}.
+ * Each reactor has its own queue of channels to resume, so that several
+ * reactors can run in parallel without sharing anything.
+ * <p>
+ * A connection stays registered for its whole life, keeping the same key:
+ * while one of its requests is being handled its read interest is just
+ * switched off.
+ * <p>
+ * The reactor also writes the frames sent on its connections: when a frame
+ * is sent the reactor is asked to flush the connection, and what can't be
+ * written immediately is written when the socket becomes writable.
+ * <p>
+ * A reactor may also own the server socket, in which case it accepts new
+ * connections itself; otherwise connections are assigned to it by an
+ * acceptor through {@link addConnection}.
+ */
+public class Reactor implements Runnable {
+	private final TURINGServer server;
+	private final Selector selector;
+	// Channels to (re)enable in the selector, either new or returned by
+	// workers
+	private final BlockingQueue<ConcurrentSocketChannel> freesc;
+	// Channels with frames to write
+	private final Queue<ConcurrentSocketChannel> toflush;
+	// Whether a wakeup of the selector is already pending, to avoid a
+	// syscall for each channel returned while the selector is busy
+	private final AtomicBoolean wakeup_pending;
+
+	/**
+	 * Creates a new reactor.
+	 *
+	 * @param server_set the server to which dispatch requests
+	 * @param server_sock server socket to accept connections from, or null if
+	 *                    connections are assigned by an acceptor. It must be
+	 *                    in non-blocking mode
+	 * @throws IOException if an error occurs opening the selector
+	 */
+	public Reactor(TURINGServer server_set, ServerSocketChannel server_sock) throws IOException {
+		server = server_set;
+		selector = Selector.open();
+		freesc = new LinkedBlockingQueue<ConcurrentSocketChannel>();
+		toflush = new ConcurrentLinkedQueue<ConcurrentSocketChannel>();
+		wakeup_pending = new AtomicBoolean(false);
+		if (server_sock != null) {
+			server_sock.register(selector, SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	/**
+	 * Utility function to handle logging.
+	 *
+	 * @param level level of the message
+	 * @param s the message to log, built only if level is enabled
+	 */
+	private void log(Logger.Level level, Supplier<String> s) {
+		Logger.log(level, s);
+	}
+
+	/**
+	 * Assign a new connection to this reactor. Thread-safe.
+	 *
+	 * @param chnl the new connection
+	 */
+	public void addConnection(ConcurrentSocketChannel chnl) {
+		chnl.setFlusher(this::requestFlush);
+		returnChannel(chnl);
+	}
+
+	/**
+	 * Wakes up the selector, unless a wakeup is already pending.
+	 */
+	private void wakeup() {
+		if (wakeup_pending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Give back to this reactor a connection whose request has been handled.
+	 * Thread-safe.
+	 *
+	 * @param chnl the connection
+	 */
+	public void returnChannel(ConcurrentSocketChannel chnl) {
+		freesc.add(chnl);
+		wakeup();
+	}
+
+	/**
+	 * Asks this reactor to write the frames sent on a connection. Thread-safe.
+	 *
+	 * @param chnl the connection
+	 */
+	public void requestFlush(ConcurrentSocketChannel chnl) {
+		toflush.add(chnl);
+		wakeup();
+	}
+
+	/**
+	 * Writes what can be written on a channel without blocking, and updates
+	 * its interest in writability.
+	 *
+	 * @param chnl channel to flush
+	 */
+	private void flushChannel(ConcurrentSocketChannel chnl) {
+		SelectionKey key = chnl.getKey();
+		try {
+			boolean done = chnl.flush();
+			if (key != null && key.isValid()) {
+				if (done) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+				else {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+		catch (IOException e) {
+			// The connection is broken, it will be noticed reading from it
+			log(WARN, () -> "Error writing to " + chnl.toString() + ": " + e.getMessage());
+			chnl.discardOutbound();
+		}
+	}
+
+	/**
+	 * Reads what is available on a readable channel and, if a request has
+	 * been completely received, dispatches it to a worker.
+	 *
+	 * @param key the key of a readable channel
+	 */
+	private void readRequest(SelectionKey key) {
+		ConcurrentSocketChannel chnl = (ConcurrentSocketChannel)key.attachment();
+		Request req;
+		try {
+			chnl.getDecoder().read(chnl);
+			req = chnl.getDecoder().poll();
+			if (req == null) {
+				// Only part of a request, wait for the rest
+				return;
+			}
+		}
+		catch (IOException e) {
+			log(WARN, () -> "Invalid request from " + chnl.toString() + ": " + e.getMessage());
+			req = null;
+		}
+		catch (ChannelClosedException e) {
+			req = null;
+		}
+		// Stop reading from this SocketChannel until the request is handled
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		server.spawnOperationHandler(this, chnl, req);
+	}
+
+	/**
+	 * Makes the selector read again from a channel, unless the client has
+	 * already sent another request, that is dispatched right away. New
+	 * channels are registered here.
+	 *
+	 * @param chnl channel to resume
+	 */
+	private void resumeChannel(ConcurrentSocketChannel chnl) throws IOException {
+		Request req;
+		try {
+			req = chnl.getDecoder().poll();
+		}
+		catch (ProtocolException e) {
+			log(WARN, () -> "Invalid request from " + chnl.toString() + ": " + e.getMessage());
+			server.spawnOperationHandler(this, chnl, null);
+			return;
+		}
+		if (req != null) {
+			server.spawnOperationHandler(this, chnl, req);
+		}
+		else if (chnl.getKey() == null) {
+			chnl.configureBlocking(false);
+			chnl.register(selector, SelectionKey.OP_READ);
+		}
+		else if (chnl.getKey().isValid()) {
+			chnl.getKey().interestOps(chnl.getKey().interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Run this reactor
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				wakeup_pending.set(false);
+				// Read all sc from freesc and resume them
+				Collection<ConcurrentSocketChannel> tmp = new ArrayList<ConcurrentSocketChannel>(freesc.size());
+				freesc.drainTo(tmp);
+				for (ConcurrentSocketChannel sc: tmp) {
+					resumeChannel(sc);
+				}
+				ConcurrentSocketChannel dirty;
+				while ((dirty = toflush.poll()) != null) {
+					flushChannel(dirty);
+				}
+				// Handle requests
+				for (SelectionKey key: selector.selectedKeys()) {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isWritable()) {
+						flushChannel((ConcurrentSocketChannel)key.attachment());
+					}
+					if (key.isValid() && key.isReadable()) {
+						readRequest(key);
+					}
+					else if (key.isAcceptable()) {
+						SocketChannel sc = ((ServerSocketChannel)key.channel()).accept();
+						if (sc != null) {
+							ConcurrentSocketChannel chnl = new ConcurrentSocketChannel(sc);
+							log(DEBUG, () -> "Accepted connection by " + chnl.toString());
+							chnl.setFlusher(this::requestFlush);
+							chnl.configureBlocking(false);
+							chnl.register(selector, SelectionKey.OP_READ);
+						}
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+			catch (IOException e) {
+				log(WARN, () -> "Exception caught while wating for accept: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package server;
+
+import java.util.*;
+import java.nio.*;
+import server.lib.*;
+
+/**
+ * Immutable class to describe a request completely received from a client.
+ * <p>
+ * A request is made of its OpKind and of its parameters, split by type and
+ * kept in the order in which they were sent. The body of a section sent after
+ * an OP_ENDEDIT is delivered as a request too, with the content in its
+ * payload.
+ * <p>
+ * Requests sent in pipelined mode also have an ID, that the server echoes in
+ * the response.
+ */
+public final class Request {
+	/**
+	 * ID of the requests that aren't in pipelined mode.
+	 */
+	public static final int untagged = -1;
+
+	private final int id;
+	private final OpKind op;
+	private final List<String> strings;
+	private final List<Integer> ints;
+	private final ByteBuffer payload;
+
+	/**
+	 * Creates a new request.
+	 *
+	 * @param id_set ID of the request, or {@link untagged}
+	 * @param op_set kind of operation requested
+	 * @param strings_set string parameters, in the order they were sent
+	 * @param ints_set int parameters, in the order they were sent
+	 * @param payload_set raw content following the request, or null if there
+	 *                    is none
+	 */
+	public Request(int id_set, OpKind op_set, List<String> strings_set, List<Integer> ints_set, ByteBuffer payload_set) {
+		id = id_set;
+		op = op_set;
+		strings = Collections.unmodifiableList(new ArrayList<String>(strings_set));
+		ints = Collections.unmodifiableList(new ArrayList<Integer>(ints_set));
+		payload = payload_set;
+	}
+
+	/**
+	 * Get the ID of this request.
+	 *
+	 * @return the ID of this request, or {@link untagged}
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Check whether this request was sent in pipelined mode, and so its
+	 * response must be prefixed by its ID.
+	 *
+	 * @return true iff this request has an ID
+	 */
+	public boolean isTagged() {
+		return id != untagged;
+	}
+
+	/**
+	 * Get the kind of operation of this request.
+	 *
+	 * @return the OpKind of this request
+	 */
+	public OpKind getOp() {
+		return op;
+	}
+
+	/**
+	 * Get a string parameter of this request.
+	 *
+	 * @param i index of the parameter among the string ones
+	 * @return the i-th string parameter
+	 */
+	public String getString(int i) {
+		return strings.get(i);
+	}
+
+	/**
+	 * Get an int parameter of this request.
+	 *
+	 * @param i index of the parameter among the int ones
+	 * @return the i-th int parameter
+	 */
+	public int getInt(int i) {
+		return ints.get(i);
+	}
+
+	/**
+	 * Check whether this request carries a payload.
+	 *
+	 * @return true iff this request has a payload
+	 */
+	public boolean hasPayload() {
+		return payload != null;
+	}
+
+	/**
+	 * Get the payload of this request. The returned buffer is ready to be
+	 * read.
+	 *
+	 * @return the payload of this request, or null if it hasn't one
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+}
@@ -0,0 +1,456 @@
+package server;
+
+import java.util.*;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.*;
+import java.nio.channels.*;
+import server.lib.*;
+
+/**
+ * Incremental decoder of the requests sent on a single connection.
+ * <p>
+ * The decoder accumulates whatever bytes are available on a non-blocking
+ * channel and assembles them into complete {@link Request}s, following the
+ * format specified in the report: an OpKind byte followed by its parameters,
+ * with strings prefixed by their length. Nothing is returned until a request
+ * has been received completely, so that the selector thread can feed the
+ * decoder without ever blocking and workers receive only complete requests.
+ * <p>
+ * Sections are bounded by {@link setMaxSectionSize}, checked as soon as
+ * their size arrives, and they're read in a buffer of their own, so that
+ * the decoder's buffer doesn't grow with them. That buffer grows as the
+ * content arrives: memory follows what a client has actually sent, not the
+ * size it announced. The content sent with a pipelined OP_ENDEDIT is kept
+ * only while the connection holds an edit (see {@link allowSectionBody}),
+ * otherwise it's dropped as it arrives.
+ * <p>
+ * Not synchronized: a decoder must be used by one thread at a time, which is
+ * the case as long as its connection is either in the selector or handled by
+ * a single worker.
+ */
+public class RequestDecoder {
+	/**
+	 * Default maximum size, in bytes, of a section.
+	 */
+	public static final int default_max_section_size = 64 * 1024 * 1024;
+	private static final int initial_capacity = 256;
+	// First capacity of the buffer of a section, doubled as it fills up
+	private static final int initial_section_capacity = BufferPool.max_size;
+
+	private static volatile int max_section_size = default_max_section_size;
+
+	// Kinds of parameters that may follow an OpKind
+	private enum Field { STRING, INT, BODY }
+	private static final Field[] no_fields = {};
+
+	/**
+	 * Get the parameters that follow a certain OpKind in a request, in the
+	 * order in which they are sent.
+	 *
+	 * @param op kind of operation
+	 * @param pipelined whether the request is in pipelined mode
+	 * @return the parameters of op. Operations that aren't requests have no
+	 *         parameters
+	 */
+	private static Field[] fieldsOf(OpKind op, boolean pipelined) {
+		switch (op) {
+			case OP_LOGIN:
+			case OP_INVITE:
+				return new Field[] { Field.STRING, Field.STRING };
+			case OP_CREATE:
+			case OP_EDIT:
+			case OP_SHOWSEC:
+				return new Field[] { Field.STRING, Field.INT };
+			case OP_SHOWDOC:
+			case OP_RESUME:
+				return new Field[] { Field.STRING };
+			case OP_ENDEDIT:
+				// In pipelined mode the new content is sent with the request
+				return pipelined ? new Field[] { Field.BODY } : no_fields;
+			default:
+				return no_fields;
+		}
+	}
+
+	// Received bytes not yet decoded, in write mode between calls. It's a
+	// direct buffer taken from BufferPool, so that reads aren't copied
+	private ByteBuffer buffer;
+	// State of the request being decoded: op == null means that the next
+	// thing is the beginning of a request
+	private int id;
+	private OpKind op;
+	private Field[] fields;
+	private int next_field;
+	private final List<String> strings;
+	private final List<Integer> ints;
+	private ByteBuffer body;
+	// Whether the next thing on the channel is the body of a section
+	private boolean expect_body;
+	// Section being received, in write mode, or null if its size hasn't
+	// been received yet. Its capacity may still be below section_size
+	private ByteBuffer section;
+	private int section_size;
+	// Whether the content of a pipelined OP_ENDEDIT is kept, and bytes
+	// still to drop of one that isn't, or -1 if its size hasn't arrived
+	private boolean body_allowed;
+	private long skip;
+	// Whether requests are prefixed by their ID. Read by other threads
+	private volatile boolean pipelined;
+
+	/**
+	 * Creates a new decoder, waiting for a request.
+	 */
+	public RequestDecoder() {
+		buffer = BufferPool.acquire(initial_capacity);
+		buffer.clear();
+		strings = new ArrayList<String>();
+		ints = new ArrayList<Integer>();
+		expect_body = false;
+		section = null;
+		section_size = 0;
+		body_allowed = false;
+		skip = -1;
+		pipelined = false;
+		reset();
+	}
+
+	/**
+	 * Sets the maximum size of the sections accepted by every decoder. A
+	 * section announced bigger than that is a protocol error.
+	 *
+	 * @param size the maximum size, in bytes
+	 * @throws IllegalArgumentException if size is negative or too big for a
+	 *                                  buffer
+	 */
+	public static void setMaxSectionSize(int size) throws IllegalArgumentException {
+		if (size < 0 || size > Integer.MAX_VALUE - Long.BYTES) {
+			throw new IllegalArgumentException("Invalid max section size");
+		}
+		max_section_size = size;
+	}
+
+	/**
+	 * Get the maximum size of the sections accepted.
+	 *
+	 * @return the maximum size, in bytes
+	 */
+	public static int getMaxSectionSize() {
+		return max_section_size;
+	}
+
+	/**
+	 * Resets the state to wait for the beginning of a new request.
+	 */
+	private void reset() {
+		id = Request.untagged;
+		op = null;
+		fields = no_fields;
+		next_field = 0;
+		strings.clear();
+		ints.clear();
+		body = null;
+	}
+
+	/**
+	 * Makes sure that the buffer can hold at least size bytes. Assumes the
+	 * buffer to be in write mode.
+	 */
+	private void reserve(int size) {
+		if (buffer.capacity() < size) {
+			ByteBuffer bigger = BufferPool.acquire(size);
+			bigger.clear();
+			buffer.flip();
+			bigger.put(buffer);
+			BufferPool.release(buffer);
+			buffer = bigger;
+		}
+	}
+
+	/**
+	 * Gives back a buffer grown for a big request, once what's left in it
+	 * fits in the initial one. Assumes the buffer to be in write mode.
+	 */
+	private void shrink() {
+		if (buffer.capacity() > initial_capacity && buffer.position() <= initial_capacity) {
+			ByteBuffer smaller = BufferPool.acquire(initial_capacity);
+			smaller.clear();
+			buffer.flip();
+			smaller.put(buffer);
+			BufferPool.release(buffer);
+			buffer = smaller;
+		}
+	}
+
+	/**
+	 * Makes room in the buffer of the section for the next bytes, up to
+	 * needed, doubling its capacity but never beyond the size of the section.
+	 */
+	private void growSection(int needed) {
+		int missing = section_size - section.position();
+		if (section.remaining() >= Math.min(needed, missing)) {
+			return;
+		}
+		long wanted = Math.max((long)section.capacity() * 2, (long)section.position() + Math.min(needed, missing));
+		ByteBuffer bigger = ByteBuffer.allocate((int)Math.min(wanted, section_size));
+		section.flip();
+		bigger.put(section);
+		section = bigger;
+	}
+
+	/**
+	 * Tells the decoder that the next data on the channel is the content of a
+	 * section, formatted as specified for section transfers (a long with its
+	 * size followed by the bytes of the file).
+	 * <p>
+	 * It must be called before the client is told to send the section, ie:
+	 * before the RESP_OK of an OP_ENDEDIT is written.
+	 */
+	public void expectSectionBody() {
+		expect_body = true;
+	}
+
+	/**
+	 * Sets whether the content sent with a pipelined OP_ENDEDIT is kept. It
+	 * should be allowed only while the connection holds an edit: otherwise
+	 * the content is dropped as it arrives, without allocating anything for
+	 * it, and the request is returned without payload.
+	 *
+	 * @param allowed true iff the next contents must be kept
+	 */
+	public void allowSectionBody(boolean allowed) {
+		body_allowed = allowed;
+	}
+
+	/**
+	 * Check whether the requests decoded from now on are in pipelined mode.
+	 * Thread-safe.
+	 *
+	 * @return true iff requests are prefixed by their ID
+	 */
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/**
+	 * Reads whatever is available on a channel without blocking, as long as
+	 * it is in non-blocking mode.
+	 *
+	 * @param chnl channel to read from
+	 * @return true iff at least a byte was read
+	 * @throws ChannelClosedException if the read-end of the channel has been
+	 *                                closed
+	 */
+	public boolean read(ReadableByteChannel chnl) throws IOException, ChannelClosedException {
+		int read;
+		if (section != null && buffer.position() == 0) {
+			// The rest of a section goes straight to its buffer, a window at
+			// a time so that the JDK's temporary direct buffer stays small
+			growSection(BufferPool.max_size);
+			ByteBuffer window = section.duplicate();
+			window.limit(Math.min(section.limit(), section.position() + BufferPool.max_size));
+			read = chnl.read(window);
+			if (read > 0) {
+				section.position(window.position());
+			}
+		}
+		else {
+			if (!buffer.hasRemaining()) {
+				reserve(buffer.capacity() * 2);
+			}
+			read = chnl.read(buffer);
+		}
+		if (read == -1) {
+			throw new ChannelClosedException();
+		}
+		return read > 0;
+	}
+
+	/**
+	 * Decodes the size at the beginning of a section. Assumes the buffer to
+	 * be in read mode.
+	 *
+	 * @return the size, or -1 if it hasn't been received yet
+	 * @throws ProtocolException if the size isn't valid
+	 */
+	private int pollSectionSize() throws ProtocolException {
+		if (buffer.remaining() < Long.BYTES) {
+			return -1;
+		}
+		long size = buffer.getLong();
+		if (size < 0 || size > max_section_size) {
+			throw new ProtocolException("Invalid section size " + Long.toString(size));
+		}
+		return (int)size;
+	}
+
+	/**
+	 * Drops as much as has been received of a section that isn't kept.
+	 * Assumes the buffer to be in read mode.
+	 *
+	 * @return true iff the whole section has been dropped
+	 * @throws ProtocolException if the size of the section isn't valid
+	 */
+	private boolean skipSection() throws ProtocolException {
+		if (skip == -1) {
+			skip = pollSectionSize();
+			if (skip == -1) {
+				return false;
+			}
+		}
+		int n = (int)Math.min(buffer.remaining(), skip);
+		buffer.position(buffer.position() + n);
+		skip -= n;
+		if (skip > 0) {
+			return false;
+		}
+		skip = -1;
+		return true;
+	}
+
+	/**
+	 * Decodes as much as has been received of the content of a section,
+	 * moving it out of the buffer. Assumes the buffer to be in read mode.
+	 * <p>
+	 * The content goes in a buffer of its own, allocated small when the size
+	 * arrives and grown as the bytes do: the bytes already in the decoder's
+	 * buffer are copied, the following ones are read directly there by
+	 * {@link read}.
+	 *
+	 * @return the content of the section, ready to be read, or null if it
+	 *         isn't complete yet
+	 * @throws ProtocolException if the size of the section isn't valid
+	 */
+	private ByteBuffer pollSection() throws ProtocolException {
+		if (section == null) {
+			int size = pollSectionSize();
+			if (size == -1) {
+				return null;
+			}
+			section_size = size;
+			section = ByteBuffer.allocate(Math.min(section_size, initial_section_capacity));
+		}
+		growSection(buffer.remaining());
+		int n = Math.min(buffer.remaining(), section.remaining());
+		ByteBuffer src = buffer.duplicate();
+		src.limit(src.position() + n);
+		section.put(src);
+		buffer.position(buffer.position() + n);
+		if (section.position() < section_size) {
+			return null;
+		}
+		ByteBuffer content = section;
+		section = null;
+		content.flip();
+		return content;
+	}
+
+	/**
+	 * Get the number of bytes needed to decode the field at the beginning of
+	 * the buffer, given that it can't be decoded with what's been received.
+	 * Assumes the buffer to be in read mode.
+	 */
+	private int neededFor(Field field) {
+		if (field == Field.STRING && buffer.remaining() >= Integer.BYTES) {
+			return Integer.BYTES + buffer.getInt(buffer.position());
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the next request, if it has already been received completely.
+	 * <p>
+	 * Decoded bytes are consumed, while bytes of a partial request are kept
+	 * until the rest of the request arrives. Decoding an OP_PIPELINE switches
+	 * the decoder to pipelined mode, in which every request is prefixed by
+	 * an int with its ID.
+	 *
+	 * @return the next complete request, or null if there isn't one yet
+	 * @throws ProtocolException if the received data isn't a valid request
+	 */
+	public Request poll() throws ProtocolException {
+		int needed = 0;
+		buffer.flip();
+		try {
+			if (expect_body) {
+				ByteBuffer content = pollSection();
+				if (content == null) {
+					return null;
+				}
+				expect_body = false;
+				return new Request(Request.untagged, OpKind.OP_ENDEDIT, strings, ints, content);
+			}
+			if (op == null) {
+				int header = pipelined ? Integer.BYTES + 1 : 1;
+				if (buffer.remaining() < header) {
+					return null;
+				}
+				if (pipelined) {
+					id = buffer.getInt();
+					if (id < 0) {
+						throw new ProtocolException("Negative request ID " + Integer.toString(id));
+					}
+				}
+				byte b = buffer.get();
+				if (b < 0 || b >= OpKind.values().length) {
+					throw new ProtocolException("Unknown operation code " + Byte.toString(b));
+				}
+				op = OpKind.getOp(b);
+				fields = fieldsOf(op, pipelined);
+			}
+			while (next_field < fields.length) {
+				Field field = fields[next_field];
+				if (field == Field.BODY && !body_allowed) {
+					// No edit to end: the request is answered with an error,
+					// its content costs nothing
+					if (!skipSection()) {
+						return null;
+					}
+				}
+				else if (field == Field.BODY) {
+					// Bounded and read in its own buffer as the section
+					// after OP_ENDEDIT in normal mode
+					body = pollSection();
+					if (body == null) {
+						return null;
+					}
+				}
+				else if (buffer.remaining() < Integer.BYTES) {
+					return null;
+				}
+				else if (field == Field.INT) {
+					ints.add(buffer.getInt());
+				}
+				else {
+					int len = buffer.getInt(buffer.position());
+					// Checked before waiting for the string, so that
+					// the buffer never grows above the maximum length
+					StringCodec.checkLength(len);
+					if (buffer.remaining() < Integer.BYTES + len) {
+						needed = neededFor(field);
+						return null;
+					}
+					buffer.getInt();
+					strings.add(StringCodec.decode(buffer, len));
+				}
+				++next_field;
+			}
+			if (op == OpKind.OP_PIPELINE) {
+				// Following requests may already be in the buffer
+				pipelined = true;
+			}
+			Request req = new Request(id, op, strings, ints, body);
+			reset();
+			return req;
+		}
+		finally {
+			buffer.compact();
+			if (needed == 0) {
+				shrink();
+			}
+			else {
+				reserve(needed);
+			}
+		}
+	}
+}
@@ -1,8 +1,5 @@
 package server;
 
-import java.nio.*;
-import java.nio.file.*;
-
 /**
  * Immutable class to describe a section of a document.
  */
@@ -68,32 +65,6 @@ public final class Section {
 		return owner + sep + doc_name;
 	}
 
-	/**
-	 * Get the path to this section's document (relative to the db root
-	 * directory)
-	 *
-	 * @return the path to this section's document
-	 */
-	public Path getDocumentPath() {
-		return Paths.get(owner).resolve(doc_name);
-	}
-	/**
-	 * Get the path of this section relative to its document's directory.
-	 *
-	 * @return this section's path
-	 */
-	public Path getSectionPath() {
-		return Paths.get(DBInterface.section_file_prefix + Integer.toString(n));
-	}
-	/**
-	 * Get this section's full path (relative to the db root directory).
-	 *
-	 * @return this section's full path
-	 */
-	public Path getFullPath() {
-		return getDocumentPath().resolve(getSectionPath());
-	}
-
 	@Override
 	public boolean equals(Object obj) {
 		if (!(obj instanceof Section)) {
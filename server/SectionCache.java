@@ -0,0 +1,174 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import server.lib.*;
+
+/**
+ * Cache of the content of the most read sections, kept off-heap in direct
+ * buffers, used by {@link DBInterface#openSection}.
+ * <p>
+ * Each entry is tagged with the version of the section it holds, taken from
+ * the {@link DocumentHeader} of its document, and it's returned only to who
+ * asks for that same version: once an edit replaces a section and updates
+ * the header, the old entry is never returned again, even if a slow reader
+ * puts it back after the edit {@link #invalidate}d it. Entries are
+ * immutable, so they're read and replaced without locks, and sent as they
+ * are (a read-only view of the direct buffer goes in the frame).
+ * <p>
+ * Memory is bounded by the bytes of the cached sections. When it exceeds
+ * the bound, {@link #trim} sweeps the entries as in the CLOCK algorithm, an
+ * approximation of LRU: an entry read since the last sweep gets a second
+ * chance, the others are evicted. Sections bigger than a sixteenth of the
+ * bound aren't cached, so a single one can't empty the cache. The memory of
+ * an evicted entry is released by the garbage collector, once the frames
+ * sending it have been written.
+ */
+public class SectionCache {
+	private static final class Entry {
+		private final long version;
+		private final ByteBuffer content;
+		private volatile boolean referenced;
+
+		private Entry(long version_set, ByteBuffer content_set) {
+			version = version_set;
+			content = content_set;
+			referenced = true;
+		}
+	}
+
+	private final long max_bytes;
+	private final ConcurrentMap<Section, Entry> sections;
+	private final AtomicLong bytes;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+	// Whether a thread is sweeping the entries
+	private final AtomicBoolean trimming;
+
+	/**
+	 * Creates a new empty cache.
+	 *
+	 * @param max_bytes_set bound to the bytes of the cached sections
+	 * @throws IllegalArgumentException if max_bytes_set isn't positive
+	 */
+	public SectionCache(long max_bytes_set) throws IllegalArgumentException {
+		if (max_bytes_set <= 0) {
+			throw new IllegalArgumentException("The section cache must have a positive size");
+		}
+		max_bytes = max_bytes_set;
+		sections = new ConcurrentHashMap<Section, Entry>();
+		bytes = new AtomicLong(0);
+		hits = new AtomicLong(0);
+		misses = new AtomicLong(0);
+		evictions = new AtomicLong(0);
+		trimming = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Get a cached section, counting a hit or a miss. Thread-safe, never
+	 * blocks.
+	 *
+	 * @param sec the section
+	 * @param version the current version of sec
+	 * @return the content of that version of sec, ready to be read, or null
+	 *         if it isn't cached
+	 */
+	public ByteBuffer get(Section sec, long version) {
+		Entry e = sections.get(sec);
+		if (e == null || e.version != version) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		e.referenced = true;
+		return e.content.duplicate();
+	}
+
+	/**
+	 * Loads a section in the cache, if it isn't too big. The blob isn't
+	 * closed. Thread-safe: if a newer version of the section is already
+	 * cached, it's kept.
+	 *
+	 * @param sec the section
+	 * @param version the version of sec held by content
+	 * @param content the content of the section
+	 * @return a read-only view of the cached copy of content, ready to be
+	 *         read, or null if it's too big to be cached
+	 * @throws IOException if content can't be read
+	 */
+	public ByteBuffer put(Section sec, long version, Blob content) throws IOException {
+		long size = content.getSize();
+		if (size > max_bytes / 16) {
+			return null;
+		}
+		ByteBuffer buff = ByteBuffer.allocateDirect((int)size);
+		content.copyTo(buff);
+		buff.flip();
+		Entry entry = new Entry(version, buff.asReadOnlyBuffer());
+		sections.compute(sec, (s, old) -> {
+			if (old != null && old.version >= version) {
+				return old;
+			}
+			bytes.addAndGet(size - (old == null ? 0 : old.content.capacity()));
+			return entry;
+		});
+		return entry.content.duplicate();
+	}
+
+	/**
+	 * Drops a section from the cache, after its content is replaced.
+	 * Thread-safe, never blocks.
+	 *
+	 * @param sec the section
+	 */
+	public void invalidate(Section sec) {
+		Entry old = sections.remove(sec);
+		if (old != null) {
+			bytes.addAndGet(-old.content.capacity());
+		}
+	}
+
+	/**
+	 * Evicts entries until the memory bound is respected again, if it isn't.
+	 * Never blocks: if another thread is already sweeping it returns
+	 * immediately.
+	 */
+	public void trim() {
+		if (bytes.get() <= max_bytes || !trimming.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			// Two rounds: the first one may only clear the referenced flags
+			for (int round = 0; round < 2 && bytes.get() > max_bytes; ++round) {
+				Iterator<Map.Entry<Section, Entry>> it = sections.entrySet().iterator();
+				while (it.hasNext() && bytes.get() > max_bytes) {
+					Map.Entry<Section, Entry> e = it.next();
+					Entry entry = e.getValue();
+					if (entry.referenced) {
+						entry.referenced = false;
+					}
+					else if (sections.remove(e.getKey(), entry)) {
+						bytes.addAndGet(-entry.content.capacity());
+						evictions.incrementAndGet();
+					}
+				}
+			}
+		}
+		finally {
+			trimming.set(false);
+		}
+	}
+
+	/**
+	 * Get a summary of the state of this cache. Thread-safe.
+	 *
+	 * @return hits, misses, evictions and bytes of the cached sections
+	 */
+	public CacheSummary getSummary() {
+		return new CacheSummary(hits.get(), misses.get(), evictions.get(), bytes.get());
+	}
+}
@@ -0,0 +1,109 @@
+package server;
+
+import java.util.*;
+
+/**
+ * Options of a TURING server given on the command line.
+ * <p>
+ * After the two ports, the command line may contain the word "test" (to run
+ * the local test instead of the server) and any number of options in the form
+ * {@code --name=value} or just {@code --name}. Options without a value are
+ * stored with an empty value, and each getter decides how to interpret it.
+ */
+public class ServerConfig {
+	private final Map<String, String> options;
+	private boolean test;
+
+	/**
+	 * Creates a configuration with every option set to its default.
+	 */
+	public ServerConfig() {
+		options = new HashMap<String, String>();
+		test = false;
+	}
+
+	/**
+	 * Parses the options in a command line.
+	 *
+	 * @param args the command line
+	 * @param first index of the first option in args
+	 * @return the configuration described by args
+	 * @throws IllegalArgumentException if an argument isn't an option
+	 */
+	public static ServerConfig parse(String[] args, int first) throws IllegalArgumentException {
+		ServerConfig config = new ServerConfig();
+		for (int i = first; i < args.length; ++i) {
+			if ("test".equals(args[i])) {
+				config.test = true;
+			}
+			else if (args[i].startsWith("--")) {
+				int idx_eq = args[i].indexOf('=');
+				if (idx_eq == -1) {
+					config.options.put(args[i].substring(2), "");
+				}
+				else {
+					config.options.put(args[i].substring(2, idx_eq), args[i].substring(idx_eq + 1));
+				}
+			}
+			else {
+				throw new IllegalArgumentException("Unknown argument " + args[i]);
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Check whether the local test was requested.
+	 *
+	 * @return true iff the server should run the local test
+	 */
+	public boolean isTest() {
+		return test;
+	}
+
+	/**
+	 * Check whether an option was given.
+	 *
+	 * @param name name of the option
+	 * @return true iff the option is present, with or without a value
+	 */
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	/**
+	 * Get the value of a string option.
+	 *
+	 * @param name name of the option
+	 * @param dflt value to use if the option isn't present
+	 * @return the value of the option
+	 */
+	public String getString(String name, String dflt) {
+		return options.getOrDefault(name, dflt);
+	}
+
+	/**
+	 * Get the value of an int option.
+	 *
+	 * @param name name of the option
+	 * @param dflt value to use if the option isn't present
+	 * @param bare value to use if the option is present without a value
+	 * @return the value of the option
+	 * @throws IllegalArgumentException if the value isn't an int
+	 */
+	public int getInt(String name, int dflt, int bare) throws IllegalArgumentException {
+		String value = options.get(name);
+		if (value == null) {
+			return dflt;
+		}
+		if ("".equals(value)) {
+			return bare;
+		}
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Option --" + name + " requires an integer, got " + value);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import server.lib.*;
+
+/**
+ * Statistics of a TURING server, recorded by reactors and workers and
+ * queried through RMI.
+ * <p>
+ * There's a histogram for each OpKind, all created at the beginning, so that
+ * recording never needs to modify the map and everything is lock-free.
+ */
+public class ServerStats implements StatsInterface {
+	private final Map<OpKind, LatencyHistogram> latencies;
+	private final LatencyHistogram queue_wait;
+	private final AtomicLong refused;
+	private final AtomicLong file_bytes_sent;
+	private final AtomicLong file_bytes_received;
+	private volatile MetadataCache metadata;
+	private volatile SectionCache sections;
+
+	/**
+	 * Creates new empty statistics.
+	 */
+	public ServerStats() {
+		Map<OpKind, LatencyHistogram> tmp = new EnumMap<OpKind, LatencyHistogram>(OpKind.class);
+		for (OpKind op : OpKind.values()) {
+			tmp.put(op, new LatencyHistogram());
+		}
+		latencies = Collections.unmodifiableMap(tmp);
+		queue_wait = new LatencyHistogram();
+		refused = new AtomicLong(0);
+		file_bytes_sent = new AtomicLong(0);
+		file_bytes_received = new AtomicLong(0);
+		metadata = null;
+		sections = null;
+	}
+
+	/**
+	 * Sets the metadata cache whose state is reported.
+	 *
+	 * @param metadata_set the metadata cache of the server
+	 */
+	public void setMetadataCache(MetadataCache metadata_set) {
+		metadata = metadata_set;
+	}
+
+	/**
+	 * Sets the section cache whose state is reported.
+	 *
+	 * @param sections_set the section cache of the server, or null if
+	 *                     sections aren't cached
+	 */
+	public void setSectionCache(SectionCache sections_set) {
+		sections = sections_set;
+	}
+
+	/**
+	 * Records the time taken to handle an operation. Thread-safe.
+	 *
+	 * @param op the kind of operation
+	 * @param nanos the time taken, in nanoseconds
+	 */
+	public void recordOperation(OpKind op, long nanos) {
+		latencies.get(op).record(nanos);
+	}
+
+	/**
+	 * Records the time spent by a request waiting for a worker. Thread-safe.
+	 *
+	 * @param nanos the time waited, in nanoseconds
+	 */
+	public void recordQueueWait(long nanos) {
+		queue_wait.record(nanos);
+	}
+
+	/**
+	 * Counts a request refused because of overload. Thread-safe.
+	 */
+	public void countRefused() {
+		refused.incrementAndGet();
+	}
+
+	/**
+	 * Counts bytes of files sent. Thread-safe.
+	 *
+	 * @param n number of bytes
+	 */
+	public void countFileBytesSent(long n) {
+		file_bytes_sent.addAndGet(n);
+	}
+
+	/**
+	 * Counts bytes of files received. Thread-safe.
+	 *
+	 * @param n number of bytes
+	 */
+	public void countFileBytesReceived(long n) {
+		file_bytes_received.addAndGet(n);
+	}
+
+	// StatsInterface
+	@Override
+	public Map<OpKind, LatencySummary> getLatencies() {
+		Map<OpKind, LatencySummary> result = new EnumMap<OpKind, LatencySummary>(OpKind.class);
+		for (Map.Entry<OpKind, LatencyHistogram> e : latencies.entrySet()) {
+			if (e.getValue().getCount() > 0) {
+				result.put(e.getKey(), e.getValue().getSummary());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public LatencySummary getQueueWait() {
+		return queue_wait.getSummary();
+	}
+
+	@Override
+	public long getRefused() {
+		return refused.get();
+	}
+
+	@Override
+	public long getFileBytesSent() {
+		return file_bytes_sent.get();
+	}
+
+	@Override
+	public long getFileBytesReceived() {
+		return file_bytes_received.get();
+	}
+
+	@Override
+	public long getLogDropped() {
+		return Logger.getDropped();
+	}
+
+	@Override
+	public CacheSummary getMetadataCache() {
+		MetadataCache cache = metadata;
+		return cache == null ? new CacheSummary(0, 0, 0, 0) : cache.getSummary();
+	}
+
+	@Override
+	public CacheSummary getSectionCache() {
+		SectionCache cache = sections;
+		return cache == null ? new CacheSummary(0, 0, 0, 0) : cache.getSummary();
+	}
+}
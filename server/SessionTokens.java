@@ -0,0 +1,146 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * In-memory table of the session resumption tokens, issued at login and
+ * presented with OP_RESUME to log in again without the password.
+ * <p>
+ * A token is a random string that expires after a fixed time since it was
+ * issued. Each user has at most one token: issuing a new one, at login or
+ * when a session is resumed, invalidates the previous one, so the table
+ * never holds more tokens than users. Expired tokens are refused when
+ * presented and dropped by {@link #purge}.
+ * <p>
+ * Thread-safe and lock-free: tokens are kept in concurrent maps, from token
+ * to session and from user to token. Nothing is stored on disk, so the
+ * tokens are lost when the server stops, and who had one logs in again.
+ */
+public class SessionTokens {
+	// Random bytes in a token
+	private static final int token_bytes = 16;
+
+	private static final class Session {
+		private final String usr;
+		private final long expires;
+
+		private Session(String usr_set, long expires_set) {
+			usr = usr_set;
+			expires = expires_set;
+		}
+	}
+
+	private final long ttl_nanos;
+	private final SecureRandom random;
+	private final Base64.Encoder encoder;
+	private final ConcurrentMap<String, Session> sessions;
+	private final ConcurrentMap<String, String> user_tokens;
+	private final AtomicLong resumed;
+	private final AtomicLong refused;
+
+	/**
+	 * Creates a new empty table.
+	 *
+	 * @param ttl_seconds seconds a token is valid after being issued
+	 * @throws IllegalArgumentException if ttl_seconds isn't positive
+	 */
+	public SessionTokens(long ttl_seconds) throws IllegalArgumentException {
+		if (ttl_seconds <= 0) {
+			throw new IllegalArgumentException("Session tokens must last a positive time");
+		}
+		ttl_nanos = TimeUnit.SECONDS.toNanos(ttl_seconds);
+		random = new SecureRandom();
+		encoder = Base64.getUrlEncoder().withoutPadding();
+		sessions = new ConcurrentHashMap<String, Session>();
+		user_tokens = new ConcurrentHashMap<String, String>();
+		resumed = new AtomicLong(0);
+		refused = new AtomicLong(0);
+	}
+
+	/**
+	 * Issues a new token for a user, invalidating the previous one.
+	 *
+	 * @param usr the logged user
+	 * @return the token
+	 */
+	public String issue(String usr) {
+		byte[] bytes = new byte[token_bytes];
+		random.nextBytes(bytes);
+		String token = encoder.encodeToString(bytes);
+		// Published before being linked to the user, so that who replaces it
+		// can always remove it
+		sessions.put(token, new Session(usr, System.nanoTime() + ttl_nanos));
+		String old = user_tokens.put(usr, token);
+		if (old != null) {
+			sessions.remove(old);
+		}
+		return token;
+	}
+
+	/**
+	 * Get the user of a token, if it's still valid. The token stays valid:
+	 * the caller issues a new one once the session is restored.
+	 *
+	 * @param token the token presented by a client
+	 * @return the user to which token was issued, or null if it doesn't
+	 *         exist or has expired
+	 */
+	public String resume(String token) {
+		Session session = sessions.get(token);
+		if (session == null || System.nanoTime() - session.expires > 0) {
+			refused.incrementAndGet();
+			return null;
+		}
+		resumed.incrementAndGet();
+		return session.usr;
+	}
+
+	/**
+	 * Drops the expired tokens.
+	 *
+	 * @return the number of tokens dropped
+	 */
+	public int purge() {
+		long now = System.nanoTime();
+		int dropped = 0;
+		for (Map.Entry<String, Session> e : sessions.entrySet()) {
+			Session session = e.getValue();
+			if (now - session.expires > 0 && sessions.remove(e.getKey(), session)) {
+				user_tokens.remove(session.usr, e.getKey());
+				++dropped;
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Get the number of tokens in the table, including the expired ones not
+	 * yet purged.
+	 *
+	 * @return the number of tokens
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Get the number of sessions resumed so far.
+	 *
+	 * @return how many tokens have been accepted
+	 */
+	public long getResumed() {
+		return resumed.get();
+	}
+
+	/**
+	 * Get the number of tokens refused so far.
+	 *
+	 * @return how many unknown or expired tokens have been presented
+	 */
+	public long getRefused() {
+		return refused.get();
+	}
+}
@@ -0,0 +1,42 @@
+package server;
+
+import java.util.*;
+import java.rmi.*;
+import java.rmi.registry.*;
+import server.lib.*;
+
+/**
+ * Prints the statistics of a running TURING server, queried through RMI.
+ * <p>
+ * The output has a line for each statistic, in the form {@code name values},
+ * so that it's easy to parse from a script.
+ * <p>
+ * Usage: {@code StatsDump rmi_port [host]}
+ */
+public class StatsDump {
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: StatsDump rmi_port [host]");
+			System.exit(1);
+		}
+		try {
+			String host = args.length > 1 ? args[1] : "localhost";
+			Registry r = LocateRegistry.getRegistry(host, Integer.parseInt(args[0]));
+			StatsInterface stats = (StatsInterface)r.lookup(Constants.rmi_stats_name);
+			for (Map.Entry<OpKind, LatencySummary> e : stats.getLatencies().entrySet()) {
+				System.out.println(e.getKey().toString() + " " + e.getValue().toString());
+			}
+			System.out.println("queue_wait " + stats.getQueueWait().toString());
+			System.out.println("refused " + Long.toString(stats.getRefused()));
+			System.out.println("file_bytes_sent " + Long.toString(stats.getFileBytesSent()));
+			System.out.println("file_bytes_received " + Long.toString(stats.getFileBytesReceived()));
+			System.out.println("log_dropped " + Long.toString(stats.getLogDropped()));
+			System.out.println("metadata_cache " + stats.getMetadataCache().toString());
+			System.out.println("section_cache " + stats.getSectionCache().toString());
+		}
+		catch (RemoteException | NotBoundException e) {
+			System.out.println("Can't get the statistics: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Low-level storage used by {@link DBInterface}: a map from keys to byte
+ * values.
+ * <p>
+ * Keys are relative paths, with parts separated by {@link Section#sep}
+ * (for instance {@code owner/doc/section0}), so that an engine can store
+ * them as a tree of files. No part of a key begins with
+ * {@link #reserved_prefix}, so an engine can give such names to its own
+ * files without clashing with a key. Values are small rows-based files
+ * (passwords, permissions, editors, invitations) or section contents.
+ * <p>
+ * Every operation is atomic and thread-safe, but an engine doesn't order
+ * concurrent operations on the same key: DBInterface does it with its
+ * locks.
+ */
+public interface StorageEngine extends Closeable {
+	// No part of a key begins with it, see DBInterface.isValidName
+	public static final String reserved_prefix = ".";
+
+	/**
+	 * Check if a key exists.
+	 *
+	 * @param key the key
+	 * @return true iff the key has a value
+	 * @throws IOException if an IO error occurs
+	 */
+	public boolean exists(String key) throws IOException;
+
+	/**
+	 * Get the size of a value.
+	 *
+	 * @param key the key
+	 * @return the size of the value of key, or -1 if it doesn't exist
+	 * @throws IOException if an IO error occurs
+	 */
+	public long size(String key) throws IOException;
+
+	/**
+	 * Creates a key, if it doesn't exist.
+	 *
+	 * @param key the key
+	 * @param content its value, ready to be read
+	 * @return true iff the key was created (ie: didn't exist)
+	 * @throws IOException if an IO error occurs
+	 */
+	public boolean create(String key, ByteBuffer content) throws IOException;
+
+	/**
+	 * Appends data to the value of an existing key.
+	 *
+	 * @param key the key
+	 * @param data data to append, ready to be read
+	 * @throws IOException if the key doesn't exist or if an IO error occurs
+	 */
+	public void append(String key, ByteBuffer data) throws IOException;
+
+	/**
+	 * Replaces the value of a key, creating it if it doesn't exist. Readers
+	 * see either the old or the new value, never a mix of them.
+	 *
+	 * @param key the key
+	 * @param content the new value, ready to be read
+	 * @throws IOException if an IO error occurs
+	 */
+	public void put(String key, ByteBuffer content) throws IOException;
+
+	/**
+	 * Replaces the value of a key with the content of a channel, as
+	 * {@link #put(String, ByteBuffer)}. The channel starts with a long with
+	 * the length of the following value, as in
+	 * {@link server.lib.IOUtils#channelToFile}.
+	 *
+	 * @param key the key
+	 * @param src channel to read the value from
+	 * @return the size of the new value
+	 * @throws IOException if an IO error occurs
+	 */
+	public long put(String key, ReadableByteChannel src) throws IOException;
+
+	/**
+	 * Reads a whole value in memory. Meant for small values.
+	 *
+	 * @param key the key
+	 * @return the value, ready to be read, or null if key doesn't exist
+	 * @throws IOException if an IO error occurs
+	 */
+	public ByteBuffer read(String key) throws IOException;
+
+	/**
+	 * Opens a value to send it. The blob keeps the value it had when it was
+	 * opened, even if it's later replaced.
+	 *
+	 * @param key the key
+	 * @return the value, that the caller must close, or null if key doesn't
+	 *         exist
+	 * @throws IOException if an IO error occurs
+	 */
+	public Blob open(String key) throws IOException;
+
+	/**
+	 * Lists the keys directly under a prefix key.
+	 *
+	 * @param parent the prefix, without the trailing separator
+	 * @param name_prefix beginning of the last part of the keys to list
+	 * @return the last parts of the keys {@code parent/name_prefix*}
+	 * @throws IOException if an IO error occurs
+	 */
+	public List<String> list(String parent, String name_prefix) throws IOException;
+}
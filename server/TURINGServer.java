@@ -7,7 +7,9 @@ import java.rmi.server.*;
 import java.rmi.registry.*;
 import java.io.IOException;
 import java.net.*;
+import java.util.function.*;
 import server.lib.*;
+import static server.Logger.Level.*;
 // DEBUG
 import java.nio.*;
 import java.nio.file.*;
@@ -23,14 +25,22 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 
 	public static void main(String[] args) {
 		try {
-			TURINGServer server = new TURINGServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
-			if (args.length > 2 && "test".equals(args[2])) {
+			ServerConfig config = ServerConfig.parse(args, 2);
+			String db_path = config.getString("db", default_db_path);
+			if (db_path.isEmpty()) {
+				throw new IllegalArgumentException("--db needs the path of the db folder");
+			}
+			TURINGServer server = new TURINGServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]), db_path, config);
+			if (config.isTest()) {
 				server.testLocal();
 			}
 			else {
 				server.run();
 			}
 		}
+		catch (IllegalArgumentException e) { // Catches also NumberFormatException
+			System.out.println("Wrong arguments: " + e.getMessage());
+		}
 		catch (IOException e) { // Catches also RemoteException
 			System.out.println("Error creating server: " + e.getMessage());
 		}
@@ -39,11 +49,24 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 	// ============================== NON STATIC ==============================
 	private final DBInterface db_interface;
 	private final ThreadPoolExecutor threadpool;
+	// Runs the requests that can't be refused when threadpool is full
+	private final ExecutorService overflow;
 
-	private final BlockingQueue<ConcurrentSocketChannel> freesc;
 	private final ConcurrentMap<ConcurrentSocketChannel, String> socket_to_user;
 	private final ConcurrentMap<String, ConcurrentSocketChannel> user_to_socket;
-	private final Selector selector;
+	private final ServerSocketChannel server_sock;
+	// Number of reactors besides the acceptor, 0 to have a single selector
+	// that also accepts connections
+	private final int nreactors;
+	// Factory of the threads serving connections, or null to use reactors
+	private final ThreadFactory connection_threads;
+	private final ServerStats stats;
+	// Seconds between two logs of the statistics, 0 to never log them
+	private final int stats_period;
+	// Tokens to resume sessions, null if disabled
+	private final SessionTokens sessions;
+	// Seconds a session token is valid
+	private final int session_ttl;
 
 	/**
 	 * Creates a new instance of TURINGServer
@@ -52,26 +75,145 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 	 * @param server_sock_port port on which the server listen for new
 	 *                         connections
 	 * @param db_path_set path to the db folder
+	 * @param config options of the server
 	 */
-	public TURINGServer(int rmi_registry_port, int server_sock_port, String db_path_set) throws RemoteException, IOException {
+	public TURINGServer(int rmi_registry_port, int server_sock_port, String db_path_set, ServerConfig config) throws RemoteException, IOException {
 		super();
+		nreactors = config.getInt("reactors", 0, Runtime.getRuntime().availableProcessors());
+		if (nreactors < 0) {
+			throw new IllegalArgumentException("Negative number of reactors");
+		}
+		String mode = config.getString("mode", "selector");
+		if ("virtual".equals(mode)) {
+			connection_threads = virtualThreadFactory();
+		}
+		else if ("selector".equals(mode)) {
+			connection_threads = null;
+		}
+		else {
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		}
+		StringCodec.setMaxLength(config.getInt("max-string", StringCodec.default_max_length, StringCodec.default_max_length));
+		int max_section_mb = config.getInt("max-section", RequestDecoder.default_max_section_size / (1024 * 1024), RequestDecoder.default_max_section_size / (1024 * 1024));
+		// At least 1 MB: with 0 every non-empty section would be refused
+		if (max_section_mb < 1 || max_section_mb > 2047) {
+			throw new IllegalArgumentException("The max section size must be between 1 and 2047 MB");
+		}
+		RequestDecoder.setMaxSectionSize(max_section_mb * 1024 * 1024);
+		// The pool grows above its core size only when the queue is full, and
+		// when also max size is reached requests are refused
+		int workers = config.getInt("workers", 4, 4);
+		int max_workers = config.getInt("max-workers", Math.max(10, workers), Math.max(10, workers));
+		int queue_size = config.getInt("queue", 64, 64);
+		if (queue_size <= 0) {
+			throw new IllegalArgumentException("The queue must have a positive size");
+		}
+		// Throws IllegalArgumentException if the sizes are wrong
+		threadpool = new ThreadPoolExecutor(workers, max_workers, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue_size));
+		// Unbounded queue, but each connection has at most a request being
+		// handled, so it never holds more than the open connections
+		overflow = Executors.newFixedThreadPool(config.getInt("overflow-workers", 2, 2), r -> {
+			Thread t = new Thread(r, "turing-overflow");
+			t.setDaemon(true);
+			return t;
+		});
+		stats = new ServerStats();
+		stats_period = config.getInt("stats", 0, 10);
+		session_ttl = config.getInt("session-ttl", 300, 300);
+		if (session_ttl < 0) {
+			throw new IllegalArgumentException("Negative session ttl");
+		}
+		sessions = session_ttl == 0 ? null : new SessionTokens(session_ttl);
+		Logger.configure(config);
+
 		bindRMIRegistry(rmi_registry_port);
-		db_interface = new DBInterface(db_path_set);
-		threadpool = new ThreadPoolExecutor(4, 10, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-		ServerSocketChannel server_sock = ServerSocketChannel.open();
-		server_sock.socket().bind(new InetSocketAddress(server_sock_port));
-		server_sock.configureBlocking(false);
+		long cache_mb = config.getInt("meta-cache", 64, 64);
+		long section_cache_mb = config.getInt("section-cache", 64, 64);
+		db_interface = new DBInterface(openStorage(db_path_set, config), DBInterface.default_stripes, cache_mb * 1024 * 1024, section_cache_mb * 1024 * 1024);
+		// Flushes the log, if any
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				db_interface.close();
+			}
+			catch (IOException e) {
+				Logger.log(ERROR, "Error closing the storage: " + e.getMessage());
+			}
+		}));
+		stats.setMetadataCache(db_interface.getMetadataCache());
+		stats.setSectionCache(db_interface.getSectionCache());
+		server_sock = ServerSocketChannel.open();
+		// Connections waiting to be accepted: with the default of 50 a mass
+		// reconnection overflows it, and the refused clients retry only after
+		// seconds
+		server_sock.socket().bind(new InetSocketAddress(server_sock_port), config.getInt("backlog", 1024, 1024));
 
-		freesc = new LinkedBlockingQueue<ConcurrentSocketChannel>();
 		socket_to_user = new ConcurrentHashMap<ConcurrentSocketChannel, String>();
 		user_to_socket = new ConcurrentHashMap<String, ConcurrentSocketChannel>();
 
-		selector = Selector.open();
-		server_sock.register(selector, SelectionKey.OP_ACCEPT);
-
 		log("TURING server created");
 	}
 
+	/**
+	 * Opens the storage engine chosen with {@code --storage}: {@code files}
+	 * (the default) keeps a file for each stored file, {@code log} keeps them
+	 * in an append-only log made of segments of {@code --segment-size} MB,
+	 * {@code memory} keeps them in memory until the server stops. Files and
+	 * log force writes to disk as chosen with {@code --fsync}: {@code group}
+	 * (the default) batches the forces of concurrent writes, {@code each}
+	 * forces every write on its own, {@code off} never forces.
+	 *
+	 * @param db_path path to the db folder
+	 * @param config options of the server
+	 * @return the engine
+	 * @throws IOException if the engine can't be opened
+	 * @throws IllegalArgumentException if the engine is unknown
+	 */
+	private static StorageEngine openStorage(String db_path, ServerConfig config) throws IOException {
+		String storage = config.getString("storage", "files");
+		GroupCommit.Mode sync = GroupCommit.Mode.parse(config.getString("fsync", "group"));
+		if ("files".equals(storage)) {
+			return new FileEngine(Paths.get(db_path), sync);
+		}
+		else if ("memory".equals(storage)) {
+			return new MemoryEngine();
+		}
+		else if ("log".equals(storage)) {
+			long segment_mb = config.getInt("segment-size", 64, 64);
+			if (segment_mb <= 0) {
+				throw new IllegalArgumentException("Segments must have a positive size");
+			}
+			return new LogEngine(Paths.get(db_path), segment_mb * 1024 * 1024, sync);
+		}
+		else {
+			throw new IllegalArgumentException("Unknown storage " + storage);
+		}
+	}
+
+	/**
+	 * Creates a new instance of TURINGServer with the default options.
+	 *
+	 * @param rmi_registry_port port on which listen for the RMI registry
+	 * @param server_sock_port port on which the server listen for new
+	 *                         connections
+	 * @param db_path_set path to the db folder
+	 */
+	public TURINGServer(int rmi_registry_port, int server_sock_port, String db_path_set) throws RemoteException, IOException {
+		this(rmi_registry_port, server_sock_port, db_path_set, new ServerConfig());
+	}
+
+	/**
+	 * Creates a new instance of TURINGServer specifying only non-defaulted
+	 * parameters.
+	 *
+	 * @param rmi_registry_port port on which listen for the RMI registry
+	 * @param server_sock_port port on which the server listen for new
+	 *                         connections
+	 * @param config options of the server
+	 */
+	public TURINGServer(int rmi_registry_port, int server_sock_port, ServerConfig config) throws RemoteException, IOException {
+		this(rmi_registry_port, server_sock_port, default_db_path, config);
+	}
+
 	/**
 	 * Creates a new instance of TURINGServer specifying only non-defaulted
 	 * parameters.
@@ -93,66 +235,213 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 	 */
 	public void bindRMIRegistry(int registry_port) throws RemoteException {
 		RegistrationInterface stub = (RegistrationInterface)UnicastRemoteObject.exportObject(this, registry_port);
+		StatsInterface stats_stub = (StatsInterface)UnicastRemoteObject.exportObject(stats, registry_port);
 		LocateRegistry.createRegistry(registry_port);
 		Registry r = LocateRegistry.getRegistry(registry_port);
 		r.rebind(Constants.rmi_registry_name, stub);
+		r.rebind(Constants.rmi_stats_name, stats_stub);
 	}
 
 	/**
-	 * Utility function to handle logging. May become something finer than a
-	 * println in the future.
+	 * Utility function to handle logging, for INFO messages.
 	 *
 	 * @param s the string to log
 	 */
 	private void log(String s) {
-		System.out.println(s);
+		Logger.log(INFO, s);
+	}
+
+	/**
+	 * Utility function to handle logging.
+	 *
+	 * @param level level of the message
+	 * @param s the message to log, built only if level is enabled
+	 */
+	private void log(Logger.Level level, Supplier<String> s) {
+		Logger.log(level, s);
+	}
+
+	/**
+	 * Get a factory of virtual threads. They are available since Java 21, and
+	 * are looked up by reflection so that the server still compiles and runs
+	 * in the other modes on older versions.
+	 *
+	 * @return a factory of virtual threads
+	 * @throws IllegalArgumentException if this JVM doesn't support them
+	 */
+	private static ThreadFactory virtualThreadFactory() throws IllegalArgumentException {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory)Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Virtual threads require Java 21 or newer");
+		}
 	}
 
 	/**
-	 * Utility function to spawn an OperationHandler. Here just because of the
+	 * Utility function to create an OperationHandler. Here just because of the
 	 * number of parameters.
 	 *
+	 * @param reactor the reactor owning chnl, or null if there's none
 	 * @param chnl channel with an operation to be handled
+	 * @param req the request to handle, or null if chnl has been closed
+	 * @return the new OperationHandler
 	 */
-	private void spawnOperationHandler(ConcurrentSocketChannel chnl) {
-		threadpool.execute(new OperationHandler(chnl, db_interface, freesc, socket_to_user, user_to_socket, selector));
+	OperationHandler newOperationHandler(Reactor reactor, ConcurrentSocketChannel chnl, Request req) {
+		return new OperationHandler(chnl, req, db_interface, reactor, socket_to_user, user_to_socket, stats, sessions);
 	}
 
 	/**
-	 * Run this instance of TURING server
+	 * Utility function to spawn an OperationHandler in the threadpool.
+	 *
+	 * @param reactor the reactor owning chnl
+	 * @param chnl channel with an operation to be handled
+	 * @param req the request to handle, or null if chnl has been closed
+	 */
+	void spawnOperationHandler(Reactor reactor, ConcurrentSocketChannel chnl, Request req) {
+		OperationHandler handler = newOperationHandler(reactor, chnl, req);
+		long enqueued = System.nanoTime();
+		try {
+			threadpool.execute(() -> {
+				stats.recordQueueWait(System.nanoTime() - enqueued);
+				handler.run();
+			});
+		}
+		catch (RejectedExecutionException e) {
+			if (!handler.isRefusable()) {
+				// Never on the reactor's thread: a section write may wait
+				// for a disk force, stalling every connection of the reactor
+				overflow.execute(handler);
+				return;
+			}
+			// Overloaded: better to tell the client to retry than to keep
+			// it waiting in an ever growing queue
+			stats.countRefused();
+			handler.refuse();
+		}
+	}
+
+	/**
+	 * Get the statistics of this server, also published through RMI.
+	 *
+	 * @return the statistics of this server
+	 */
+	public ServerStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Logs the state of the threadpool every stats_period seconds, in a
+	 * daemon thread.
+	 */
+	private void startStatsLog() {
+		Timer timer = new Timer("stats", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				log("Stats: workers " + Integer.toString(threadpool.getPoolSize())
+					+ " (" + Integer.toString(threadpool.getActiveCount()) + " active), queued "
+					+ Integer.toString(threadpool.getQueue().size()) + ", refused "
+					+ Long.toString(stats.getRefused()) + ", queue wait " + stats.getQueueWait().toString()
+					+ (sessions == null ? "" : ", sessions " + Integer.toString(sessions.size()) + " (resumed "
+						+ Long.toString(sessions.getResumed()) + ", refused " + Long.toString(sessions.getRefused()) + ")"));
+			}
+		}, stats_period * 1000L, stats_period * 1000L);
+	}
+
+	/**
+	 * Drops the expired session tokens every session_ttl seconds, in a
+	 * daemon thread.
+	 */
+	private void startSessionPurge() {
+		Timer timer = new Timer("sessions", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				int dropped = sessions.purge();
+				log(DEBUG, () -> "Dropped " + Integer.toString(dropped) + " expired session tokens");
+			}
+		}, session_ttl * 1000L, session_ttl * 1000L);
+	}
+
+	/**
+	 * Run this instance of TURING server.
+	 * <p>
+	 * With no reactors a single selector, run by this thread, accepts
+	 * connections and reads their requests. Otherwise this thread only
+	 * accepts connections and assigns them round-robin to the reactors, each
+	 * running in its own thread.
+	 * <p>
+	 * In virtual mode this thread accepts connections and starts a virtual
+	 * thread for each of them, serving it with blocking operations.
 	 */
 	@Override
 	public void run() {
+		try {
+			Logger.start();
+		}
+		catch (IOException e) {
+			log(ERROR, () -> "Can't open the log file: " + e.getMessage());
+			return;
+		}
 		log("Server started");
-		while (true) {
-			try {
-				selector.select();
-				// Read all sc from freesc and add them back to selector
-				Collection<ConcurrentSocketChannel> tmp = new ArrayList<ConcurrentSocketChannel>(freesc.size());
-				freesc.drainTo(tmp);
-				for (ConcurrentSocketChannel sc: tmp) {
-					sc.configureBlocking(false);
-					sc.register(selector, SelectionKey.OP_READ);
+		if (stats_period > 0) {
+			startStatsLog();
+		}
+		if (sessions != null) {
+			startSessionPurge();
+		}
+		if (connection_threads != null) {
+			runThreadPerConnection();
+			return;
+		}
+		try {
+			if (nreactors == 0) {
+				server_sock.configureBlocking(false);
+				new Reactor(this, server_sock).run();
+				return;
+			}
+			Reactor[] reactors = new Reactor[nreactors];
+			for (int i = 0; i < nreactors; ++i) {
+				reactors[i] = new Reactor(this, null);
+				new Thread(reactors[i], "reactor-" + Integer.toString(i)).start();
+			}
+			log("Started " + Integer.toString(nreactors) + " reactors");
+			int next = 0;
+			while (true) {
+				try {
+					ConcurrentSocketChannel chnl = new ConcurrentSocketChannel(server_sock.accept());
+					log(DEBUG, () -> "Accepted connection by " + chnl.toString());
+					reactors[next].addConnection(chnl);
+					next = (next + 1) % nreactors;
 				}
-				// Handle requests
-				for (SelectionKey key: selector.selectedKeys()) {
-					if (key.isReadable()) {
-						// Remove this SocketChannel from the selector
-						key.cancel();
-						spawnOperationHandler((ConcurrentSocketChannel)key.attachment());
-					}
-					else if (key.isAcceptable()) {
-						ConcurrentSocketChannel chnl = new ConcurrentSocketChannel(
-							((ServerSocketChannel)key.channel()).accept()
-						);
-						log("Accepted connection by " + chnl.toString());
-						spawnOperationHandler(chnl);
-					}
+				catch (IOException e) {
+					log(WARN, () -> "Exception caught while wating for accept: " + e.getMessage());
 				}
-				selector.selectedKeys().clear();
+			}
+		}
+		catch (IOException e) {
+			log(ERROR, () -> "Error starting reactors: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Accepts connections forever, serving each one in a new thread.
+	 */
+	private void runThreadPerConnection() {
+		while (true) {
+			try {
+				ConcurrentSocketChannel chnl = new ConcurrentSocketChannel(server_sock.accept());
+				log(DEBUG, () -> "Accepted connection by " + chnl.toString());
+				// Frames are written by a thread of the connection, so that the
+				// sender never waits for the socket
+				chnl.startWriter(connection_threads);
+				connection_threads.newThread(new ConnectionThread(chnl, this)).start();
 			}
 			catch (IOException e) {
-				log("Exception caught while wating for accept: " + e.getMessage());
+				log(WARN, () -> "Exception caught while wating for accept: " + e.getMessage());
 			}
 		}
 	}
@@ -161,8 +450,12 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 	 * @inheritDoc
 	 */
 	@Override
-	public void register(String usr, String pwd) throws RemoteException, InternalServerException, UsernameAlreadyInUseException {
+	public void register(String usr, String pwd) throws RemoteException, InternalServerException, UsernameAlreadyInUseException, InvalidUsernameException {
 		log("Request: registration of username \"" + usr + "\"");
+		if (!DBInterface.isValidName(usr)) {
+			log("Invalid username");
+			throw new InvalidUsernameException(usr);
+		}
 		try {
 			if (db_interface.createUser(usr, pwd)) {
 				log("User created succesfully");
@@ -173,7 +466,7 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 			}
 		}
 		catch (java.io.IOException e) {
-			log("IOException: " + e.getMessage());
+			log(WARN, () -> "IOException: " + e.getMessage());
 			throw new InternalServerException("Try again in a few seconds.");
 		}
 	}
@@ -210,16 +503,14 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 
 			Section sec = new Section(usr1, doc1, sez1);
 			try (
-				FileChannel prova_sez = FileChannel.open(db_interface.editSection(usr1, sec), StandardOpenOption.READ);
+				Blob prova_sez = db_interface.editSection(usr1, sec);
 			) {
 				log(usr1 + " is editing " + sec.getDebugRepr());
 				log("================ content ================");
-				byte[] buffer = new byte[1024];
-				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-			    for (int length = 0; (length = prova_sez.read(byteBuffer)) != -1;) {
-			        System.out.write(buffer, 0, length);
-			        byteBuffer.clear();
-				}
+				ByteBuffer byteBuffer = prova_sez.read();
+				byte[] buffer = new byte[byteBuffer.remaining()];
+				byteBuffer.get(buffer);
+				System.out.write(buffer, 0, buffer.length);
 			}
 			log("================ end content ================");
 
@@ -228,7 +519,7 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 
 			// No permission
 			try {
-				Path prova_sez = db_interface.editSection(usr2, sec);
+				db_interface.editSection(usr2, sec).close();
 				log("ERROR: " + usr2 + " got editing of " + sec.getDebugRepr() + " but shouldn't have permission");
 			}
 			catch (SectionBusyException e) {
@@ -243,7 +534,7 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 
 			// Busy
 			try {
-				Path prova_sez = db_interface.editSection(usr2, sec);
+				db_interface.editSection(usr2, sec).close();
 				log("ERROR: " + usr2 + " got editing of " + sec.getDebugRepr() + " but should busy");
 			}
 			catch (SectionBusyException e) {
@@ -262,7 +553,7 @@ public class TURINGServer implements RegistrationInterface, Runnable {
 
 			// Success
 			try {
-				Path prova_sez = db_interface.editSection(usr2, sec);
+				db_interface.editSection(usr2, sec).close();
 				log(usr2 + " got editing of " + sec.getDebugRepr());
 			}
 			catch (SectionBusyException e) {
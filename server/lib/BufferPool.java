@@ -0,0 +1,124 @@
+package server.lib;
+
+import java.util.concurrent.*;
+import java.nio.*;
+
+/**
+ * Pool of reusable direct ByteBuffers.
+ * <p>
+ * Buffers come in size classes, powers of two from {@link min_size} to
+ * {@link max_size}. Each thread keeps a few free buffers of each class for
+ * itself, and gives the others to a pool shared by all threads, so that
+ * buffers acquired by a thread and released by another are reused too.
+ * Acquiring a buffer bigger than max_size just allocates a heap buffer, that
+ * isn't pooled.
+ * <p>
+ * Direct buffers avoid the copy to a temporary direct buffer that the JDK
+ * does when a heap buffer is used for channel IO. A buffer must not be used
+ * after it has been released.
+ */
+public final class BufferPool {
+	private static final int min_shift = 6;
+	private static final int max_shift = 16;
+	public static final int min_size = 1 << min_shift;
+	public static final int max_size = 1 << max_shift;
+	private static final int nclasses = max_shift - min_shift + 1;
+	// Free buffers of each class kept by each thread
+	private static final int local_capacity = 8;
+	// Free buffers of each class kept in the shared pool
+	private static final int shared_capacity = 256;
+
+	private static final ThreadLocal<LocalCache> local = ThreadLocal.withInitial(LocalCache::new);
+	private static final BlockingQueue<ByteBuffer>[] shared = newShared();
+
+	/**
+	 * Free buffers of a thread, as a stack for each size class.
+	 */
+	private static final class LocalCache {
+		private final ByteBuffer[][] free = new ByteBuffer[nclasses][local_capacity];
+		private final int[] count = new int[nclasses];
+	}
+
+	private BufferPool() {}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static BlockingQueue<ByteBuffer>[] newShared() {
+		BlockingQueue<ByteBuffer>[] queues = new BlockingQueue[nclasses];
+		for (int i = 0; i < nclasses; ++i) {
+			queues[i] = new ArrayBlockingQueue<ByteBuffer>(shared_capacity);
+		}
+		return queues;
+	}
+
+	/**
+	 * Get the size class of a buffer of the given size.
+	 *
+	 * @return the index of the smallest class that can hold size bytes, or -1
+	 *         if size is bigger than max_size
+	 */
+	private static int classOf(int size) {
+		if (size > max_size) {
+			return -1;
+		}
+		if (size <= min_size) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - min_shift;
+	}
+
+	/**
+	 * Get a buffer that can hold at least size bytes.
+	 *
+	 * @param size number of bytes needed
+	 * @return a buffer with position 0 and limit size. Its capacity may be
+	 *         bigger
+	 */
+	public static ByteBuffer acquire(int size) {
+		int cls = classOf(size);
+		if (cls == -1) {
+			return ByteBuffer.allocate(size);
+		}
+		LocalCache cache = local.get();
+		ByteBuffer buff;
+		if (cache.count[cls] > 0) {
+			--cache.count[cls];
+			buff = cache.free[cls][cache.count[cls]];
+			cache.free[cls][cache.count[cls]] = null;
+		}
+		else {
+			buff = shared[cls].poll();
+			if (buff == null) {
+				buff = ByteBuffer.allocateDirect(1 << (cls + min_shift));
+			}
+		}
+		buff.clear();
+		buff.limit(size);
+		return buff;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. Buffers that weren't acquired from the
+	 * pool are ignored.
+	 *
+	 * @param buff the buffer to release, or null
+	 */
+	public static void release(ByteBuffer buff) {
+		if (buff == null || !buff.isDirect() || buff.isReadOnly()) {
+			return;
+		}
+		int capacity = buff.capacity();
+		int cls = classOf(capacity);
+		if (cls == -1 || capacity != 1 << (cls + min_shift)) {
+			return;
+		}
+		LocalCache cache = local.get();
+		if (cache.count[cls] < local_capacity) {
+			cache.free[cls][cache.count[cls]] = buff;
+			++cache.count[cls];
+		}
+		else {
+			// If the shared pool is full too the buffer is left to the GC
+			shared[cls].offer(buff);
+		}
+	}
+}
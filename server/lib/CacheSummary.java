@@ -0,0 +1,66 @@
+package server.lib;
+
+import java.io.Serializable;
+
+/**
+ * Immutable summary of the state of a cache, as sent by
+ * {@link StatsInterface}.
+ */
+public final class CacheSummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final long bytes;
+
+	/**
+	 * Creates a new summary.
+	 *
+	 * @param hits_set number of lookups that found their entry
+	 * @param misses_set number of lookups that had to load their entry
+	 * @param evictions_set number of entries evicted to stay within bound
+	 * @param bytes_set estimated memory used by the entries now in cache
+	 */
+	public CacheSummary(long hits_set, long misses_set, long evictions_set, long bytes_set) {
+		hits = hits_set;
+		misses = misses_set;
+		evictions = evictions_set;
+		bytes = bytes_set;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the fraction of lookups that found their entry.
+	 *
+	 * @return the hit rate, between 0 and 1, or 0 if there were no lookups
+	 */
+	public double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double)hits / total;
+	}
+
+	/**
+	 * Get the summary on a single line.
+	 */
+	@Override
+	public String toString() {
+		return String.format("hits=%d misses=%d hit_rate=%.3f evictions=%d bytes=%d",
+			hits, misses, getHitRate(), evictions, bytes);
+	}
+}
@@ -0,0 +1,158 @@
+package server.lib;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.IOException;
+import java.nio.channels.*;
+
+/**
+ * I/O thread shared by many {@link TuringClient}s.
+ * <p>
+ * A loop owns a Selector on which the connections of its clients are
+ * registered in non-blocking mode: it writes the requests they send and reads
+ * and decodes the responses, completing the clients' futures. Thus any
+ * number of clients can be served by a single thread, and threads sending
+ * requests never block on the network.
+ * <p>
+ * Futures are completed and invitations notified by this thread: callbacks
+ * run there must not block, or every client of the loop waits for them.
+ */
+public class ClientLoop implements Runnable, AutoCloseable {
+	private static ClientLoop default_loop = null;
+
+	private final Selector selector;
+	private final Thread thread;
+	// Clients to register in the selector
+	private final Queue<TuringClient> toregister;
+	// Clients with requests to write
+	private final Queue<TuringClient> toflush;
+	// Whether a wakeup of the selector is already pending
+	private final AtomicBoolean wakeup_pending;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new loop and starts its thread, that is a daemon.
+	 *
+	 * @throws IOException if the selector can't be opened
+	 */
+	public ClientLoop() throws IOException {
+		selector = Selector.open();
+		toregister = new ConcurrentLinkedQueue<TuringClient>();
+		toflush = new ConcurrentLinkedQueue<TuringClient>();
+		wakeup_pending = new AtomicBoolean(false);
+		closed = false;
+		thread = new Thread(this, "turing-client-io");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the loop used by clients created without one, creating it the
+	 * first time.
+	 *
+	 * @return the default loop
+	 * @throws IOException if the loop can't be created
+	 */
+	public static synchronized ClientLoop getDefault() throws IOException {
+		if (default_loop == null) {
+			default_loop = new ClientLoop();
+		}
+		return default_loop;
+	}
+
+	private void wakeup() {
+		if (wakeup_pending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Adds a client to this loop. Thread-safe.
+	 */
+	void add(TuringClient client) {
+		if (closed) {
+			client.close();
+			return;
+		}
+		toregister.add(client);
+		wakeup();
+	}
+
+	/**
+	 * Asks this loop to write the requests of a client. Thread-safe.
+	 */
+	void requestFlush(TuringClient client) {
+		toflush.add(client);
+		wakeup();
+	}
+
+	/**
+	 * Check whether the calling thread is the one of this loop.
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Stops this loop, closing every client still registered.
+	 */
+	@Override
+	public void close() {
+		synchronized (ClientLoop.class) {
+			if (default_loop == this) {
+				default_loop = null;
+			}
+		}
+		closed = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Body of the loop thread.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				selector.select();
+				wakeup_pending.set(false);
+				TuringClient client;
+				while ((client = toregister.poll()) != null) {
+					client.register(selector);
+				}
+				while ((client = toflush.poll()) != null) {
+					client.flush();
+				}
+				for (SelectionKey key : selector.selectedKeys()) {
+					client = (TuringClient)key.attachment();
+					if (key.isValid() && key.isWritable()) {
+						client.flush();
+					}
+					if (key.isValid() && key.isReadable()) {
+						client.read();
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		}
+		catch (IOException e) {
+			// The selector is broken, clients are closed below
+		}
+		finally {
+			for (SelectionKey key : selector.keys()) {
+				((TuringClient)key.attachment()).close();
+			}
+			TuringClient client;
+			while ((client = toregister.poll()) != null) {
+				client.close();
+			}
+			try {
+				selector.close();
+			}
+			catch (IOException e) {
+				// Nothing else to do
+			}
+		}
+	}
+}
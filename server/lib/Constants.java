@@ -4,10 +4,14 @@ import java.nio.charset.*;
 
 public final class Constants {
 	public static final String rmi_registry_name = "TURING-REGISTRATION";
+	public static final String rmi_stats_name = "TURING-STATS";
 
 	public static final Charset encoding = StandardCharsets.UTF_8;
 
 	public static final byte[] multicast_base_addr = { (byte)231, (byte)95, (byte)112 };
 	public static final int multicast_port = 32249;
 	public static final int chat_msg_length = 300;
+	// ID of the messages sent by the server without a request, in pipelined
+	// mode
+	public static final int push_id = -1;
 }
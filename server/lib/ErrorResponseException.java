@@ -0,0 +1,24 @@
+package server.lib;
+
+/**
+ * Thrown when the server answers a request with an error code.
+ */
+public class ErrorResponseException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final OpKind response;
+
+	public ErrorResponseException(OpKind op, OpKind response_set) {
+		super(op.toString() + " failed: " + response_set.toString());
+		response = response_set;
+	}
+
+	/**
+	 * Get the error code sent by the server.
+	 *
+	 * @return the response to the request, one of the ERR_ OpKinds
+	 */
+	public OpKind getResponse() {
+		return response;
+	}
+}
@@ -81,23 +81,70 @@ public final class IOUtils {
 					.collect(Collectors.toList());
 	}
 
+	/**
+	 * Get non-empty lines of a file already read in memory, as
+	 * {@link #getFileRows}.
+	 *
+	 * @param content content of the file, ready to be read
+	 * @return a collection of lines of the file.
+	 */
+	public static List<String> getRows(ByteBuffer content) {
+		return Arrays.stream(encoding.decode(content).toString().split(java.util.regex.Pattern.quote(linesep)))
+					.filter(s -> ! "".equals(s.trim()))
+					.collect(Collectors.toList());
+	}
+
+	/**
+	 * Encodes a row, to be appended to a file.
+	 *
+	 * @param text the line of text. There's no check against newlines in this
+	 *             string
+	 * @return a buffer with the row followed by a line separator, ready to be
+	 *         read
+	 */
+	public static ByteBuffer rowBuffer(String text) {
+		return ByteBuffer.wrap((text + linesep).getBytes(encoding));
+	}
+
 	// =============================== CHANNELS ===============================
 	/**
 	 * Utility function to read a fixed amount of unformatted bytes from a
-	 * channel to a ByteBuffer.
+	 * channel to a ByteBuffer. The buffer comes from {@link BufferPool} and
+	 * the caller must release it.
 	 */
 	private static ByteBuffer readData(ReadableByteChannel chnl, int size) throws IOException, ChannelClosedException {
-		ByteBuffer buff = ByteBuffer.allocate(size);
-		buff.clear();
-		while (buff.remaining() > 0) {
-			if (chnl.read(buff) == -1) {
-				throw new ChannelClosedException();
+		ByteBuffer buff = BufferPool.acquire(size);
+		try {
+			while (buff.remaining() > 0) {
+				if (chnl.read(buff) == -1) {
+					throw new ChannelClosedException();
+				}
 			}
 		}
+		catch (IOException | ChannelClosedException e) {
+			BufferPool.release(buff);
+			throw e;
+		}
 		buff.flip();
 		return buff;
 	}
 
+	/**
+	 * Utility function to write a whole buffer taken from
+	 * {@link BufferPool} to a channel, and then release it.
+	 */
+	private static void writeData(ByteBuffer buff, WritableByteChannel chnl) throws IOException {
+		try {
+			buff.flip();
+			while (buff.remaining() > 0) {
+				chnl.write(buff);
+			}
+		}
+		finally {
+			BufferPool.release(buff);
+		}
+	}
+
 
 	/**
 	 * Get a byte from a channel.
@@ -108,7 +155,10 @@ public final class IOUtils {
 	 *                                closed
 	 */
 	public static byte readByte(ReadableByteChannel chnl) throws IOException, ChannelClosedException {
-		return readData(chnl, 1).get();
+		ByteBuffer buff = readData(chnl, 1);
+		byte b = buff.get();
+		BufferPool.release(buff);
+		return b;
 	}
 
 	/**
@@ -118,13 +168,7 @@ public final class IOUtils {
 	 * @param chnl channel to write to
 	 */
 	public static void writeByte(byte b, WritableByteChannel chnl) throws IOException {
-		ByteBuffer buff = ByteBuffer.allocate(1);
-		buff.clear();
-		buff.put(b);
-		buff.flip();
-		while (buff.remaining() > 0) {
-			chnl.write(buff);
-		}
+		writeData(BufferPool.acquire(1).put(b), chnl);
 	}
 
 
@@ -155,18 +199,22 @@ public final class IOUtils {
 	 *                                closed
 	 */
 	public static Optional<OpKind> tryReadOpKind(ReadableByteChannel chnl) throws IOException, ChannelClosedException {
-		ByteBuffer buff = ByteBuffer.allocate(1);
-		buff.clear();
-		long read = chnl.read(buff);
-		if (read == -1) {
-			throw new ChannelClosedException();
-		}
-		else if (read == 0) {
-			return Optional.empty();
+		ByteBuffer buff = BufferPool.acquire(1);
+		try {
+			long read = chnl.read(buff);
+			if (read == -1) {
+				throw new ChannelClosedException();
+			}
+			else if (read == 0) {
+				return Optional.empty();
+			}
+			else {
+				buff.flip();
+				return Optional.of(OpKind.getOp(buff.get()));
+			}
 		}
-		else {
-			buff.flip();
-			return Optional.of(OpKind.getOp(buff.get()));
+		finally {
+			BufferPool.release(buff);
 		}
 	}
 
@@ -190,7 +238,10 @@ public final class IOUtils {
 	 *                                closed
 	 */
 	public static int readInt(ReadableByteChannel chnl) throws IOException, ChannelClosedException {
-		return readData(chnl, Integer.BYTES).getInt();
+		ByteBuffer buff = readData(chnl, Integer.BYTES);
+		int n = buff.getInt();
+		BufferPool.release(buff);
+		return n;
 	}
 
 	/**
@@ -200,13 +251,7 @@ public final class IOUtils {
 	 * @param chnl channel to write to
 	 */
 	public static void writeInt(int n, WritableByteChannel chnl) throws IOException {
-		ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES);
-		buff.clear();
-		buff.putInt(n);
-		buff.flip();
-		while (buff.remaining() > 0) {
-			chnl.write(buff);
-		}
+		writeData(BufferPool.acquire(Integer.BYTES).putInt(n), chnl);
 	}
 
 
@@ -235,36 +280,27 @@ public final class IOUtils {
 
 	/**
 	 * Read a string from a chnl (provided that the format is the one specified
-	 * in the report)
+	 * in the report). The string is read with a single buffer and decoded
+	 * with {@link StringCodec}.
 	 *
 	 * @param chnl channel to read from
 	 * @return string read
 	 * @throws ChannelClosedException if the read-end of the channel has been
 	 *                                closed
+	 * @throws java.net.ProtocolException if the length is negative or above
+	 *                                    {@link StringCodec#getMaxLength},
+	 *                                    or the string isn't valid
 	 */
 	public static String readString(ReadableByteChannel chnl) throws IOException, ChannelClosedException {
-		ByteBuffer buff = ByteBuffer.allocate(20);
-		buff.clear();
-		// Read an int
-		buff.limit(Integer.BYTES);
-		while (buff.remaining() > 0) {
-			if (chnl.read(buff) == -1) {
-				throw new ChannelClosedException();
-			}
+		int len = readInt(chnl);
+		StringCodec.checkLength(len);
+		ByteBuffer buff = readData(chnl, len);
+		try {
+			return StringCodec.decode(buff, len);
 		}
-		buff.flip();
-		int len = buff.getInt();
-		byte[] str_bytes = new byte[len];
-		int read;
-		while (len > 0) {
-			buff.clear();
-			buff.limit(Math.min(len, buff.capacity()));
-			read = chnl.read(buff);
-			buff.flip();
-			buff.get(str_bytes, str_bytes.length - len, read);
-			len -= read;
+		finally {
+			BufferPool.release(buff);
 		}
-		return new String(str_bytes, encoding);
 	}
 
 	/**
@@ -274,14 +310,9 @@ public final class IOUtils {
 	 * @param chnl channel to write to
 	 */
 	public static void writeString(String str, WritableByteChannel chnl) throws IOException {
-		ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES + str.getBytes().length);
-		buff.clear();
-		buff.putInt(str.getBytes().length);
-		buff.put(str.getBytes());
-		buff.flip();
-		while (buff.hasRemaining()) {
-			chnl.write(buff);
-		}
+		ByteBuffer buff = BufferPool.acquire(StringCodec.maxEncodedSize(str));
+		StringCodec.encode(str, buff);
+		writeData(buff, chnl);
 	}
 
 
@@ -295,13 +326,30 @@ public final class IOUtils {
 	 * @param f path to the file.
 	 */
 	public static void channelToFile(ReadableByteChannel chnl, Path f) throws IOException {
-		ByteBuffer sizebuff = ByteBuffer.allocate(Long.BYTES);
-		sizebuff.clear();
-		while (sizebuff.remaining() > 0) {
-			chnl.read(sizebuff);
+		channelToFile(chnl, f, false);
+	}
+
+	/**
+	 * Copies a channel to a file as {@link #channelToFile(ReadableByteChannel, Path)},
+	 * optionally forcing the file to disk before returning.
+	 *
+	 * @param chnl channel to copy from
+	 * @param f path to the file.
+	 * @param force whether to force the content and the size of the file
+	 */
+	public static void channelToFile(ReadableByteChannel chnl, Path f, boolean force) throws IOException {
+		ByteBuffer sizebuff = BufferPool.acquire(Long.BYTES);
+		long filesize;
+		try {
+			while (sizebuff.remaining() > 0) {
+				chnl.read(sizebuff);
+			}
+			sizebuff.flip();
+			filesize = sizebuff.getLong();
+		}
+		finally {
+			BufferPool.release(sizebuff);
 		}
-		sizebuff.flip();
-		long filesize = sizebuff.getLong();
 		try (
 			FileChannel outFile = FileChannel.open(f, WRITE, CREATE, TRUNCATE_EXISTING);
 		) {
@@ -310,6 +358,73 @@ public final class IOUtils {
 				long count = outFile.transferFrom(chnl, pos, filesize - pos);
 				pos += count;
 			}
+			if (force) {
+				outFile.force(true);
+			}
+		}
+	}
+
+	/**
+	 * Reads from a channel a value in the format of {@link #channelToFile}:
+	 * a long with its length followed by its content.
+	 *
+	 * @param chnl channel to read from
+	 * @return a new heap buffer with the value, ready to be read
+	 * @throws IOException if the channel ends before the value, if the value
+	 *                     is too big for a buffer or if an IO error occurs
+	 */
+	public static ByteBuffer channelToBuffer(ReadableByteChannel chnl) throws IOException {
+		ByteBuffer sizebuff = ByteBuffer.allocate(Long.BYTES);
+		while (sizebuff.hasRemaining()) {
+			if (chnl.read(sizebuff) == -1) {
+				throw new EOFException("Channel closed before the size of the value");
+			}
+		}
+		sizebuff.flip();
+		long size = sizebuff.getLong();
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("Invalid value size " + Long.toString(size));
+		}
+		ByteBuffer content = ByteBuffer.allocate((int)size);
+		while (content.hasRemaining()) {
+			if (chnl.read(content) == -1) {
+				throw new EOFException("Channel closed before the end of the value");
+			}
+		}
+		content.flip();
+		return content;
+	}
+
+	/**
+	 * Writes the content of a buffer to a file. The file is overwritten with
+	 * the new content.
+	 *
+	 * @param buff buffer to copy from, ready to be read
+	 * @param f path to the file.
+	 */
+	public static void bufferToFile(ByteBuffer buff, Path f) throws IOException {
+		bufferToFile(buff, f, false);
+	}
+
+	/**
+	 * Writes the content of a buffer to a file as
+	 * {@link #bufferToFile(ByteBuffer, Path)}, optionally forcing the file to
+	 * disk before returning.
+	 *
+	 * @param buff buffer to copy from, ready to be read
+	 * @param f path to the file.
+	 * @param force whether to force the content and the size of the file
+	 */
+	public static void bufferToFile(ByteBuffer buff, Path f, boolean force) throws IOException {
+		try (
+			FileChannel outFile = FileChannel.open(f, WRITE, CREATE, TRUNCATE_EXISTING);
+		) {
+			while (buff.hasRemaining()) {
+				outFile.write(buff);
+			}
+			if (force) {
+				outFile.force(true);
+			}
 		}
 	}
 
@@ -326,13 +441,7 @@ public final class IOUtils {
 			FileChannel inFile = FileChannel.open(f, READ);
 		) {
 			long filesize = inFile.size();
-			ByteBuffer sizebuff = ByteBuffer.allocate(Long.BYTES);
-			sizebuff.clear();
-	    	sizebuff.putLong(filesize);
-			sizebuff.flip();
-			while (sizebuff.remaining() > 0) {
-				chnl.write(sizebuff);
-			}
+			writeData(BufferPool.acquire(Long.BYTES).putLong(filesize), chnl);
 			long pos = 0;
 			while (pos < filesize) {
 				long count = inFile.transferTo(pos, filesize - pos, chnl);
@@ -0,0 +1,9 @@
+package server.lib;
+
+public class InvalidUsernameException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public InvalidUsernameException(String usr) {
+		super("The username \"" + usr + "\" is not valid: it can't be empty, contain '/' or begin with '.'.");
+	}
+}
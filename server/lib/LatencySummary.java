@@ -0,0 +1,70 @@
+package server.lib;
+
+import java.io.Serializable;
+
+/**
+ * Immutable summary of a set of durations, as sent by
+ * {@link StatsInterface}. All durations are in nanoseconds.
+ */
+public final class LatencySummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long count;
+	private final long mean;
+	private final long p50;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	/**
+	 * Creates a new summary.
+	 *
+	 * @param count_set number of durations
+	 * @param mean_set mean duration
+	 * @param p50_set median
+	 * @param p99_set 99th percentile
+	 * @param p999_set 99.9th percentile
+	 * @param max_set longest duration
+	 */
+	public LatencySummary(long count_set, long mean_set, long p50_set, long p99_set, long p999_set, long max_set) {
+		count = count_set;
+		mean = mean_set;
+		p50 = p50_set;
+		p99 = p99_set;
+		p999 = p999_set;
+		max = max_set;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMean() {
+		return mean;
+	}
+
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Get the summary on a single line, with durations in microseconds.
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%dus p50=%dus p99=%dus p999=%dus max=%dus",
+			count, mean / 1000, p50 / 1000, p99 / 1000, p999 / 1000, max / 1000);
+	}
+}
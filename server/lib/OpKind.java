@@ -1,7 +1,5 @@
 package server.lib;
 
-import java.util.*;
-
 /**
  * Kind of operations that client and server may exchange. Contains both client
  * operation and server responses.
@@ -14,7 +12,12 @@ public enum OpKind {
 	RESP_OK, ERR_RETRY, ERR_UNKNOWN_OP,
 	ERR_UNLOGGED, ERR_INVALID_LOGIN, ERR_USERNAME_BUSY, ERR_ALREADY_LOGGED,
 	ERR_DOCUMENT_EXISTS, ERR_WRONG_DOCNAME, ERR_NO_DOCUMENT, ERR_PERMISSION,
-	ERR_NO_SECTION, ERR_SECTION_BUSY, ERR_USER_BUSY, ERR_USER_FREE;
+	ERR_NO_SECTION, ERR_SECTION_BUSY, ERR_USER_BUSY, ERR_USER_FREE,
+	// Operations added later, at the end to keep the numbers of the others
+	OP_PIPELINE, OP_INVITES, OP_RESUME;
+
+	// values() returns a new array each time
+	private static final OpKind[] all = values();
 
 	// ATTENTION: there's a max of 127 OpKind or the cast won't work
 	/**
@@ -25,7 +28,7 @@ public enum OpKind {
 	 * @return a single byte representing the OpKind o
 	 */
 	public static byte getNum(OpKind o) {
-		return (byte)Arrays.asList(values()).indexOf(o);
+		return (byte)o.ordinal();
 	}
 
 	/**
@@ -35,6 +38,6 @@ public enum OpKind {
 	 * @return OpKind corresponding to that byte
 	 */
 	public static OpKind getOp(byte i) {
-		return values()[i];
+		return all[i];
 	}
 }
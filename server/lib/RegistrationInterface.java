@@ -16,7 +16,8 @@ public interface RegistrationInterface extends Remote {
 	 *                                 elaboration
 	 * @throws UsernameAlreadyInUseException if the username "usr" is already
 	 *                                       in use
+	 * @throws InvalidUsernameException if "usr" can't be a username
 	 */
 	public void register(String usr, String pwd)
-		throws RemoteException, InternalServerException, UsernameAlreadyInUseException;
+		throws RemoteException, InternalServerException, UsernameAlreadyInUseException, InvalidUsernameException;
 }
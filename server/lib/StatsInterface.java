@@ -0,0 +1,79 @@
+package server.lib;
+
+import java.rmi.*;
+import java.util.*;
+
+/**
+ * Interface for RMI queries of the statistics of a TURING server. It's
+ * published in the same registry as {@link RegistrationInterface}, with the
+ * name {@link Constants#rmi_stats_name}.
+ */
+public interface StatsInterface extends Remote {
+	/**
+	 * Get the time taken to handle each kind of operation, from when the
+	 * request has been received completely to when its response has been
+	 * queued.
+	 *
+	 * @return a summary for each OpKind handled at least once
+	 * @throws RemoteException specified by RMI
+	 */
+	public Map<OpKind, LatencySummary> getLatencies() throws RemoteException;
+
+	/**
+	 * Get the time spent by requests waiting for a worker.
+	 *
+	 * @return a summary of the queue wait times
+	 * @throws RemoteException specified by RMI
+	 */
+	public LatencySummary getQueueWait() throws RemoteException;
+
+	/**
+	 * Get the number of requests refused with ERR_RETRY because the server
+	 * was overloaded.
+	 *
+	 * @return how many requests were refused
+	 * @throws RemoteException specified by RMI
+	 */
+	public long getRefused() throws RemoteException;
+
+	/**
+	 * Get the number of bytes of sections sent to clients.
+	 *
+	 * @return bytes read from files and sent
+	 * @throws RemoteException specified by RMI
+	 */
+	public long getFileBytesSent() throws RemoteException;
+
+	/**
+	 * Get the number of bytes of sections received from clients.
+	 *
+	 * @return bytes received and written to files
+	 * @throws RemoteException specified by RMI
+	 */
+	public long getFileBytesReceived() throws RemoteException;
+
+	/**
+	 * Get the number of log messages dropped because the logger couldn't
+	 * keep up.
+	 *
+	 * @return how many log messages were dropped
+	 * @throws RemoteException specified by RMI
+	 */
+	public long getLogDropped() throws RemoteException;
+
+	/**
+	 * Get the state of the cache of users and documents metadata.
+	 *
+	 * @return hits, misses, evictions and memory used by the cache
+	 * @throws RemoteException specified by RMI
+	 */
+	public CacheSummary getMetadataCache() throws RemoteException;
+
+	/**
+	 * Get the state of the cache of sections contents.
+	 *
+	 * @return hits, misses, evictions and bytes of the cached sections
+	 * @throws RemoteException specified by RMI
+	 */
+	public CacheSummary getSectionCache() throws RemoteException;
+}
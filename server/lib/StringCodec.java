@@ -0,0 +1,181 @@
+package server.lib;
+
+import java.net.ProtocolException;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Encoding and decoding of the strings exchanged by client and server.
+ * <p>
+ * On the wire a string is an int with its length in bytes followed by its
+ * bytes in {@link Constants#encoding}. Each thread has its own cached
+ * CharsetDecoder and CharsetEncoder, and a reusable buffer for the decoded
+ * characters, so that decoding a string only allocates the String itself.
+ * <p>
+ * Lengths are checked against a maximum, configurable with
+ * {@link setMaxLength}, before anything is allocated for the string.
+ */
+public final class StringCodec {
+	/**
+	 * Default maximum length, in bytes, of a string.
+	 */
+	public static final int default_max_length = 64 * 1024;
+
+	private static volatile int max_length = default_max_length;
+	private static final float max_chars_per_byte = Constants.encoding.newDecoder().maxCharsPerByte();
+	private static final float max_bytes_per_char = Constants.encoding.newEncoder().maxBytesPerChar();
+
+	private static final ThreadLocal<Codec> codecs = ThreadLocal.withInitial(Codec::new);
+
+	/**
+	 * Per-thread state: coders aren't thread-safe.
+	 */
+	private static final class Codec {
+		private final CharsetDecoder decoder = Constants.encoding.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+		private final CharsetEncoder encoder = Constants.encoding.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private CharBuffer chars = CharBuffer.allocate(64);
+	}
+
+	private StringCodec() {}
+
+	/**
+	 * Sets the maximum length of the strings accepted from now on.
+	 *
+	 * @param len maximum length in bytes
+	 * @throws IllegalArgumentException if len is negative
+	 */
+	public static void setMaxLength(int len) throws IllegalArgumentException {
+		if (len < 0) {
+			throw new IllegalArgumentException("Negative max string length");
+		}
+		max_length = len;
+	}
+
+	/**
+	 * Get the maximum length of the strings accepted.
+	 *
+	 * @return the maximum length in bytes
+	 */
+	public static int getMaxLength() {
+		return max_length;
+	}
+
+	/**
+	 * Checks the length of a string received.
+	 *
+	 * @param len length in bytes, as received
+	 * @throws ProtocolException if len is negative or above the maximum
+	 */
+	public static void checkLength(int len) throws ProtocolException {
+		if (len < 0 || len > max_length) {
+			throw new ProtocolException("Invalid string length " + Integer.toString(len));
+		}
+	}
+
+	/**
+	 * Decodes a string from a buffer.
+	 *
+	 * @param src buffer in read mode, positioned at the first byte of the
+	 *            string (after its length). Its position is moved after the
+	 *            string
+	 * @param len length of the string in bytes, already checked
+	 * @return the decoded string
+	 * @throws ProtocolException if the bytes aren't a valid string
+	 */
+	public static String decode(ByteBuffer src, int len) throws ProtocolException {
+		Codec codec = codecs.get();
+		int max_chars = (int)Math.ceil(len * (double)max_chars_per_byte);
+		if (codec.chars.capacity() < max_chars) {
+			codec.chars = CharBuffer.allocate(max_chars);
+		}
+		CharBuffer chars = codec.chars;
+		chars.clear();
+		// Fast path for ASCII strings, the most common ones
+		int start = src.position();
+		int i = 0;
+		while (i < len) {
+			byte b = src.get(start + i);
+			if (b < 0) {
+				break;
+			}
+			chars.put((char)b);
+			++i;
+		}
+		if (i == len) {
+			src.position(start + len);
+			chars.flip();
+			return chars.toString();
+		}
+		chars.clear();
+		int limit = src.limit();
+		src.limit(start + len);
+		try {
+			codec.decoder.reset();
+			CoderResult res = codec.decoder.decode(src, chars, true);
+			if (res.isUnderflow()) {
+				res = codec.decoder.flush(chars);
+			}
+			if (!res.isUnderflow()) {
+				throw new ProtocolException("Malformed string");
+			}
+		}
+		finally {
+			src.limit(limit);
+		}
+		chars.flip();
+		return chars.toString();
+	}
+
+	/**
+	 * Get the maximum number of bytes that {@link encode} may write for a
+	 * string.
+	 *
+	 * @param str the string to encode
+	 * @return the size of a buffer that surely can hold the encoded string,
+	 *         length included
+	 */
+	public static int maxEncodedSize(String str) {
+		int len = str.length();
+		for (int i = 0; i < len; ++i) {
+			if (str.charAt(i) >= 0x80) {
+				return Integer.BYTES + (int)Math.ceil(len * (double)max_bytes_per_char);
+			}
+		}
+		return Integer.BYTES + len;
+	}
+
+	/**
+	 * Encodes a string, preceded by its length, encoding it just once.
+	 *
+	 * @param str the string to encode
+	 * @param dst buffer in write mode, with at least
+	 *            {@link maxEncodedSize} bytes remaining
+	 */
+	public static void encode(String str, ByteBuffer dst) {
+		int start = dst.position();
+		int len = str.length();
+		// Fast path for ASCII strings, as in decode
+		if (dst.remaining() >= Integer.BYTES + len) {
+			int i = 0;
+			while (i < len && str.charAt(i) < 0x80) {
+				dst.put(start + Integer.BYTES + i, (byte)str.charAt(i));
+				++i;
+			}
+			if (i == len) {
+				dst.putInt(start, len);
+				dst.position(start + Integer.BYTES + len);
+				return;
+			}
+		}
+		CharsetEncoder encoder = codecs.get().encoder;
+		dst.position(start + Integer.BYTES);
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(str), dst, true);
+		encoder.flush(dst);
+		dst.putInt(start, dst.position() - start - Integer.BYTES);
+	}
+}
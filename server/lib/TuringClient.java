@@ -0,0 +1,690 @@
+package server.lib;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.io.IOException;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Asynchronous client of a TURING server.
+ * <p>
+ * Every operation of the protocol is a method that sends the request and
+ * returns immediately a CompletableFuture, completed with the content of the
+ * response when it arrives, or exceptionally with an
+ * {@link ErrorResponseException} if the server answers with an error code,
+ * or an IOException if the connection breaks. Methods can be called by any
+ * thread and any number of requests can be in flight: the connection is in
+ * pipelined mode, so requests are tagged by an ID and the server answers
+ * them in order.
+ * <p>
+ * The connection is handled by a {@link ClientLoop}, that may be shared by
+ * many clients: it writes the requests, decodes the responses and delivers
+ * the invitations pushed by the server to the listener set with
+ * {@link setInviteListener}. Futures are completed by the loop's thread.
+ * <p>
+ * Contents of sections are passed as ByteBuffers, ready to be read.
+ */
+public class TuringClient implements AutoCloseable {
+	// Request ID and OpKind
+	private static final int header_size = Integer.BYTES + 1;
+	private static final int initial_buffer = 8 * 1024;
+	private static final int max_gather = 16;
+	// Thrown by the decoding functions when the frame isn't complete yet. It's
+	// just a jump, so it's preallocated and without stack trace
+	private static final Incomplete incomplete = new Incomplete();
+
+	private static final class Incomplete extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private Incomplete() {
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * A section as shown by OP_SHOWSEC and OP_SHOWDOC.
+	 */
+	public static final class SectionContent {
+		private final boolean being_edited;
+		private final ByteBuffer content;
+
+		private SectionContent(boolean being_edited_set, ByteBuffer content_set) {
+			being_edited = being_edited_set;
+			content = content_set;
+		}
+
+		public boolean isBeingEdited() {
+			return being_edited;
+		}
+
+		public ByteBuffer getContent() {
+			return content;
+		}
+	}
+
+	/**
+	 * A section whose edit has been granted by OP_EDIT.
+	 */
+	public static final class EditGrant {
+		private final ByteBuffer content;
+		private final byte chat_byte;
+
+		private EditGrant(ByteBuffer content_set, byte chat_byte_set) {
+			content = content_set;
+			chat_byte = chat_byte_set;
+		}
+
+		public ByteBuffer getContent() {
+			return content;
+		}
+
+		/**
+		 * Get the last byte of the multicast address of the document's chat.
+		 */
+		public byte getChatByte() {
+			return chat_byte;
+		}
+	}
+
+	/**
+	 * Decodes what follows RESP_OK in the response to a request.
+	 */
+	private interface ResponseParser<T> {
+		T parse() throws IOException;
+	}
+
+	/**
+	 * A request waiting for its response.
+	 */
+	private static final class Pending<T> {
+		private final int id;
+		private final OpKind op;
+		private final CompletableFuture<T> future;
+		private final ResponseParser<T> parser;
+
+		private Pending(int id_set, OpKind op_set, CompletableFuture<T> future_set, ResponseParser<T> parser_set) {
+			id = id_set;
+			op = op_set;
+			future = future_set;
+			parser = parser_set;
+		}
+
+		private void complete() throws IOException {
+			future.complete(parser.parse());
+		}
+
+		private void fail(Throwable e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	private final SocketChannel chnl;
+	private final ClientLoop loop;
+	// Taken to assign IDs, so that requests are queued in the same order in
+	// pending and in outbound
+	private final Lock send_lock;
+	private int next_id;
+	private volatile boolean closed;
+	private volatile IOException close_cause;
+	private final Queue<Pending<?>> pending;
+	private final Queue<ByteBuffer> outbound;
+	private final AtomicBoolean flush_requested;
+	private volatile Consumer<String> invite_listener;
+	private volatile Consumer<List<String>> invites_listener;
+	// Only used by the loop's thread
+	private SelectionKey key;
+	private final ArrayDeque<ByteBuffer> writing;
+	private final ByteBuffer[] gather;
+	private ByteBuffer in;
+	private int frame_start;
+	// Bytes of the current frame needed before trying to decode it again
+	private int needed;
+	// Request whose response is being decoded
+	private volatile Pending<?> current;
+
+	/**
+	 * Connects to a server, using the default ClientLoop.
+	 *
+	 * @param host address of the server
+	 * @param port port of the server
+	 * @throws IOException if the connection fails
+	 */
+	public TuringClient(String host, int port) throws IOException {
+		this(host, port, ClientLoop.getDefault());
+	}
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param host address of the server
+	 * @param port port of the server
+	 * @param loop_set loop that will handle the connection
+	 * @throws IOException if the connection fails
+	 */
+	public TuringClient(String host, int port, ClientLoop loop_set) throws IOException {
+		loop = loop_set;
+		chnl = SocketChannel.open(new InetSocketAddress(host, port));
+		try {
+			// Requests are written whole, no need to wait for acks
+			chnl.socket().setTcpNoDelay(true);
+			// The response to OP_PIPELINE is still untagged
+			IOUtils.writeOpKind(OpKind.OP_PIPELINE, chnl);
+			OpKind resp = IOUtils.readOpKind(chnl);
+			if (resp != OpKind.RESP_OK) {
+				throw new IOException("Pipelined mode refused: " + resp.toString());
+			}
+			chnl.configureBlocking(false);
+		}
+		catch (ChannelClosedException e) {
+			chnl.close();
+			throw new IOException("Connection closed by the server");
+		}
+		catch (IOException e) {
+			chnl.close();
+			throw e;
+		}
+		send_lock = new ReentrantLock();
+		next_id = 0;
+		closed = false;
+		close_cause = null;
+		pending = new ConcurrentLinkedQueue<Pending<?>>();
+		outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		flush_requested = new AtomicBoolean(false);
+		invite_listener = null;
+		invites_listener = null;
+		key = null;
+		writing = new ArrayDeque<ByteBuffer>();
+		gather = new ByteBuffer[max_gather];
+		in = ByteBuffer.allocate(initial_buffer);
+		needed = 0;
+		current = null;
+		loop.add(this);
+	}
+
+	/**
+	 * Sets the function called with the full name of a document when an
+	 * invitation to it arrives, including the pending ones sent after login
+	 * if no listener is set with {@link setInvitesListener}. It's called by
+	 * the loop's thread.
+	 *
+	 * @param listener the function, or null to ignore invitations
+	 */
+	public void setInviteListener(Consumer<String> listener) {
+		invite_listener = listener;
+	}
+
+	/**
+	 * Sets the function called with the full names of the documents to which
+	 * the user has been invited while offline, all together, when they
+	 * arrive after login. It's called by the loop's thread.
+	 *
+	 * @param listener the function, or null to pass them one by one to the
+	 *                 invite listener
+	 */
+	public void setInvitesListener(Consumer<List<String>> listener) {
+		invites_listener = listener;
+	}
+
+	/**
+	 * Check whether the connection is still open.
+	 *
+	 * @return false iff the client has been closed or the connection broke
+	 */
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	// ============================== OPERATIONS ==============================
+	/**
+	 * Logs in. The pending invitations are delivered to the listener after
+	 * the future is completed.
+	 *
+	 * @param usr username
+	 * @param pwd password
+	 * @return a future completed when the user is logged in, with the token
+	 *         to pass to {@link resume} on a new connection, or an empty
+	 *         string if the server doesn't resume sessions
+	 */
+	public CompletableFuture<String> login(String usr, String pwd) {
+		ByteBuffer req = newRequest(OpKind.OP_LOGIN, StringCodec.maxEncodedSize(usr) + StringCodec.maxEncodedSize(pwd));
+		StringCodec.encode(usr, req);
+		StringCodec.encode(pwd, req);
+		return send(OpKind.OP_LOGIN, req, null, this::getString);
+	}
+
+	/**
+	 * Logs in again as the user of a previous connection, without the
+	 * password. The token can be used only until the server issues the
+	 * next one (with this login) or it expires, in which case the future
+	 * fails with ERR_INVALID_LOGIN and a normal login is needed. The
+	 * pending invitations are delivered to the listener after the future is
+	 * completed.
+	 *
+	 * @param token the token given by the last login or resume
+	 * @return a future completed when the user is logged in, with the new
+	 *         token
+	 */
+	public CompletableFuture<String> resume(String token) {
+		ByteBuffer req = newRequest(OpKind.OP_RESUME, StringCodec.maxEncodedSize(token));
+		StringCodec.encode(token, req);
+		return send(OpKind.OP_RESUME, req, null, this::getString);
+	}
+
+	/**
+	 * Creates a document owned by the logged user.
+	 *
+	 * @param docname name of the document
+	 * @param nsec number of sections
+	 * @return a future completed when the document has been created
+	 */
+	public CompletableFuture<Void> create(String docname, int nsec) {
+		ByteBuffer req = newRequest(OpKind.OP_CREATE, StringCodec.maxEncodedSize(docname) + Integer.BYTES);
+		StringCodec.encode(docname, req);
+		req.putInt(nsec);
+		return send(OpKind.OP_CREATE, req, null, () -> null);
+	}
+
+	/**
+	 * Starts the edit of a section.
+	 *
+	 * @param fulldocname full name of the document (ie: owner/name)
+	 * @param nsec number of the section
+	 * @return a future completed with the current content of the section
+	 */
+	public CompletableFuture<EditGrant> edit(String fulldocname, int nsec) {
+		ByteBuffer req = newRequest(OpKind.OP_EDIT, StringCodec.maxEncodedSize(fulldocname) + Integer.BYTES);
+		StringCodec.encode(fulldocname, req);
+		req.putInt(nsec);
+		return send(OpKind.OP_EDIT, req, null, () -> {
+			ByteBuffer content = getFile();
+			return new EditGrant(content, getByte());
+		});
+	}
+
+	/**
+	 * Ends the edit in progress, saving a new content for the section.
+	 *
+	 * @param content new content, from its position to its limit. It must
+	 *                not be modified until the future is completed
+	 * @return a future completed when the server has saved the content
+	 */
+	public CompletableFuture<Void> endEdit(ByteBuffer content) {
+		ByteBuffer req = newRequest(OpKind.OP_ENDEDIT, Long.BYTES);
+		req.putLong(content.remaining());
+		return send(OpKind.OP_ENDEDIT, req, content.duplicate(), () -> null);
+	}
+
+	/**
+	 * Gets the content of a section.
+	 *
+	 * @param fulldocname full name of the document (ie: owner/name)
+	 * @param nsec number of the section
+	 * @return a future completed with the section
+	 */
+	public CompletableFuture<SectionContent> showSection(String fulldocname, int nsec) {
+		ByteBuffer req = newRequest(OpKind.OP_SHOWSEC, StringCodec.maxEncodedSize(fulldocname) + Integer.BYTES);
+		StringCodec.encode(fulldocname, req);
+		req.putInt(nsec);
+		return send(OpKind.OP_SHOWSEC, req, null, () -> {
+			boolean being_edited = getBool();
+			return new SectionContent(being_edited, getFile());
+		});
+	}
+
+	/**
+	 * Gets the content of all the sections of a document.
+	 *
+	 * @param fulldocname full name of the document (ie: owner/name)
+	 * @return a future completed with the sections, in order
+	 */
+	public CompletableFuture<List<SectionContent>> showDocument(String fulldocname) {
+		ByteBuffer req = newRequest(OpKind.OP_SHOWDOC, StringCodec.maxEncodedSize(fulldocname));
+		StringCodec.encode(fulldocname, req);
+		return send(OpKind.OP_SHOWDOC, req, null, () -> {
+			int n = getInt();
+			List<SectionContent> sections = new ArrayList<SectionContent>(n);
+			for (int i = 0; i < n; ++i) {
+				boolean being_edited = getBool();
+				sections.add(new SectionContent(being_edited, getFile()));
+			}
+			return sections;
+		});
+	}
+
+	/**
+	 * Invites a user to edit a document of the logged user.
+	 *
+	 * @param usr the user to invite
+	 * @param docname name of the document, without the owner
+	 * @return a future completed when the invitation has been recorded
+	 */
+	public CompletableFuture<Void> invite(String usr, String docname) {
+		ByteBuffer req = newRequest(OpKind.OP_INVITE, StringCodec.maxEncodedSize(usr) + StringCodec.maxEncodedSize(docname));
+		StringCodec.encode(usr, req);
+		StringCodec.encode(docname, req);
+		return send(OpKind.OP_INVITE, req, null, () -> null);
+	}
+
+	/**
+	 * Gets the documents the logged user can edit.
+	 *
+	 * @return a future completed with the full names of the documents
+	 */
+	public CompletableFuture<List<String>> listDocuments() {
+		ByteBuffer req = newRequest(OpKind.OP_LISTDOCS, 0);
+		return send(OpKind.OP_LISTDOCS, req, null, () -> {
+			int n = getInt();
+			List<String> docs = new ArrayList<String>(n);
+			for (int i = 0; i < n; ++i) {
+				docs.add(getString());
+			}
+			return docs;
+		});
+	}
+
+	/**
+	 * Closes the connection. Requests still waiting for a response fail with
+	 * an IOException.
+	 */
+	@Override
+	public void close() {
+		close(new IOException("Client closed"));
+	}
+
+	// =============================== SENDING ================================
+	/**
+	 * Allocates the buffer of a request, with room for the ID.
+	 */
+	private static ByteBuffer newRequest(OpKind op, int size) {
+		ByteBuffer req = ByteBuffer.allocate(header_size + size);
+		req.position(Integer.BYTES);
+		req.put(OpKind.getNum(op));
+		return req;
+	}
+
+	private <T> CompletableFuture<T> send(OpKind op, ByteBuffer req, ByteBuffer body, ResponseParser<T> parser) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		req.flip();
+		try {
+			send_lock.lock();
+			if (closed) {
+				future.completeExceptionally(close_cause);
+				return future;
+			}
+			int id = next_id;
+			next_id = (next_id + 1) & Integer.MAX_VALUE;
+			req.putInt(0, id);
+			pending.add(new Pending<T>(id, op, future, parser));
+			outbound.add(req);
+			if (body != null) {
+				outbound.add(body);
+			}
+		}
+		finally {
+			send_lock.unlock();
+		}
+		if (flush_requested.compareAndSet(false, true)) {
+			loop.requestFlush(this);
+		}
+		return future;
+	}
+
+	private void close(IOException cause) {
+		try {
+			send_lock.lock();
+			if (closed) {
+				return;
+			}
+			close_cause = cause;
+			closed = true;
+		}
+		finally {
+			send_lock.unlock();
+		}
+		try {
+			chnl.close();
+		}
+		catch (IOException e) {
+			// Closing anyway
+		}
+		// Pending requests are failed by the loop, that is the only one
+		// taking them
+		if (loop.inLoop()) {
+			failPending();
+		}
+		else {
+			loop.requestFlush(this);
+		}
+	}
+
+	private void failPending() {
+		Pending<?> p = current;
+		current = null;
+		if (p != null) {
+			p.fail(close_cause);
+		}
+		while ((p = pending.poll()) != null) {
+			p.fail(close_cause);
+		}
+	}
+
+	// ================================ LOOP ==================================
+	/**
+	 * Registers the connection in the loop's selector. Called by the loop.
+	 */
+	void register(Selector selector) {
+		if (closed) {
+			failPending();
+			return;
+		}
+		try {
+			int ops = SelectionKey.OP_READ | (writing.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+			key = chnl.register(selector, ops, this);
+		}
+		catch (ClosedChannelException e) {
+			close(new IOException("Connection closed"));
+		}
+	}
+
+	/**
+	 * Writes what can be written of the requests sent. Called by the loop.
+	 */
+	void flush() {
+		flush_requested.set(false);
+		if (closed) {
+			failPending();
+			return;
+		}
+		ByteBuffer b;
+		while ((b = outbound.poll()) != null) {
+			writing.add(b);
+		}
+		try {
+			while (!writing.isEmpty()) {
+				int n = 0;
+				for (ByteBuffer w : writing) {
+					if (n == max_gather) {
+						break;
+					}
+					gather[n++] = w;
+				}
+				chnl.write(gather, 0, n);
+				Arrays.fill(gather, 0, n, null);
+				int done = 0;
+				while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+					writing.poll();
+					++done;
+				}
+				if (done < n) {
+					// The socket is full
+					break;
+				}
+			}
+			if (key != null && key.isValid()) {
+				if (writing.isEmpty()) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+				else {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+		catch (IOException e) {
+			close(e);
+		}
+	}
+
+	/**
+	 * Reads what is available and decodes the complete frames. Called by
+	 * the loop.
+	 */
+	void read() {
+		try {
+			if (chnl.read(in) == -1) {
+				close(new IOException("Connection closed by the server"));
+				return;
+			}
+			if (in.position() < needed) {
+				return;
+			}
+			in.flip();
+			decodeFrames();
+			in.compact();
+			if (!in.hasRemaining() || needed > in.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(in.capacity() * 2, needed));
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+		}
+		catch (IOException e) {
+			close(e);
+		}
+	}
+
+	private void decodeFrames() throws IOException {
+		while (in.hasRemaining()) {
+			frame_start = in.position();
+			try {
+				decodeFrame();
+				needed = 0;
+			}
+			catch (Incomplete e) {
+				in.position(frame_start);
+				return;
+			}
+		}
+	}
+
+	private void decodeFrame() throws IOException {
+		int id = getInt();
+		byte b = getByte();
+		if (b < 0 || b >= OpKind.values().length) {
+			throw new ProtocolException("Unknown OpKind " + Byte.toString(b));
+		}
+		OpKind op = OpKind.getOp(b);
+		if (id == Constants.push_id) {
+			List<String> docs;
+			if (op == OpKind.OP_INVITE) {
+				docs = Collections.singletonList(getString());
+			}
+			else if (op == OpKind.OP_INVITES) {
+				int n = getInt();
+				if (n < 0) {
+					throw new ProtocolException("Negative number of invitations");
+				}
+				docs = new ArrayList<String>();
+				for (int i = 0; i < n; ++i) {
+					docs.add(getString());
+				}
+			}
+			else {
+				throw new ProtocolException("Unexpected push " + op.toString());
+			}
+			try {
+				Consumer<List<String>> batch_listener = invites_listener;
+				Consumer<String> listener = invite_listener;
+				if (op == OpKind.OP_INVITES && batch_listener != null) {
+					batch_listener.accept(docs);
+				}
+				else if (listener != null) {
+					for (String doc : docs) {
+						listener.accept(doc);
+					}
+				}
+			}
+			catch (RuntimeException e) {
+				// The listener's problem, the connection is fine
+			}
+			return;
+		}
+		if (current == null) {
+			current = pending.poll();
+			if (current == null) {
+				throw new ProtocolException("Response without a request");
+			}
+		}
+		if (current.id != id) {
+			throw new ProtocolException("Response to " + Integer.toString(id)
+				+ " while waiting for " + Integer.toString(current.id));
+		}
+		if (op == OpKind.RESP_OK) {
+			current.complete();
+		}
+		else {
+			current.fail(new ErrorResponseException(current.op, op));
+		}
+		current = null;
+	}
+
+	// Decoding of the fields of a response from in. Each of them throws
+	// incomplete if the field hasn't been received completely yet
+	private void need(int n) {
+		if (in.remaining() < n) {
+			needed = in.position() - frame_start + n;
+			throw incomplete;
+		}
+	}
+
+	private byte getByte() {
+		need(1);
+		return in.get();
+	}
+
+	private boolean getBool() {
+		return getByte() != 0;
+	}
+
+	private int getInt() {
+		need(Integer.BYTES);
+		return in.getInt();
+	}
+
+	private String getString() throws ProtocolException {
+		int len = getInt();
+		StringCodec.checkLength(len);
+		need(len);
+		return StringCodec.decode(in, len);
+	}
+
+	private ByteBuffer getFile() throws ProtocolException {
+		need(Long.BYTES);
+		long size = in.getLong();
+		if (size < 0 || size > Integer.MAX_VALUE - initial_buffer) {
+			throw new ProtocolException("Invalid section size " + Long.toString(size));
+		}
+		need((int)size);
+		ByteBuffer content = ByteBuffer.allocate((int)size);
+		ByteBuffer src = in.duplicate();
+		src.limit(src.position() + (int)size);
+		content.put(src);
+		in.position(src.limit());
+		content.flip();
+		return content;
+	}
+}
@@ -9,7 +9,7 @@ case $1 in
 		rm -rf $DBFOLDER/*
 		;;
 	cleanbuild)
-		rm -rf dist/server/* dist/client/*
+		rm -rf dist/server/* dist/client/* dist/bench/* bench/jmh/target
 		;;
 	compileclient)
 		javac -Xlint:unchecked -d dist/client TuringGUI/src/*/*.java server/lib/*.java
@@ -17,6 +17,9 @@ case $1 in
 	compileserver)
 		javac -Xlint:unchecked -d dist/server server/TURINGServer.java
 		;;
+	compilebench)
+		$0 compileserver && javac -Xlint:unchecked -cp dist/server -d dist/bench bench/*.java
+		;;
 	compile)
 		$0 compileclient && $0 compileserver
 		;;
@@ -27,7 +30,19 @@ case $1 in
 		rm -rf docs/*
 		;;
 	runserver)
-		$0 compileserver && java -cp dist/server server.TURINGServer $RMI_PORT $SERVER_PORT
+		$0 compileserver && java -cp dist/server server.TURINGServer $RMI_PORT $SERVER_PORT "${@:2}"
+		;;
+	stats)
+		javac -Xlint:unchecked -d dist/server server/StatsDump.java && java -cp dist/server server.StatsDump $RMI_PORT
+		;;
+	migrate)
+		javac -Xlint:unchecked -d dist/server server/MigrateDB.java && java -cp dist/server server.MigrateDB $DBFOLDER "${@:2}"
+		;;
+	runbench)
+		$0 compilebench && java -cp dist/server:dist/bench bench.$2 "${@:3}"
+		;;
+	jmh)
+		(cd bench/jmh && mvn -B -q package) && java -jar bench/jmh/target/benchmarks.jar "${@:2}"
 		;;
 	runtest)
 		$0 cleandb